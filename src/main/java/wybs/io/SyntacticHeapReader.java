@@ -15,12 +15,21 @@ package wybs.io;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 import wybs.lang.SyntacticHeap;
 import wybs.lang.SyntacticHeap.Schema;
 import wybs.lang.SyntacticItem;
+import wybs.util.AbstractPackedSyntacticHeap;
+import wybs.util.CompactSyntacticHeap;
+import wybs.util.MappedSyntacticHeap;
+import wybs.util.SectionedSchema;
+import wybs.util.SyntacticHeapEncoding;
 import wyfs.io.BinaryInputStream;
+import wyfs.io.ByteBufferInputStream;
 import wyfs.util.Pair;
 
 /**
@@ -34,10 +43,49 @@ import wyfs.util.Pair;
  *
  */
 public abstract class SyntacticHeapReader {
+	/**
+	 * Shared by all items without data, since these are never modified.
+	 */
+	private static final byte[] EMPTY = new byte[0];
+
 	protected final BinaryInputStream in;
+	/**
+	 * Indicates whether items are read using the byte-aligned encoding, as
+	 * determined from the header.
+	 */
+	private boolean leb128;
+	/**
+	 * Indicates whether the number of items and root are located in a trailer
+	 * after the items, as determined from the header.
+	 */
+	private boolean trailer;
+	/**
+	 * The index of the item currently being read. This is required to decode
+	 * operands in the byte-aligned encoding, where they are relative to their
+	 * item.
+	 */
+	private int index = -1;
 
 	public SyntacticHeapReader(InputStream output) {
-		this.in = new BinaryInputStream(output);
+		if (output instanceof ByteBufferInputStream) {
+			// Reading from a buffer (e.g. a file entry), so can open in place.
+			this.in = new BufferInputStream((ByteBufferInputStream) output);
+		} else {
+			this.in = new BinaryInputStream(output);
+		}
+	}
+
+	/**
+	 * Construct a reader over a given buffer (e.g. a memory-mapped file). In
+	 * addition to reading a heap as normal, this permits the heap to be opened
+	 * in place using <code>readMappedHeap()</code>. The heap starts at the
+	 * current position of the buffer. Where it has an offset table or trailer,
+	 * the heap must also end at the limit of the buffer.
+	 *
+	 * @param buffer
+	 */
+	public SyntacticHeapReader(ByteBuffer buffer) {
+		this.in = new BufferInputStream(new ByteBufferInputStream(buffer.duplicate().order(ByteOrder.BIG_ENDIAN)));
 	}
 
 	public void close() throws IOException {
@@ -55,21 +103,158 @@ public abstract class SyntacticHeapReader {
 	 */
 	protected Pair<Integer, SyntacticItem[]> readItems() throws IOException {
 		// first, write magic number
-		Schema schema = checkHeader();
+		Schema schema = checkFormat();
 		// second, determine number of items
-		int size = in.read_uv();
-		// third, determine the root item
-		int root = in.read_uv();
+		int[] extent = readExtent(schema);
+		int size = extent[0];
+		int root = extent[1];
 		//
 		Bytecode[] items = new Bytecode[size];
 		// third, read abstract syntactic items
 		for (int i = 0; i != items.length; ++i) {
-			items[i] = readItem(schema);
+			items[i] = readItem(schema, i);
 		}
 		//
 		return new Pair<>(root, constructItems(schema, items));
 	}
 
+	/**
+	 * Read all the items in this heap directly into a compact heap. Unlike
+	 * <code>readItems()</code>, this does not construct an object for each item
+	 * and, hence, is appropriate for large heaps which are mostly read (e.g. to
+	 * be written again).
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	protected CompactSyntacticHeap readCompactHeap() throws IOException {
+		Schema schema = checkFormat();
+		int[] extent = readExtent(schema);
+		int size = extent[0];
+		int root = extent[1];
+		CompactSyntacticHeap heap = new CompactSyntacticHeap(schema);
+		for (int i = 0; i != size; ++i) {
+			int opcode = in.read_u8();
+			int[] operands = readOperands(schema, opcode, i);
+			byte[] data = readData(schema, opcode);
+			in.pad_u8();
+			heap.add(opcode, operands, data);
+		}
+		heap.trimToSize();
+		heap.setRootItem(heap.getSyntacticItem(root));
+		return heap;
+	}
+
+	/**
+	 * Open the heap in place, such that items are decoded directly from the
+	 * underlying buffer rather than being copied onto the Java heap. This
+	 * requires the reader was constructed over a buffer.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	protected MappedSyntacticHeap readMappedHeap() throws IOException {
+		if (!(in instanceof BufferInputStream)) {
+			throw new IllegalArgumentException("reader not constructed over a buffer");
+		}
+		BufferInputStream bin = (BufferInputStream) in;
+		Schema schema = checkFormat();
+		int[] extent = readExtent(schema);
+		int size = extent[0];
+		int root = extent[1];
+		if (size > 0 && SectionedSchema.hasFeature(schema, SectionedSchema.OFFSET_TABLE)) {
+			// Items can be located using the offset table and, hence, scanned lazily.
+			long[] offsets = readOffsetTable(bin.buffer, bin.base, size);
+			offsets[0] = bin.getBitPosition();
+			return new MappedSyntacticHeap(schema, bin.buffer, size, root, readOffsetTableStride(bin.buffer), offsets);
+		}
+		return new MappedSyntacticHeap(schema, bin.buffer, bin.getBitPosition(), size, root);
+	}
+
+	/**
+	 * Read the offset table from the end of a given buffer, producing the
+	 * position (in bits) of every Kth item within the buffer. The position of
+	 * the first item is not recorded in the table, since it immediately follows
+	 * the header. Offsets in the table are relative to the start of the heap
+	 * and, hence, are rebased using the position of the heap within the buffer.
+	 * This assumes the buffer ends with the heap (i.e. its limit is the end of
+	 * the heap). Since the table must then end exactly at this limit, trailing
+	 * bytes after the heap are reported as an invalid table.
+	 *
+	 * @param buffer
+	 * @param base
+	 *            The position within the buffer at which the heap starts.
+	 * @param size
+	 *            The number of items in the heap.
+	 * @return
+	 * @throws IOException
+	 */
+	protected static long[] readOffsetTable(ByteBuffer buffer, int base, int size) throws IOException {
+		int limit = buffer.limit();
+		int stride = readOffsetTableStride(buffer);
+		long start = base + (buffer.getInt(limit - 8) & 0xFFFFFFFFL);
+		long[] offsets = new long[((size - 1) / stride) + 1];
+		if (start + (offsets.length - 1) * 4L != limit - 8) {
+			throw new IOException("invalid offset table");
+		}
+		for (int i = 1; i < offsets.length; ++i) {
+			offsets[i] = (base + (buffer.getInt((int) start + ((i - 1) * 4)) & 0xFFFFFFFFL)) * 8;
+		}
+		return offsets;
+	}
+
+	/**
+	 * Read the stride of the offset table from the end of a given buffer.
+	 *
+	 * @param buffer
+	 * @return
+	 * @throws IOException
+	 */
+	protected static int readOffsetTableStride(ByteBuffer buffer) throws IOException {
+		int limit = buffer.limit();
+		if (limit < 8) {
+			throw new IOException("invalid offset table");
+		}
+		int stride = buffer.getInt(limit - 4);
+		if (stride < 1) {
+			throw new IOException("invalid offset table");
+		}
+		return stride;
+	}
+
+	/**
+	 * Read all the items in this heap in parallel, producing the same result as
+	 * <code>readItems()</code>. Items are decoded in chunks on the given pool
+	 * and then linked together in a second parallel pass. Decoding is only
+	 * parallel when the heap has an offset table, since otherwise the start of
+	 * each chunk can only be determined from the previous one. This requires
+	 * the reader was constructed over a buffer.
+	 *
+	 * @param pool
+	 * @return
+	 * @throws IOException
+	 */
+	protected Pair<Integer, SyntacticItem[]> readItems(ForkJoinPool pool) throws IOException {
+		MappedSyntacticHeap heap = readMappedHeap();
+		heap.scan(pool);
+		int root = heap.size() == 0 ? 0 : heap.getIndexOf(heap.getRootItem());
+		return new Pair<>(root, heap.construct(pool));
+	}
+
+	/**
+	 * Read the items in this heap lazily. This first builds an index locating
+	 * each item in the underlying buffer, and then decodes and constructs each
+	 * item only when it is first reached. Thus, the cost of reading is
+	 * proportional to the number of items actually used. This requires the
+	 * reader was constructed over a buffer.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	protected LazyItems readLazyItems() throws IOException {
+		return new LazyItems(readMappedHeap());
+	}
+
 	/**
 	 * Check the header of this syntactic heap and, based on this, select the most
 	 * appropriate schema for decoding it.
@@ -79,11 +264,89 @@ public abstract class SyntacticHeapReader {
 	 */
 	protected abstract Schema checkHeader() throws IOException;
 
+	/**
+	 * Check the header of this syntactic heap, and determine from the selected
+	 * schema which encoding is used for the remainder.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	private Schema checkFormat() throws IOException {
+		Schema schema = checkHeader();
+		leb128 = SectionedSchema.hasFeature(schema, SectionedSchema.LEB128);
+		trailer = SectionedSchema.hasFeature(schema, SectionedSchema.TRAILER);
+		if (leb128 || trailer) {
+			// Everything after the header is byte aligned
+			in.pad_u8();
+		}
+		return schema;
+	}
+
+	/**
+	 * Read the number of items in this heap and the index of its root item.
+	 * These are either read directly, or located in the trailer.
+	 *
+	 * @param schema
+	 * @return
+	 * @throws IOException
+	 */
+	private int[] readExtent(Schema schema) throws IOException {
+		if (!trailer) {
+			int size = readCount();
+			int root = readCount();
+			return new int[] { size, root };
+		} else if (!(in instanceof BufferInputStream)) {
+			throw new IllegalArgumentException("reader not constructed over a buffer");
+		}
+		BufferInputStream bin = (BufferInputStream) in;
+		ByteBuffer buffer = bin.buffer;
+		long end = buffer.limit();
+		if (SectionedSchema.hasFeature(schema, SectionedSchema.OFFSET_TABLE)) {
+			// Trailer immediately precedes the offset table
+			readOffsetTableStride(buffer);
+			end = bin.base + (buffer.getInt((int) end - 8) & 0xFFFFFFFFL);
+		}
+		if (end - 8 < buffer.position() || end > buffer.limit()) {
+			throw new IOException("invalid trailer");
+		}
+		int size = buffer.getInt((int) end - 8);
+		int root = buffer.getInt((int) end - 4);
+		if (size < 0 || root < 0 || (root >= size && size > 0)) {
+			throw new IOException("invalid trailer");
+		}
+		return new int[] { size, root };
+	}
+
+	/**
+	 * Read an unsigned value (e.g. a count or length) using the encoding
+	 * selected for this heap.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	private int readCount() throws IOException {
+		return SyntacticHeapEncoding.readCount(in, leb128);
+	}
+
+	/**
+	 * Read the item following that last read. This is equivalent to
+	 * <code>readItem(schema,index)</code>, where items are assumed to be read
+	 * in order.
+	 *
+	 * @param schema
+	 * @return
+	 * @throws IOException
+	 */
 	protected Bytecode readItem(Schema schema) throws IOException {
+		return readItem(schema, index + 1);
+	}
+
+	protected Bytecode readItem(Schema schema, int index) throws IOException {
+		this.index = index;
 		// read opcode
 		int opcode = in.read_u8();
 		// Write operands
-		int[] operands = readOperands(schema,opcode);
+		int[] operands = readOperands(schema,opcode,index);
 		// Write data (if any)
 		byte[] data = readData(schema,opcode);
 		// Pad to next byte boundary
@@ -92,7 +355,22 @@ public abstract class SyntacticHeapReader {
 		return new Bytecode(opcode,operands,data);
 	}
 
+	/**
+	 * Read the operands of the item currently being read. This is equivalent to
+	 * <code>readOperands(schema,opcode,index)</code>, where the index is that
+	 * of the item last passed to <code>readItem()</code>.
+	 *
+	 * @param schema
+	 * @param opcode
+	 * @return
+	 * @throws IOException
+	 */
 	protected int[] readOperands(Schema schema, int opcode) throws IOException {
+		return readOperands(schema, opcode, index);
+	}
+
+	protected int[] readOperands(Schema schema, int opcode, int index) throws IOException {
+		this.index = index;
 		// Determine operand layout
 		SyntacticItem.Operands layout = schema.getDescriptor(opcode).getOperandLayout();
 		int[] operands;
@@ -100,7 +378,7 @@ public abstract class SyntacticHeapReader {
 		// Determine number of operands according to layout
 		switch(layout) {
 		case MANY:
-			size = in.read_uv();
+			size = readCount();
 			break;
 		default:
 			size = layout.ordinal();
@@ -109,12 +387,24 @@ public abstract class SyntacticHeapReader {
 		operands = new int[size];
 		// Read operands
 		for (int i = 0; i != operands.length; ++i) {
-			operands[i] = in.read_uv();
+			operands[i] = SyntacticHeapEncoding.readOperand(in, leb128, index);
 		}
 		//
 		return operands;
 	}
 
+	/**
+	 * Read the data of an item with a given opcode. This is always copied into
+	 * a fresh array (unless empty), since the items constructed from it own
+	 * their data. Data can instead be accessed without copying from the heaps
+	 * returned by <code>readCompactHeap()</code> and
+	 * <code>readMappedHeap()</code> (see <code>getDataBuffer()</code>).
+	 *
+	 * @param schema
+	 * @param opcode
+	 * @return
+	 * @throws IOException
+	 */
 	protected byte[] readData(Schema schema, int opcode) throws IOException {
 		// Determine operand layout
 		SyntacticItem.Data layout = schema.getDescriptor(opcode).getDataLayout();
@@ -123,16 +413,16 @@ public abstract class SyntacticHeapReader {
 		// Determine number of bytes according to layout
 		switch(layout) {
 		case MANY:
-			size = in.read_uv();
+			size = readCount();
 			break;
 		default:
 			size = layout.ordinal();
 		}
 		//
-		bytes = new byte[size];
-		// Read operands
-		for (int i = 0; i != bytes.length; ++i) {
-			bytes[i] = (byte) in.read_u8();
+		bytes = size == 0 ? EMPTY : new byte[size];
+		// Read data
+		if (size > 0 && in.read(bytes) != size) {
+			throw new EOFException();
 		}
 		//
 		return bytes;
@@ -148,28 +438,147 @@ public abstract class SyntacticHeapReader {
 		return items;
 	}
 
+	/**
+	 * Construct the item at a given index, along with all items reachable from
+	 * it which have not already been constructed. Since every item is created
+	 * before its operands are linked, this handles cyclic structures. Items are
+	 * visited using an explicit worklist, rather than recursion, so that deeply
+	 * nested items cannot overflow the stack.
+	 *
+	 * @param index
+	 * @param schema
+	 * @param bytecodes
+	 * @param items
+	 */
 	protected void constructItem(int index, Schema schema, Bytecode[] bytecodes, SyntacticItem[] items) {
-		// FIXME: this fails in the presence of truly recursive items.
-		if (items[index] == null) {
-			// This item not yet constructed, therefore construct it!
-			Bytecode bytecode = bytecodes[index];
-			// Destructure bytecode
-			int opcode = bytecode.opcode;
-			int[] operands = bytecode.operands;
-			byte[] data = bytecode.data;
-			// Construct empty item
-			SyntacticItem item = schema.getDescriptor(bytecode.opcode).construct(opcode,
-					new SyntacticItem[operands.length], data);
-			// Store item so can be accessed recursively
-			items[index] = item;
-			// Recursively construct operands
+		if (items[index] != null) {
+			return;
+		}
+		int[] worklist = new int[16];
+		int top = 0;
+		items[index] = createItem(schema, bytecodes[index]);
+		worklist[top++] = index;
+		while (top > 0) {
+			int ith = worklist[--top];
+			SyntacticItem item = items[ith];
+			int[] operands = bytecodes[ith].operands;
 			for (int i = 0; i != operands.length; ++i) {
-				constructItem(operands[i], schema, bytecodes, items);
-				item.setOperand(i, items[operands[i]]);
+				int operand = operands[i];
+				if (items[operand] == null) {
+					// This item not yet constructed, therefore construct it!
+					items[operand] = createItem(schema, bytecodes[operand]);
+					if (top == worklist.length) {
+						worklist = Arrays.copyOf(worklist, top * 2);
+					}
+					worklist[top++] = operand;
+				}
+				item.setOperand(i, items[operand]);
 			}
 		}
 	}
 
+	/**
+	 * Construct an item from a given bytecode whose operands are not yet
+	 * linked.
+	 *
+	 * @param schema
+	 * @param bytecode
+	 * @return
+	 */
+	private static SyntacticItem createItem(Schema schema, Bytecode bytecode) {
+		return schema.getDescriptor(bytecode.opcode).construct(bytecode.opcode,
+				new SyntacticItem[bytecode.operands.length], bytecode.data);
+	}
+
+	/**
+	 * Provides access to the items of a heap which are constructed on demand.
+	 * Items are constructed in the same form as by <code>readItems()</code>.
+	 * Constructing an item also constructs all items reachable from it, since
+	 * these are its operands. However, items which are not reached are never
+	 * constructed.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class LazyItems {
+		private final AbstractPackedSyntacticHeap heap;
+		private final SyntacticItem[] items;
+
+		public LazyItems(AbstractPackedSyntacticHeap heap) {
+			this.heap = heap;
+			this.items = new SyntacticItem[heap.size()];
+		}
+
+		/**
+		 * Get the number of items in the heap.
+		 *
+		 * @return
+		 */
+		public int size() {
+			return items.length;
+		}
+
+		/**
+		 * Get the index of the root item.
+		 *
+		 * @return
+		 */
+		public int getRootIndex() {
+			return heap.getIndexOf(heap.getRootItem());
+		}
+
+		/**
+		 * Get the root item, constructing it if necessary.
+		 *
+		 * @return
+		 */
+		public SyntacticItem getRoot() {
+			return get(getRootIndex());
+		}
+
+		/**
+		 * Get the item at a given index, constructing it if necessary.
+		 *
+		 * @param index
+		 * @return
+		 */
+		public SyntacticItem get(int index) {
+			return heap.construct(index, items);
+		}
+
+		/**
+		 * Check whether the item at a given index has been constructed.
+		 *
+		 * @param index
+		 * @return
+		 */
+		public boolean isConstructed(int index) {
+			return items[index] != null;
+		}
+	}
+
+	/**
+	 * A binary input stream over a given buffer, which tracks the position
+	 * reached within that buffer. The heap need not start at the beginning of
+	 * the buffer, so its starting position is recorded as well.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class BufferInputStream extends BinaryInputStream {
+		private final ByteBuffer buffer;
+		/**
+		 * The position within the buffer at which the heap starts.
+		 */
+		private final int base;
+
+		public BufferInputStream(ByteBufferInputStream input) {
+			super(input);
+			this.buffer = input.getBuffer();
+			this.base = buffer.position();
+		}
+	}
+
 	private static class Bytecode {
 		public final int opcode;
 		public final int[] operands;
@@ -15,17 +15,12 @@ package wybs.io;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 
 import wybs.lang.SyntacticHeap;
 import wybs.lang.SyntacticItem;
+import wybs.util.SectionedSchema;
 import wyfs.io.BinaryOutputStream;
-import wyfs.util.Pair;
 
 /**
  * <p>
@@ -40,158 +35,500 @@ import wyfs.util.Pair;
 public abstract class SyntacticHeapWriter {
 	protected final BinaryOutputStream out;
 	protected final SyntacticHeap.Schema schema;
+	/**
+	 * The stride (K) of the offset table, if written.
+	 */
+	private int stride = 1;
+	/**
+	 * Indicates whether items are written using the byte-aligned encoding.
+	 */
+	private final boolean leb128;
+	/**
+	 * Indicates whether the item count and root are written after the items.
+	 */
+	private final boolean trailer;
+	/**
+	 * The number of items written so far, or <code>-1</code> if not started.
+	 */
+	private int count = -1;
+	/**
+	 * The number of items expected, or <code>-1</code> if not known in advance.
+	 */
+	private int size;
+	/**
+	 * The offsets recorded for the offset table so far (if written).
+	 */
+	private int[] offsets;
+	/**
+	 * Metrics recorded for items written, or <code>null</code> if not
+	 * requested.
+	 */
+	private Metrics metrics;
+	/**
+	 * The number of bits used to encode the operands of the item being
+	 * written (only when recording metrics).
+	 */
+	private long operandBits;
 
 	public SyntacticHeapWriter(OutputStream output, SyntacticHeap.Schema schema) {
 		this.out = new BinaryOutputStream(output);
 		this.schema = schema;
+		this.leb128 = SectionedSchema.hasFeature(schema, SectionedSchema.LEB128);
+		this.trailer = SectionedSchema.hasFeature(schema, SectionedSchema.TRAILER);
 	}
 
 	public void close() throws IOException {
 		out.close();
 	}
 
+	/**
+	 * Request that metrics are recorded for all items subsequently written by
+	 * this writer, or stop recording if <code>null</code>.
+	 *
+	 * @param metrics
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Get the metrics being recorded by this writer (if any).
+	 *
+	 * @return
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set the stride of the offset table (if written). That is, the offset of
+	 * every Kth item is recorded, where K is the stride.
+	 *
+	 * @param stride
+	 */
+	public void setOffsetTableStride(int stride) {
+		if (stride < 1) {
+			throw new IllegalArgumentException("invalid stride (" + stride + ")");
+		}
+		this.stride = stride;
+	}
+
 	public void write(SyntacticHeap module) throws IOException {
-		// first, write magic number
-		writeHeader();
-		// second, write syntactic items
-		out.write_uv(module.size());
-		// third, write root item
-		out.write_uv(module.getRootItem().getIndex());
+		final int size = module.size();
+		if (trailer) {
+			begin();
+		} else {
+			begin(size, module.getRootItem().getIndex());
+		}
 		// Write out each item in turn
-		for (int i = 0; i != module.size(); ++i) {
+		for (int i = 0; i != size; ++i) {
 			writeSyntacticItem(module.getSyntacticItem(i));
 		}
+		end(module.getRootItem().getIndex());
+	}
+
+	/**
+	 * Begin writing a heap whose items will be streamed out one at a time,
+	 * using <code>append()</code>. This requires the
+	 * <code>SectionedSchema.TRAILER</code> feature, since neither the number of
+	 * items nor the root are known until the end. Thus, a heap can be written
+	 * without ever being held in memory in its entirety.
+	 *
+	 * @throws IOException
+	 */
+	public void begin() throws IOException {
+		if (!trailer) {
+			throw new IllegalArgumentException("streaming requires " + SectionedSchema.TRAILER + " feature");
+		}
+		begin(-1, -1);
+	}
+
+	/**
+	 * Append an item to the heap being streamed out, returning its index.
+	 * Operands are given as the indices of other items, which may refer to
+	 * items not yet appended.
+	 *
+	 * @param opcode
+	 * @param operands
+	 * @param data
+	 *            The data of the item, or <code>null</code> if none.
+	 * @return
+	 * @throws IOException
+	 */
+	public int append(int opcode, int[] operands, byte[] data) throws IOException {
+		int index = count;
+		if (index < 0) {
+			throw new IllegalArgumentException("heap not begun");
+		}
+		for (int i = 0; i != operands.length; ++i) {
+			if (operands[i] < 0) {
+				throw new IllegalArgumentException("invalid operand (" + operands[i] + ")");
+			}
+		}
+		writeItem(index, opcode, operands, data);
+		return index;
+	}
+
+	/**
+	 * Finish writing the heap, having written all items.
+	 *
+	 * @param root
+	 *            The index of the root item.
+	 * @throws IOException
+	 */
+	public void end(int root) throws IOException {
+		if (count < 0) {
+			throw new IllegalArgumentException("heap not begun");
+		} else if (size >= 0 && count != size) {
+			throw new IllegalArgumentException("incorrect number of items (" + count + ", expecting " + size + ")");
+		} else if (root < 0 || (root >= count && count > 0)) {
+			throw new IllegalArgumentException("invalid root (" + root + ")");
+		}
+		if (trailer) {
+			out.pad_u8();
+			out.write_u32(count);
+			out.write_u32(root);
+		}
+		if (offsets != null) {
+			writeOffsetTable(Arrays.copyOf(offsets, count == 0 ? 0 : (count - 1) / stride));
+		}
+		count = -1;
+		offsets = null;
 		// finally, flush to disk
 		out.flush();
 	}
 
+	private void begin(int size, int root) throws IOException {
+		if (count >= 0) {
+			throw new IllegalArgumentException("heap already begun");
+		}
+		this.count = 0;
+		this.size = size;
+		this.offsets = SectionedSchema.hasFeature(schema, SectionedSchema.OFFSET_TABLE) ? new int[16] : null;
+		// first, write magic number
+		writeHeader();
+		if (leb128 || trailer) {
+			// Everything after the header is byte aligned
+			out.pad_u8();
+		}
+		if (!trailer) {
+			// second, write syntactic items
+			writeCount(size);
+			// third, write root item
+			writeCount(root);
+		}
+	}
+
+	/**
+	 * Write the offset table, followed by the trailer which locates it.
+	 *
+	 * @param offsets
+	 * @throws IOException
+	 */
+	private void writeOffsetTable(int[] offsets) throws IOException {
+		out.pad_u8();
+		int start = out.length();
+		for (int i = 0; i != offsets.length; ++i) {
+			out.write_u32(offsets[i]);
+		}
+		out.write_u32(start);
+		out.write_u32(stride);
+	}
+
 	public abstract void writeHeader() throws IOException;
 
+	/**
+	 * Write a given item of the heap. Within <code>write()</code> (or between
+	 * <code>begin()</code> and <code>end()</code>), this contributes to the
+	 * offset table and item count. Otherwise, the item is simply written as is,
+	 * and the caller is responsible for writing everything else (e.g. the
+	 * header).
+	 *
+	 * @param item
+	 * @throws IOException
+	 */
 	public void writeSyntacticItem(SyntacticItem item) throws IOException {
-		int d = out.length();
+		int[] operands = new int[item.size()];
+		for (int i = 0; i != operands.length; ++i) {
+			operands[i] = item.get(i).getIndex();
+		}
+		writeItem(item.getIndex(), item.getOpcode(), operands, item.getData());
+	}
+
+	private void writeItem(int index, int opcode, int[] operands, byte[] data) throws IOException {
+		if (offsets != null && count > 0 && (count % stride) == 0) {
+			// NOTE: every item after the first is byte aligned
+			int i = (count / stride) - 1;
+			if (i == offsets.length) {
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			}
+			offsets[i] = out.length();
+		}
+		long start = out.bitLength();
 		// Write opcode
-		out.write_u8(item.getOpcode());
+		out.write_u8(opcode);
 		// Write operands
-		writeOperands(item);
+		writeOperands(index, opcode, operands);
 		// Write data (if any)
-		writeData(item);
-		//
-		int size = out.length() - d;
-		record(item.getOpcode(),size);
+		writeData(opcode, data);
 		// Pad to next byte boundary
 		out.pad_u8();
+		if (metrics != null) {
+			metrics.record(opcode, (out.bitLength() - start + 7) / 8, operands.length, operandBits);
+		}
+		if (count >= 0) {
+			count = count + 1;
+		}
 	}
 
-	private void writeOperands(SyntacticItem item) throws IOException {
+	private void writeOperands(int index, int opcode, int[] operands) throws IOException {
 		// Determine operand layout
-		SyntacticItem.Operands layout = schema.getDescriptor(item.getOpcode()).getOperandLayout();
+		SyntacticItem.Descriptor descriptor = schema.getDescriptor(opcode);
+		SyntacticItem.Operands layout = descriptor.getOperandLayout();
 		// Write operands according to layout
 		switch(layout) {
 		case MANY:
-			out.write_uv(item.size());
+			writeCount(operands.length);
 			break;
 		default:
-			if(layout.ordinal() != item.size()) {
+			if(layout.ordinal() != operands.length) {
 				throw new IllegalArgumentException(
-						"invalid number of operands for \"" + item.getClass().getSimpleName() + "\" (got " + item.size()
+						"invalid number of operands for \"" + descriptor.getMnemonic() + "\" (got " + operands.length
 								+ ", expecting " + layout.ordinal() + ")");
 			}
 		}
 		//
-		for (int i = 0; i != item.size(); ++i) {
-			SyntacticItem operand = item.get(i);
-			out.write_uv(operand.getIndex());
+		long start = out.bitLength();
+		for (int i = 0; i != operands.length; ++i) {
+			if (leb128) {
+				// Zigzag encode difference from this item
+				int delta = operands[i] - index;
+				out.write_leb128((delta << 1) ^ (delta >> 31));
+			} else {
+				out.write_uv(operands[i]);
+			}
 		}
+		operandBits = out.bitLength() - start;
 	}
 
 	public void writeData(SyntacticItem item) throws IOException {
+		writeData(item.getOpcode(), item.getData());
+	}
+
+	private void writeData(int opcode, byte[] bytes) throws IOException {
 		// Determine data layout
-		SyntacticItem.Data layout = schema.getDescriptor(item.getOpcode()).getDataLayout();
-		byte[] bytes = item.getData();
+		SyntacticItem.Descriptor descriptor = schema.getDescriptor(opcode);
+		SyntacticItem.Data layout = descriptor.getDataLayout();
 		// Write data according to layout
 		switch (layout) {
 		case MANY:
-			out.write_uv(bytes.length);
+			writeCount(bytes.length);
 			break;
 		default:
 			if(bytes != null && layout.ordinal() != bytes.length) {
 				throw new IllegalArgumentException(
-						"invalid number of data bytes for " + item.getClass().getSimpleName() + " (got " + bytes.length
+						"invalid number of data bytes for " + descriptor.getMnemonic() + " (got " + bytes.length
 								+ ", expecting " + layout.ordinal() + ")");
 			} else if(bytes == null && layout.ordinal() != 0) {
 				throw new IllegalArgumentException(
-						"invalid number of data bytes for " + item.getClass().getSimpleName() + " (got none, expecting "
+						"invalid number of data bytes for " + descriptor.getMnemonic() + " (got none, expecting "
 								+ layout.ordinal() + ")");
 			}
 		}
 		if(bytes != null) {
-			for (int i = 0; i != bytes.length; ++i) {
-				out.write_u8(bytes[i]);
-			}
+			out.write(bytes);
 		}
 	}
 
-	public static final Map<Integer,Metric> metrics = new HashMap<>();
+	/**
+	 * Write an unsigned value (e.g. a count or length) using the encoding
+	 * selected for this heap.
+	 *
+	 * @param n
+	 * @throws IOException
+	 */
+	private void writeCount(int n) throws IOException {
+		if (leb128) {
+			out.write_leb128(n);
+		} else {
+			out.write_uv(n);
+		}
+	}
 
-	private static class Metric {
-		public int bytes;
-		public int count;
+	/**
+	 * <p>
+	 * Records the space taken by items written, broken down by opcode. For each
+	 * opcode, this records the number of items, the total number of bytes they
+	 * occupy (including padding), and the number of operands along with the
+	 * bits used to encode them. Metrics are only recorded for a writer when
+	 * explicitly requested (see <code>setMetrics()</code>).
+	 * </p>
+	 * <p>
+	 * Metrics must not be shared between writers running concurrently, since
+	 * recording is not synchronised. Instead, each writer should record its own
+	 * metrics which are then merged together afterwards (which is safe to do
+	 * from multiple threads).
+	 * </p>
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Metrics {
+		private static final int COUNT = 0;
+		private static final int BYTES = 1;
+		private static final int OPERANDS = 2;
+		private static final int OPERAND_BITS = 3;
+		private static final int FIELDS = 4;
+		/**
+		 * The fields recorded for each opcode, stored consecutively.
+		 */
+		private final long[] data = new long[256 * FIELDS];
 
-		public Metric record(int size) {
-			count++;
-			bytes += size;
-			return this;
+		/**
+		 * Get the opcodes for which at least one item was recorded, in
+		 * increasing order.
+		 *
+		 * @return
+		 */
+		public synchronized int[] getOpcodes() {
+			int n = 0;
+			int[] opcodes = new int[256];
+			for (int i = 0; i != opcodes.length; ++i) {
+				if (data[(i * FIELDS) + COUNT] != 0) {
+					opcodes[n++] = i;
+				}
+			}
+			return Arrays.copyOf(opcodes, n);
 		}
 
-		@Override
-		public int hashCode() {
-			return bytes+count;
+		/**
+		 * Get the number of items recorded for a given opcode.
+		 *
+		 * @param opcode
+		 * @return
+		 */
+		public synchronized long getCount(int opcode) {
+			return data[(opcode * FIELDS) + COUNT];
 		}
 
-		@Override
-		public boolean equals(Object o) {
-			if(o instanceof Metric) {
-				Metric m = (Metric) o;
-				return bytes == m.bytes && count == m.count;
-			}
-			return false;
+		/**
+		 * Get the number of bytes occupied by items with a given opcode.
+		 *
+		 * @param opcode
+		 * @return
+		 */
+		public synchronized long getBytes(int opcode) {
+			return data[(opcode * FIELDS) + BYTES];
 		}
-	}
 
-	public static void record(int opcode, int size) {
-		Metric old = metrics.get(opcode);
-		old = old == null ? new Metric() : old;
-		metrics.put(opcode, old.record(size));
-	}
+		/**
+		 * Get the number of operands of items with a given opcode.
+		 *
+		 * @param opcode
+		 * @return
+		 */
+		public synchronized long getOperandCount(int opcode) {
+			return data[(opcode * FIELDS) + OPERANDS];
+		}
+
+		/**
+		 * Get the average number of bits used to encode each operand of items
+		 * with a given opcode, or zero if there are none.
+		 *
+		 * @param opcode
+		 * @return
+		 */
+		public synchronized double getAverageOperandBits(int opcode) {
+			long operands = data[(opcode * FIELDS) + OPERANDS];
+			return operands == 0 ? 0 : (double) data[(opcode * FIELDS) + OPERAND_BITS] / operands;
+		}
+
+		/**
+		 * Get the total number of items recorded.
+		 *
+		 * @return
+		 */
+		public synchronized long getCount() {
+			return sum(COUNT);
+		}
+
+		/**
+		 * Get the total number of bytes occupied by all items recorded.
+		 *
+		 * @return
+		 */
+		public synchronized long getBytes() {
+			return sum(BYTES);
+		}
 
-	public static void printMetrics(SyntacticHeap.Schema schema) {
-		List<Pair<Integer,Metric>> items = new ArrayList();
-		for(int i=0;i!=255;++i) {
-			Metric c = metrics.get(i);
-			if(c != null) {
-				items.add(new Pair<>(i,c));
+		/**
+		 * Merge the metrics recorded in another instance into this one.
+		 *
+		 * @param other
+		 */
+		public void merge(Metrics other) {
+			long[] snapshot;
+			synchronized (other) {
+				snapshot = other.data.clone();
+			}
+			synchronized (this) {
+				for (int i = 0; i != data.length; ++i) {
+					data[i] += snapshot[i];
+				}
 			}
 		}
-		Collections.sort(items, new Comparator<Pair<Integer,Metric>>() {
 
-			@Override
-			public int compare(Pair<Integer, Metric> o1, Pair<Integer, Metric> o2) {
-				int c = Integer.compare(o1.second().bytes, o2.second().bytes);
-				if(c == 0) {
-					return o1.first().compareTo(o2.first());
-				} else {
-					return c;
+		/**
+		 * Summarise these metrics, with one line per opcode in increasing order
+		 * of space used.
+		 *
+		 * @param schema
+		 *            Used to determine the mnemonic of each opcode.
+		 * @return
+		 */
+		public synchronized String toString(SyntacticHeap.Schema schema) {
+			int[] opcodes = getOpcodes();
+			Integer[] order = new Integer[opcodes.length];
+			for (int i = 0; i != opcodes.length; ++i) {
+				order[i] = opcodes[i];
+			}
+			Arrays.sort(order, (l, r) -> {
+				int c = Long.compare(getBytes(l), getBytes(r));
+				return c != 0 ? c : Integer.compare(l, r);
+			});
+			StringBuilder r = new StringBuilder();
+			for (int opcode : order) {
+				r.append(schema.getDescriptor(opcode).getMnemonic()).append(": ").append(getBytes(opcode))
+						.append(" bytes (").append(getCount(opcode)).append(" items");
+				if (getOperandCount(opcode) != 0) {
+					r.append(String.format(", %.1f bits/operand", getAverageOperandBits(opcode)));
 				}
+				r.append(")\n");
 			}
+			r.append("\n").append(getBytes()).append(" bytes\n");
+			return r.toString();
+		}
+
+		/**
+		 * Record an item written. This is called for every item and, since
+		 * metrics are confined to a single writer, it does not synchronise.
+		 * Other threads must only access these metrics after the writer has
+		 * finished (e.g. by merging them).
+		 */
+		private void record(int opcode, long bytes, int operands, long operandBits) {
+			int i = opcode * FIELDS;
+			data[i + COUNT]++;
+			data[i + BYTES] += bytes;
+			data[i + OPERANDS] += operands;
+			data[i + OPERAND_BITS] += operandBits;
+		}
 
-		});
-		int total = 0;
-		for(Pair<Integer,Metric> p : items) {
-			String n = schema.getDescriptor(p.first()).getMnemonic();
-			total += p.second().bytes;
-			System.out.println(n + ": " + p.second().bytes + " bytes (" + p.second().count + " items)");
+		private long sum(int field) {
+			long total = 0;
+			for (int i = field; i < data.length; i += FIELDS) {
+				total += data[i];
+			}
+			return total;
 		}
-		System.out.println();
-		System.out.println(total + " bytes");
 	}
 }
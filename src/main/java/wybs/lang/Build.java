@@ -106,6 +106,15 @@ public interface Build {
 		 * @return
 		 */
 		public List<Build.Task> getTasks();
+
+		/**
+		 * Get the graph of build tasks currently used by this project. This
+		 * describes the dependencies between tasks, as determined by the sources and
+		 * targets of each task.
+		 *
+		 * @return
+		 */
+		public Build.Graph getGraph();
 	}
 
 	/**
@@ -231,6 +240,66 @@ public interface Build {
 		public void done();
 	}
 
+	/**
+	 * <p>
+	 * Represents the dependencies between a set of build tasks. A task depends
+	 * upon another task if one of its sources is the target of that task. Tasks
+	 * within the graph are identified by their index, and are arranged in
+	 * topological order. That is, every task is guaranteed to have a higher index
+	 * than all of the tasks on which it depends.
+	 * </p>
+	 * <p>
+	 * A build graph provides a convenient mechanism for schedulers and other
+	 * tooling to traverse tasks without recomputing dependencies.
+	 * </p>
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Graph {
+		/**
+		 * Get the number of tasks in this graph.
+		 *
+		 * @return
+		 */
+		public int size();
+
+		/**
+		 * Get the task at a given index in this graph.
+		 *
+		 * @param index
+		 * @return
+		 */
+		public Build.Task get(int index);
+
+		/**
+		 * Get the indices of all tasks which produce a given entry. In the case of no
+		 * matches, an empty array is returned.
+		 *
+		 * @param target
+		 * @return
+		 */
+		public int[] getProducers(Path.Entry<?> target);
+
+		/**
+		 * Get the indices of all tasks on which the task at a given index depends.
+		 * These are always less than the given index.
+		 *
+		 * @param index
+		 * @return
+		 */
+		public int[] getParents(int index);
+
+		/**
+		 * Get the indices of all tasks which depend on the task at a given index.
+		 * These are always greater than the given index.
+		 *
+		 * @param index
+		 * @return
+		 */
+		public int[] getChildren(int index);
+	}
+
 	public interface Stage {
 
 	}
@@ -127,8 +127,9 @@ public interface SyntacticHeap {
 	/**
 	 * Find all instances of a given kind which are reachable from the root item.
 	 * This traverses each SyntacticItem in the reachable syntax tree looking for
-	 * such matches.
-	 *
+	 * such matches. Matches are returned in the order they are first encountered
+	 * by a depth-first traversal from the root, which visits the operands of each
+	 * item in order.
 	 *
 	 * @param kind
 	 * @return
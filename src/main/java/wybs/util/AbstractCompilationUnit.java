@@ -310,8 +310,17 @@ public abstract class AbstractCompilationUnit<T extends CompilationUnit> extends
 	 *
 	 */
 	public static class Identifier extends AbstractSyntacticItem implements CompilationUnit.Identifier {
+		/**
+		 * The name of this identifier. When read from a heap, this is decoded on
+		 * demand and interned, so that identifiers with the same name share one
+		 * string regardless of which heap they belong to. Otherwise, the name
+		 * given is used as is.
+		 */
+		private String name;
+
 		public Identifier(String name) {
 			super(ITEM_ident, name.getBytes(StandardCharsets.UTF_8), new SyntacticItem[0]);
+			this.name = name;
 		}
 
 		public Identifier(byte[] bytes) {
@@ -320,8 +329,13 @@ public abstract class AbstractCompilationUnit<T extends CompilationUnit> extends
 
 		@Override
 		public String get() {
-			// FIXME: could cache this
-			return new String(data,StandardCharsets.UTF_8);
+			String r = name;
+			if (r == null) {
+				// NOTE: benign race, since strings are immutable
+				r = new String(data, StandardCharsets.UTF_8).intern();
+				name = r;
+			}
+			return r;
 		}
 
 		@Override
@@ -632,6 +646,11 @@ public abstract class AbstractCompilationUnit<T extends CompilationUnit> extends
 
 
 		public static class UTF8 extends Value {
+			/**
+			 * The decoded string, which is computed on demand.
+			 */
+			private String value;
+
 			public UTF8(String str) {
 				super(ITEM_utf8, str.getBytes());
 			}
@@ -656,7 +675,12 @@ public abstract class AbstractCompilationUnit<T extends CompilationUnit> extends
 
 			@Override
 			public String toString() {
-				return new String(get());
+				String r = value;
+				if (r == null) {
+					r = new String(get());
+					value = r;
+				}
+				return r;
 			}
 
 			public static final SyntacticItem.Descriptor DESCRIPTOR_0 = new SyntacticItem.Descriptor(Operands.ZERO,Data.MANY, "ITEM_utf8") {
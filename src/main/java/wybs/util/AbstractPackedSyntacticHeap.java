@@ -0,0 +1,870 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+
+/**
+ * <p>
+ * Provides common functionality for syntactic heaps which store their items in
+ * packed form, rather than as individual objects. Such a heap is accessed
+ * through the opcode, operands and data of each item by index. Items are
+ * exposed through lightweight flyweights, which read from (and write through
+ * to) the heap. Flyweights are created on demand, but at most one is created
+ * for each index and, hence, they can be compared by identity (as
+ * <code>replace()</code> does for items).
+ * </p>
+ * <p>
+ * Flyweights do not have the concrete types of the items they represent.
+ * Therefore, queries such as <code>findAll()</code> or <code>getParent()</code>
+ * made for any kind other than <code>SyntacticItem</code> return concrete items
+ * instead, constructed as for <code>construct()</code>. The kind of item at
+ * each opcode is determined from the descriptors of the schema. Concrete items
+ * are not part of this heap, though the same items are returned until the
+ * heap is next modified.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public abstract class AbstractPackedSyntacticHeap implements SyntacticHeap {
+	/**
+	 * The schema describing the items of this heap.
+	 */
+	protected final SyntacticHeap.Schema schema;
+
+	/**
+	 * The index of the root item.
+	 */
+	protected int root;
+
+	/**
+	 * Index of reverse edges in this heap, with the same layout as for
+	 * <code>AbstractSyntacticHeap</code>. This is constructed on demand.
+	 */
+	private int[] parentOffsets;
+	private int[] parentEdges;
+
+	/**
+	 * The flyweight for each index, which are created on demand.
+	 */
+	private Item[] flyweights = new Item[0];
+
+	/**
+	 * The concrete items constructed for each index by queries. This is
+	 * constructed on demand.
+	 */
+	private SyntacticItem[] concrete;
+
+	/**
+	 * The kind of item constructed by the schema for each opcode, which is
+	 * determined on demand.
+	 */
+	private Class<?>[] kinds = new Class<?>[0];
+
+	public AbstractPackedSyntacticHeap(SyntacticHeap.Schema schema) {
+		this.schema = schema;
+	}
+
+	/**
+	 * Get the opcode of the item at a given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public abstract int getOpcode(int index);
+
+	/**
+	 * Set the opcode of the item at a given index.
+	 *
+	 * @param index
+	 * @param opcode
+	 */
+	public abstract void setOpcode(int index, int opcode);
+
+	/**
+	 * Get the number of operands of the item at a given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public abstract int getOperandCount(int index);
+
+	/**
+	 * Get the index of the ith operand of the item at a given index, or
+	 * <code>-1</code> if that operand is <code>null</code>.
+	 *
+	 * @param index
+	 * @param ith
+	 * @return
+	 */
+	public abstract int getOperand(int index, int ith);
+
+	/**
+	 * Set the ith operand of the item at a given index, where <code>-1</code>
+	 * represents <code>null</code>.
+	 *
+	 * @param index
+	 * @param ith
+	 * @param operand
+	 */
+	public abstract void setOperand(int index, int ith, int operand);
+
+	/**
+	 * Get a copy of the data of the item at a given index. This is never
+	 * <code>null</code>, though it may be empty.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public abstract byte[] getData(int index);
+
+	/**
+	 * Get a read-only view of the data of the item at a given index, which
+	 * avoids copying it where possible. Unlike <code>getData()</code>, the
+	 * view may share storage with this heap.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public abstract ByteBuffer getDataBuffer(int index);
+
+	/**
+	 * Append an item with a given opcode, operands and data to this heap. The
+	 * operands are given as indices, which may refer to items not yet added
+	 * (e.g. when reading a heap from disk). A <code>null</code> operand is
+	 * represented by <code>-1</code>.
+	 *
+	 * @param opcode
+	 * @param operands
+	 * @param data
+	 *            The data for the item, which may be <code>null</code>.
+	 * @return The index of the item added.
+	 */
+	public abstract int add(int opcode, int[] operands, byte[] data);
+
+	/**
+	 * Construct the concrete items held in this heap, using the descriptors of
+	 * its schema. The items returned are not allocated to any heap, and are
+	 * given in the same form as by <code>SyntacticHeapReader</code>. Thus, they
+	 * can be used to populate a conventional heap.
+	 *
+	 * @return
+	 */
+	public SyntacticItem[] construct() {
+		SyntacticItem[] items = new SyntacticItem[size()];
+		for (int i = 0; i != items.length; ++i) {
+			construct(i, items);
+		}
+		return items;
+	}
+
+	/**
+	 * Construct the concrete items held in this heap in parallel, producing the
+	 * same result as <code>construct()</code>. Items are first constructed (in
+	 * chunks) without their operands, and then linked together in a second
+	 * pass. Since each item is only updated by the task responsible for its
+	 * chunk, no synchronisation is required.
+	 *
+	 * @param pool
+	 * @return
+	 */
+	public SyntacticItem[] construct(ForkJoinPool pool) {
+		SyntacticItem[] items = new SyntacticItem[size()];
+		pool.invoke(new Construction(this, items, 0, items.length, false));
+		pool.invoke(new Construction(this, items, 0, items.length, true));
+		return items;
+	}
+
+	/**
+	 * Construct the concrete item at a given index, along with all items
+	 * reachable from it which have not already been constructed. Constructed
+	 * items are recorded in the given array, which is indexed in the same way as
+	 * this heap. Thus, items can be constructed on demand.
+	 *
+	 * @param index
+	 * @param items
+	 * @return
+	 */
+	public SyntacticItem construct(int index, SyntacticItem[] items) {
+		if (items[index] != null) {
+			return items[index];
+		}
+		// First, construct every item not yet constructed without operands.
+		int[] pending = new int[16];
+		int count = 0;
+		int[] worklist = new int[16];
+		int top = 0;
+		items[index] = create(index);
+		worklist[top++] = index;
+		while (top > 0) {
+			int item = worklist[--top];
+			if (count == pending.length) {
+				pending = Arrays.copyOf(pending, count * 2);
+			}
+			pending[count++] = item;
+			for (int j = 0; j != getOperandCount(item); ++j) {
+				int child = getOperand(item, j);
+				if (child >= 0 && items[child] == null) {
+					items[child] = create(child);
+					if (top == worklist.length) {
+						worklist = Arrays.copyOf(worklist, top * 2);
+					}
+					worklist[top++] = child;
+				}
+			}
+		}
+		// Second, link them together. Since every item already exists, this
+		// handles cyclic structures.
+		for (int i = 0; i != count; ++i) {
+			int item = pending[i];
+			for (int j = 0; j != items[item].size(); ++j) {
+				int operand = getOperand(item, j);
+				items[item].setOperand(j, operand < 0 ? null : items[operand]);
+			}
+		}
+		return items[index];
+	}
+
+	// ======================================================================
+	// Syntactic Heap
+	// ======================================================================
+
+	@Override
+	public SyntacticItem getRootItem() {
+		return getSyntacticItem(root);
+	}
+
+	@Override
+	public void setRootItem(SyntacticItem item) {
+		this.root = allocate(item).getIndex();
+	}
+
+	@Override
+	public SyntacticItem getSyntacticItem(int index) {
+		checkIndex(index);
+		if (index >= flyweights.length) {
+			flyweights = Arrays.copyOf(flyweights, Math.max(size(), flyweights.length * 2));
+		}
+		Item item = flyweights[index];
+		if (item == null) {
+			item = new Item(this, index);
+			flyweights[index] = item;
+		}
+		return item;
+	}
+
+	@Override
+	public int getIndexOf(SyntacticItem item) {
+		int index = indexOf(item);
+		if (index < 0) {
+			throw new IllegalArgumentException("invalid syntactic item");
+		}
+		return index;
+	}
+
+	@Override
+	public <T extends SyntacticItem> T getParent(SyntacticItem child, Class<T> kind) {
+		List<T> parents = getParents(child, kind);
+		return parents.isEmpty() ? null : parents.get(0);
+	}
+
+	@Override
+	public <T extends SyntacticItem> List<T> getParents(SyntacticItem child, Class<T> kind) {
+		ArrayList<T> parents = new ArrayList<>();
+		int index = indexOf(child);
+		if (index >= 0) {
+			buildParentIndex();
+			for (int i = parentOffsets[index]; i < parentOffsets[index + 1]; ++i) {
+				T parent = match(parentEdges[i], kind);
+				if (parent != null) {
+					parents.add(parent);
+				}
+			}
+		}
+		return parents;
+	}
+
+	@Override
+	public <T extends SyntacticItem> T getAncestor(SyntacticItem child, Class<T> kind) {
+		int index = indexOf(child);
+		if (kind.isInstance(child)) {
+			return kind.cast(child);
+		} else if (index >= 0) {
+			buildParentIndex();
+			// Depth-first search through parents, as for AbstractSyntacticHeap
+			BitSet visited = new BitSet();
+			int[] stack = new int[16];
+			int top = 0;
+			stack[top++] = index;
+			while (top > 0) {
+				index = stack[--top];
+				if (visited.get(index)) {
+					continue;
+				}
+				visited.set(index);
+				T item = match(index, kind);
+				if (item != null) {
+					return item;
+				}
+				for (int i = parentOffsets[index + 1] - 1; i >= parentOffsets[index]; --i) {
+					int parent = parentEdges[i];
+					// Don't follow cross-references
+					if (!isReference(parent)) {
+						if (top == stack.length) {
+							stack = Arrays.copyOf(stack, stack.length * 2);
+						}
+						stack[top++] = parent;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public SyntacticHeap getParent() {
+		return null;
+	}
+
+	/**
+	 * Allocate a given item (and, recursively, its children) into this heap.
+	 * Observe that the item returned is a flyweight of this heap and, hence,
+	 * does not have the concrete type of the item given.
+	 *
+	 * @param item
+	 * @return
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T extends SyntacticItem> T allocate(T item) {
+		return (T) new Allocator(this).allocate(item);
+	}
+
+	@Override
+	public <T extends SyntacticItem> void replace(T from, T to) {
+		int index = indexOf(from);
+		if (index < 0 || size() == 0) {
+			// Only items of this heap can be replaced
+			return;
+		}
+		int nIndex = allocate(to).getIndex();
+		// Traverse from the root, as for AbstractSyntacticHeap
+		BitSet visited = new BitSet(size());
+		int[] worklist = new int[16];
+		int top = 0;
+		worklist[top++] = root;
+		while (top > 0) {
+			int item = worklist[--top];
+			if (item != index && !visited.get(item)) {
+				visited.set(item);
+				for (int i = 0; i != getOperandCount(item); ++i) {
+					int child = getOperand(item, i);
+					if (child == index) {
+						setOperand(item, i, nIndex);
+					} else if (child >= 0) {
+						if (top == worklist.length) {
+							worklist = Arrays.copyOf(worklist, worklist.length * 2);
+						}
+						worklist[top++] = child;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public <T extends SyntacticItem> List<T> findAll(Class<T> kind) {
+		ArrayList<T> matches = new ArrayList<>();
+		if (size() == 0) {
+			return matches;
+		}
+		// Depth-first traversal from the root, as for AbstractSyntacticHeap
+		BitSet visited = new BitSet(size());
+		int[] worklist = new int[16];
+		int top = 0;
+		worklist[top++] = root;
+		while (top > 0) {
+			int index = worklist[--top];
+			if (!visited.get(index)) {
+				visited.set(index);
+				T item = match(index, kind);
+				if (item != null) {
+					matches.add(item);
+				}
+				// Push operands in reverse, so they are visited in order
+				for (int i = getOperandCount(index) - 1; i >= 0; --i) {
+					int child = getOperand(index, i);
+					if (child >= 0 && !visited.get(child)) {
+						if (top == worklist.length) {
+							worklist = Arrays.copyOf(worklist, worklist.length * 2);
+						}
+						worklist[top++] = child;
+					}
+				}
+			}
+		}
+		return matches;
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Construct the concrete item at a given index without its operands.
+	 *
+	 * @param index
+	 * @return
+	 */
+	private SyntacticItem create(int index) {
+		int opcode = getOpcode(index);
+		SyntacticItem[] children = new SyntacticItem[getOperandCount(index)];
+		return schema.getDescriptor(opcode).construct(opcode, children, getData(index));
+	}
+
+	/**
+	 * Match the item at a given index against a given kind, returning
+	 * <code>null</code> if it is not an instance of that kind. The flyweight is
+	 * returned when this is an instance of the kind and, otherwise, the
+	 * concrete item.
+	 *
+	 * @param index
+	 * @param kind
+	 * @return
+	 */
+	private <T extends SyntacticItem> T match(int index, Class<T> kind) {
+		if (kind.isAssignableFrom(Item.class)) {
+			return kind.cast(getSyntacticItem(index));
+		} else if (kind.isAssignableFrom(getKind(index))) {
+			if (concrete == null || concrete.length != size()) {
+				concrete = new SyntacticItem[size()];
+			}
+			return kind.cast(construct(index, concrete));
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Determine the kind of item constructed for the item at a given index. This
+	 * is the class of a prototype constructed by the descriptor for its opcode,
+	 * which is then used for all items with that opcode.
+	 *
+	 * @param index
+	 * @return
+	 */
+	protected Class<?> getKind(int index) {
+		int opcode = getOpcode(index);
+		if (opcode >= kinds.length) {
+			kinds = Arrays.copyOf(kinds, opcode + 1);
+		}
+		Class<?> kind = kinds[opcode];
+		if (kind == null) {
+			kind = create(index).getClass();
+			kinds[opcode] = kind;
+		}
+		return kind;
+	}
+
+	/**
+	 * Check whether the item at a given index is a reference, which is a
+	 * non-owning pointer to its target.
+	 *
+	 * @param index
+	 * @return
+	 */
+	protected boolean isReference(int index) {
+		return AbstractCompilationUnit.Ref.class.isAssignableFrom(getKind(index));
+	}
+
+	protected void checkIndex(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("invalid index (" + index + ")");
+		}
+	}
+
+	/**
+	 * Determine the index of a given item in this heap, or <code>-1</code> if
+	 * it is not part of this heap.
+	 *
+	 * @param item
+	 * @return
+	 */
+	protected int indexOf(SyntacticItem item) {
+		if (item instanceof Item) {
+			Item flyweight = (Item) item;
+			if (flyweight.heap == this && flyweight.index < size()) {
+				return flyweight.index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Invalidate any indices maintained for this heap. This must be called
+	 * whenever an item is allocated, or an existing item is modified.
+	 */
+	protected void invalidateIndices() {
+		parentOffsets = null;
+		parentEdges = null;
+		concrete = null;
+	}
+
+	/**
+	 * Mark all items reachable from the root.
+	 *
+	 * @param references
+	 *            Determines whether or not to traverse references.
+	 * @return
+	 */
+	protected BitSet markReachable(boolean references) {
+		BitSet visited = new BitSet(size());
+		int[] worklist = new int[16];
+		int top = 0;
+		worklist[top++] = root;
+		while (top > 0) {
+			int index = worklist[--top];
+			if (!visited.get(index)) {
+				visited.set(index);
+				if (!references && isReference(index)) {
+					// NOTE: do not traverse references as these are non-owning pointers.
+					continue;
+				}
+				for (int i = 0; i != getOperandCount(index); ++i) {
+					int child = getOperand(index, i);
+					if (child >= 0) {
+						if (top == worklist.length) {
+							worklist = Arrays.copyOf(worklist, worklist.length * 2);
+						}
+						worklist[top++] = child;
+					}
+				}
+			}
+		}
+		return visited;
+	}
+
+	/**
+	 * Construct the index of reverse edges for this heap (if not already
+	 * constructed).
+	 */
+	private void buildParentIndex() {
+		if (parentOffsets != null) {
+			return;
+		}
+		final int n = size();
+		int[] offsets = new int[n + 1];
+		// Count parents of each item
+		for (int i = 0; i != n; ++i) {
+			for (int j = 0; j != getOperandCount(i); ++j) {
+				int child = getOperand(i, j);
+				if (child >= 0) {
+					offsets[child + 1]++;
+				}
+			}
+		}
+		// Convert counts into offsets
+		for (int i = 0; i != n; ++i) {
+			offsets[i + 1] += offsets[i];
+		}
+		// Record parents of each item
+		int[] edges = new int[offsets[n]];
+		int[] next = Arrays.copyOf(offsets, n);
+		for (int i = 0; i != n; ++i) {
+			for (int j = 0; j != getOperandCount(i); ++j) {
+				int child = getOperand(i, j);
+				if (child >= 0) {
+					edges[next[child]++] = i;
+				}
+			}
+		}
+		this.parentOffsets = offsets;
+		this.parentEdges = edges;
+	}
+
+	/**
+	 * Responsible for constructing (or linking) a range of items in a packed
+	 * heap. Ranges which are too large are split in two and processed in
+	 * parallel.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Construction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int THRESHOLD = 4096;
+		private final AbstractPackedSyntacticHeap heap;
+		private final SyntacticItem[] items;
+		private final int start;
+		private final int end;
+		private final boolean link;
+
+		public Construction(AbstractPackedSyntacticHeap heap, SyntacticItem[] items, int start, int end,
+				boolean link) {
+			this.heap = heap;
+			this.items = items;
+			this.start = start;
+			this.end = end;
+			this.link = link;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > THRESHOLD) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new Construction(heap, items, start, middle, link),
+						new Construction(heap, items, middle, end, link));
+			} else if (link) {
+				for (int i = start; i != end; ++i) {
+					for (int j = 0; j != items[i].size(); ++j) {
+						int operand = heap.getOperand(i, j);
+						items[i].setOperand(j, operand < 0 ? null : items[operand]);
+					}
+				}
+			} else {
+				for (int i = start; i != end; ++i) {
+					items[i] = heap.create(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Responsible for allocating items into a packed heap. Items are allocated
+	 * in the same order as for <code>AbstractSyntacticHeap.Allocator</code>.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Allocator implements SyntacticHeap.Allocator<AbstractPackedSyntacticHeap> {
+		private final AbstractPackedSyntacticHeap heap;
+		private final Map<SyntacticItem, Integer> map = new IdentityHashMap<>();
+
+		public Allocator(AbstractPackedSyntacticHeap heap) {
+			this.heap = heap;
+		}
+
+		@Override
+		public SyntacticItem allocate(SyntacticItem item) {
+			int index = lookup(item);
+			if (index >= 0) {
+				return heap.getSyntacticItem(index);
+			}
+			index = create(item);
+			ArrayList<SyntacticItem> items = new ArrayList<>();
+			int[] indices = new int[16];
+			int[] next = new int[16];
+			items.add(item);
+			indices[0] = index;
+			while (!items.isEmpty()) {
+				int top = items.size() - 1;
+				SyntacticItem original = items.get(top);
+				int i = next[top];
+				if (i == original.size()) {
+					// All children allocated
+					items.remove(top);
+					continue;
+				}
+				next[top]++;
+				SyntacticItem child = original.get(i);
+				int nChild = -1;
+				if (child != null) {
+					nChild = lookup(child);
+					if (nChild < 0) {
+						// Child not yet allocated, so allocate it (and its children) next
+						nChild = create(child);
+						if (items.size() == next.length) {
+							next = Arrays.copyOf(next, next.length * 2);
+							indices = Arrays.copyOf(indices, indices.length * 2);
+						}
+						next[items.size()] = 0;
+						indices[items.size()] = nChild;
+						items.add(child);
+					}
+				}
+				heap.setOperand(indices[top], i, nChild);
+			}
+			return heap.getSyntacticItem(index);
+		}
+
+		private int lookup(SyntacticItem item) {
+			int index = heap.indexOf(item);
+			if (index >= 0) {
+				// Item already allocated to this heap, hence nothing to do.
+				return index;
+			}
+			Integer nIndex = map.get(item);
+			return nIndex == null ? -1 : nIndex;
+		}
+
+		private int create(SyntacticItem item) {
+			int[] operands = new int[item.size()];
+			Arrays.fill(operands, -1);
+			int index = heap.add(item.getOpcode(), operands, item.getData());
+			map.put(item, index);
+			return index;
+		}
+	}
+
+	/**
+	 * A flyweight representing an item of a packed heap, which reads from (and
+	 * writes through to) the heap itself.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Item implements SyntacticItem {
+		private final AbstractPackedSyntacticHeap heap;
+		private final int index;
+
+		public Item(AbstractPackedSyntacticHeap heap, int index) {
+			this.heap = heap;
+			this.index = index;
+		}
+
+		@Override
+		public SyntacticHeap getHeap() {
+			return heap;
+		}
+
+		@Override
+		public void allocate(SyntacticHeap heap, int index) {
+			if (heap != this.heap || index != this.index) {
+				throw new IllegalArgumentException("flyweight cannot be reallocated");
+			}
+		}
+
+		@Override
+		public int getOpcode() {
+			return heap.getOpcode(index);
+		}
+
+		@Override
+		public void setOpcode(int opcode) {
+			heap.setOpcode(index, opcode);
+		}
+
+		@Override
+		public int size() {
+			return heap.getOperandCount(index);
+		}
+
+		@Override
+		public SyntacticItem get(int i) {
+			int operand = heap.getOperand(index, i);
+			return operand < 0 ? null : heap.getSyntacticItem(operand);
+		}
+
+		@Override
+		public SyntacticItem[] getAll() {
+			SyntacticItem[] items = new SyntacticItem[size()];
+			for (int i = 0; i != items.length; ++i) {
+				items[i] = get(i);
+			}
+			return items;
+		}
+
+		@Override
+		public void setOperand(int ith, SyntacticItem child) {
+			heap.setOperand(index, ith, child == null ? -1 : heap.allocate(child).getIndex());
+		}
+
+		@Override
+		public int getIndex() {
+			return index;
+		}
+
+		@Override
+		public byte[] getData() {
+			return heap.getData(index);
+		}
+
+		@Override
+		public <T extends SyntacticItem> T getParent(Class<T> kind) {
+			return heap.getParent(this, kind);
+		}
+
+		@Override
+		public <T extends SyntacticItem> List<T> getParents(Class<T> kind) {
+			return heap.getParents(this, kind);
+		}
+
+		@Override
+		public <T extends SyntacticItem> T getAncestor(Class<T> kind) {
+			return heap.getAncestor(this, kind);
+		}
+
+		/**
+		 * Construct a concrete (and unallocated) copy of this item with the given
+		 * operands, using the descriptor from the heap's schema.
+		 */
+		@Override
+		public SyntacticItem clone(SyntacticItem[] operands) {
+			int opcode = getOpcode();
+			return heap.schema.getDescriptor(opcode).construct(opcode, operands, getData());
+		}
+
+		@Override
+		public int compareTo(SyntacticItem other) {
+			int diff = getOpcode() - other.getOpcode();
+			if (diff != 0) {
+				return diff;
+			}
+			return Integer.compare(index, other.getIndex());
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(heap) ^ index;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Item) {
+				Item i = (Item) o;
+				return heap == i.heap && index == i.index;
+			}
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			String r = Integer.toString(getOpcode());
+			if (size() > 0) {
+				r += "(";
+				for (int i = 0; i != size(); ++i) {
+					if (i != 0) {
+						r += ", ";
+					}
+					int operand = heap.getOperand(index, i);
+					r += operand < 0 ? "?" : Integer.toString(operand);
+				}
+				r += ")";
+			}
+			return r;
+		}
+	}
+}
@@ -14,12 +14,18 @@
 package wybs.util;
 
 import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
 
 import wybs.lang.SyntacticHeap;
 import wybs.lang.SyntacticItem;
@@ -35,6 +41,93 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 */
 	protected int root;
 
+	/**
+	 * Index of the reverse edges in this heap. Specifically, the parents of the
+	 * item at index <code>i</code> are given by the entries of
+	 * <code>parentEdges</code> between <code>parentOffsets[i]</code> (inclusive)
+	 * and <code>parentOffsets[i+1]</code> (exclusive). Parents occur in ascending
+	 * order, with a parent repeated for each operand referring to the item. This
+	 * index is constructed on demand, and is <code>null</code> when it has been
+	 * invalidated by some change to the heap.
+	 */
+	private int[] parentOffsets;
+	private int[] parentEdges;
+
+	/**
+	 * Index of items in this heap partitioned by opcode. Specifically,
+	 * <code>opcodeItems[k]</code> holds (in ascending order) the indices of all
+	 * items with opcode <code>k</code>. Likewise, <code>opcodeKinds[k]</code>
+	 * holds the class of all such items, or <code>null</code> if they are not all
+	 * of the same class. This index is constructed on demand, and is
+	 * <code>null</code> when it has been invalidated by some change to the heap.
+	 */
+	private int[][] opcodeItems;
+	private Class<?>[] opcodeKinds;
+
+	/**
+	 * Caches the indices (in ascending order) of all items of a given kind, as
+	 * determined from the opcode index.
+	 */
+	private final HashMap<Class<?>, int[]> kindItems = new HashMap<>();
+
+	/**
+	 * The position of each item in a depth-first pre-order traversal from the
+	 * root, or <code>-1</code> for items unreachable from the root. This is
+	 * <code>null</code> if it has been invalidated, and is only valid whilst the
+	 * root remains at <code>preorderRoot</code>.
+	 */
+	private int[] preorder;
+	private int preorderRoot;
+
+	/**
+	 * Determines whether garbage collection is generational or not.
+	 */
+	private boolean generational;
+
+	/**
+	 * The number of items in the old generation. That is, all items which
+	 * survived the last garbage collection.
+	 */
+	private int watermark;
+
+	/**
+	 * Identifies those items in the old generation which have been modified since
+	 * the last garbage collection. These may refer to items in the young
+	 * generation and, hence, must be traversed by a generational collection.
+	 */
+	private final BitSet dirty = new BitSet();
+
+	/**
+	 * Determines whether allocated items are interned or not.
+	 */
+	private boolean interning;
+
+	/**
+	 * The interned items in this heap, keyed by themselves so that structurally
+	 * equal items can be found. The set of interned items is maintained
+	 * separately, so that checking whether a given item is interned does not
+	 * require hashing it.
+	 */
+	private final HashMap<SyntacticItem, SyntacticItem> interned = new HashMap<>();
+	private final Set<SyntacticItem> internedItems = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	/**
+	 * The number of allocations avoided by interning, indexed by opcode.
+	 */
+	private int[] internedCounts = new int[0];
+
+	/**
+	 * The snapshots taken of this heap which may still be in use.
+	 */
+	private final ArrayList<WeakReference<Snapshot>> snapshots = new ArrayList<>();
+
+	/**
+	 * Indicates whether any snapshot of this heap may still be in use. This allows
+	 * a modification to return early, without consulting the list of snapshots, in
+	 * the common case where none are live.
+	 */
+	private volatile boolean shared;
+
 	public AbstractSyntacticHeap() {
 
 	}
@@ -65,6 +158,7 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	@Override
 	public void setRootItem(SyntacticItem item) {
 		this.root = allocate(item).getIndex();
+		this.preorder = null;
 	}
 
 	@Override
@@ -72,8 +166,20 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 		return syntacticItems.get(index);
 	}
 
+	/**
+	 * Get the index of a given item in this heap. For items allocated in this heap,
+	 * this is determined in constant time from the index stored in the item
+	 * itself. Otherwise, the heap is scanned for the item.
+	 *
+	 * @param item
+	 * @return
+	 */
 	@Override
 	public int getIndexOf(SyntacticItem item) {
+		if (owns(item)) {
+			return item.getIndex();
+		}
+		// Fall back to scanning for foreign items
 		for (int i = 0; i != syntacticItems.size(); ++i) {
 			if (syntacticItems.get(i) == item) {
 				return i;
@@ -82,13 +188,20 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 		throw new IllegalArgumentException("invalid syntactic item");
 	}
 
+	/**
+	 * Get all items of a given kind in this heap, whether or not they are
+	 * reachable from the root. Items are returned in the order they occur in the
+	 * heap. This is determined from the opcode index and, hence, takes time
+	 * proportional to the number of matches (once the index is constructed).
+	 *
+	 * @param kind
+	 * @return
+	 */
 	public <T extends SyntacticItem> List<T> getSyntacticItems(Class<T> kind) {
-		ArrayList<T> matches = new ArrayList<>();
-		for (int i = 0; i != syntacticItems.size(); ++i) {
-			SyntacticItem item = syntacticItems.get(i);
-			if (kind.isInstance(item)) {
-				matches.add((T) item);
-			}
+		int[] indices = selectKind(kind);
+		ArrayList<T> matches = new ArrayList<>(indices.length);
+		for (int i = 0; i != indices.length; ++i) {
+			matches.add(kind.cast(syntacticItems.get(indices[i])));
 		}
 		return matches;
 	}
@@ -103,14 +216,13 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 */
 	@Override
 	public <T extends SyntacticItem> T getParent(SyntacticItem child, Class<T> kind) {
-		// FIXME: this could be optimised a *lot*
-		for (int i = 0; i != syntacticItems.size(); ++i) {
-			SyntacticItem parent = syntacticItems.get(i);
-			if(kind.isInstance(parent)) {
-				for(int j=0;j!=parent.size();++j) {
-					if(parent.get(j) == child) {
-						return (T) parent;
-					}
+		if (owns(child)) {
+			buildParentIndex();
+			int index = child.getIndex();
+			for (int i = parentOffsets[index]; i < parentOffsets[index + 1]; ++i) {
+				SyntacticItem parent = syntacticItems.get(parentEdges[i]);
+				if (kind.isInstance(parent)) {
+					return (T) parent;
 				}
 			}
 		}
@@ -121,13 +233,13 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	@Override
 	public <T extends SyntacticItem> List<T> getParents(SyntacticItem child, Class<T> kind) {
 		List<T> parents = new ArrayList<>();
-		for (int i = 0; i != syntacticItems.size(); ++i) {
-			SyntacticItem parent = syntacticItems.get(i);
-			if(kind.isInstance(parent)) {
-				for(int j=0;j!=parent.size();++j) {
-					if(parent.get(j) == child) {
-						parents.add((T) parent);
-					}
+		if (owns(child)) {
+			buildParentIndex();
+			int index = child.getIndex();
+			for (int i = parentOffsets[index]; i < parentOffsets[index + 1]; ++i) {
+				SyntacticItem parent = syntacticItems.get(parentEdges[i]);
+				if (kind.isInstance(parent)) {
+					parents.add((T) parent);
 				}
 			}
 		}
@@ -145,73 +257,257 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 */
 	@Override
 	public <T extends SyntacticItem> T getAncestor(SyntacticItem child, Class<T> kind) {
-		// FIXME: this could be optimised a *lot*
 		if (kind.isInstance(child)) {
 			return (T) child;
-		} else {
-			for (int i = 0; i != syntacticItems.size(); ++i) {
-				SyntacticItem parent = syntacticItems.get(i);
-				for (int j = 0; j != parent.size(); ++j) {
+		} else if (owns(child)) {
+			buildParentIndex();
+			// Depth-first search through parents, in the same order as a recursive
+			// traversal.
+			BitSet visited = new BitSet();
+			int[] stack = new int[16];
+			int top = 0;
+			stack[top++] = child.getIndex();
+			while (top > 0) {
+				int index = stack[--top];
+				if (visited.get(index)) {
+					continue;
+				}
+				visited.set(index);
+				SyntacticItem item = syntacticItems.get(index);
+				if (kind.isInstance(item)) {
+					return (T) item;
+				}
+				// Push parents in reverse, so they are visited in ascending order
+				for (int i = parentOffsets[index + 1] - 1; i >= parentOffsets[index]; --i) {
+					int parent = parentEdges[i];
 					// Don't follow cross-references
-					if (parent.get(j) == child && !(parent instanceof AbstractCompilationUnit.Ref)) {
-						// FIXME: this is not specifically efficient. It would
-						// be helpful if SyntacticItems actually contained
-						// references to their parent items.
-						T tmp = getAncestor(parent, kind);
-						if (tmp != null) {
-							return tmp;
+					if (!(syntacticItems.get(parent) instanceof AbstractCompilationUnit.Ref)) {
+						if (top == stack.length) {
+							stack = Arrays.copyOf(stack, stack.length * 2);
 						}
+						stack[top++] = parent;
 					}
 				}
 			}
-			// no match
-			return null;
 		}
+		// no match
+		return null;
 	}
 
+	/**
+	 * Find all items of a given kind which are reachable from the root. Items are
+	 * returned in the order they are first encountered by a depth-first traversal
+	 * from the root which visits the operands of each item in order (i.e. in
+	 * pre-order). This is determined from the opcode index, filtered and then
+	 * sorted using the pre-order position of each item. Hence, it takes time
+	 * proportional to <code>k log k</code> for <code>k</code> items of the given
+	 * kind (once both are constructed).
+	 *
+	 * @param kind
+	 * @return
+	 */
 	@Override
 	public <T extends SyntacticItem> List<T> findAll(Class<T> kind) {
-		ArrayList<T> matches = new ArrayList<>();
-		findAll(getRootItem(), kind, matches, new BitSet());
+		int[] indices = selectKind(kind);
+		int[] preorder = findPreorder();
+		// Pack pre-order position and index together, so sorting orders by the former
+		long[] order = new long[indices.length];
+		int count = 0;
+		for (int i = 0; i != indices.length; ++i) {
+			int index = indices[i];
+			if (preorder[index] >= 0) {
+				order[count++] = ((long) preorder[index] << 32) | index;
+			}
+		}
+		Arrays.sort(order, 0, count);
+		ArrayList<T> matches = new ArrayList<>(count);
+		for (int i = 0; i != count; ++i) {
+			matches.add(kind.cast(syntacticItems.get((int) order[i])));
+		}
 		return matches;
 	}
 
 	@Override
 	public <T extends SyntacticItem> void replace(T from, T to) {
 		replaceAll(getRootItem(), from, to, new BitSet());
+		invalidateIndices();
 	}
 
 	@Override
 	public <T extends SyntacticItem> T allocate(T item) {
-		return (T) new Allocator(this).allocate(item);
+		Allocator allocator = interning ? new InterningAllocator(this) : new Allocator(this);
+		return (T) allocator.allocate(item);
+	}
+
+	/**
+	 * <p>
+	 * Enable or disable interning of constants allocated into this heap. In this
+	 * mode, a constant (i.e. an instance of <code>Value</code>) is not allocated
+	 * when an equal constant was already allocated (whilst in this mode), and the
+	 * existing constant is returned instead. Other items are never interned, since
+	 * they typically carry attributes (e.g. source spans) which must not be shared
+	 * between occurrences.
+	 * </p>
+	 * <p>
+	 * Interned constants are shared and, hence, are immutable. Attempting to
+	 * modify one, or to allocate an attribute for one, results in an exception.
+	 * Constants which are the target of a reference or attribute allocated at the
+	 * same time are not interned, and remain mutable.
+	 * </p>
+	 *
+	 * @param interning
+	 */
+	public void setInterning(boolean interning) {
+		this.interning = interning;
+	}
+
+	/**
+	 * Get the total number of allocations avoided by interning.
+	 *
+	 * @return
+	 */
+	public int getInternedCount() {
+		int total = 0;
+		for (int count : internedCounts) {
+			total += count;
+		}
+		return total;
 	}
 
 	/**
-	 * Force a garbage collection event. This removes all items which are unreachable from the root, and compacts those remaining down.
+	 * Get the number of allocations avoided by interning for items with a given
+	 * opcode.
 	 *
+	 * @param opcode
 	 * @return
 	 */
+	public int getInternedCount(int opcode) {
+		return opcode < internedCounts.length ? internedCounts[opcode] : 0;
+	}
+
+	/**
+	 * Force a garbage collection event. This removes all items which are
+	 * unreachable from the root, and compacts those remaining down. In
+	 * generational mode, this only considers items allocated since the last
+	 * collection.
+	 *
+	 * @return True if any items were removed.
+	 */
 	@Override
 	public boolean gc() {
+		int[] remap = compact(!generational);
+		return remap.length > syntacticItems.size();
+	}
+
+	/**
+	 * <p>
+	 * Take a read-only snapshot of this heap in its current state. This takes
+	 * constant time, since the snapshot initially shares all items with this
+	 * heap. Subsequently, an item is copied into the snapshot only when it is
+	 * first modified (e.g. via <code>setOperand()</code>). Items allocated after
+	 * the snapshot was taken are not visible in it. A garbage collection of this
+	 * heap changes the index of items and, hence, causes each snapshot to copy
+	 * any items it still shares.
+	 * </p>
+	 * <p>
+	 * Observe that, whilst a snapshot still shares items, these may not be
+	 * navigated directly (e.g. via <code>get()</code>), as this may expose their
+	 * current state. Instead, operands should be resolved through the snapshot
+	 * by index, using <code>getSyntacticItem()</code> and
+	 * <code>getIndexOf()</code>.
+	 * </p>
+	 *
+	 * @return
+	 */
+	public SyntacticHeap snapshot() {
+		Snapshot snapshot = new Snapshot(this);
+		snapshots.add(new WeakReference<>(snapshot));
+		shared = true;
+		return snapshot;
+	}
+
+	/**
+	 * Enable or disable generational garbage collection. In this mode, items which
+	 * survive a collection are promoted to the <i>old generation</i>, and are not
+	 * considered by subsequent calls to <code>gc()</code>. Thus, each collection
+	 * only traverses the items allocated since the previous collection, along with
+	 * any old items whose operands have since been modified. This makes frequent
+	 * collections cheap, at the cost of retaining old items which later become
+	 * unreachable until the next full collection.
+	 *
+	 * @param generational
+	 */
+	public void setGenerational(boolean generational) {
+		this.generational = generational;
+	}
+
+	/**
+	 * Remove unreachable items and compact those remaining down, whilst preserving
+	 * their relative order. This returns a table which maps the old index of each
+	 * item to its new index, or to <code>-1</code> for items which were removed.
+	 * This allows external tables indexed by items in this heap to be updated
+	 * accordingly.
+	 *
+	 * @param full
+	 *            Determines whether to consider all items in the heap or, otherwise,
+	 *            only those allocated since the last collection.
+	 * @return
+	 */
+	public int[] compact(boolean full) {
+		// Compaction changes the index of items, so snapshots must be detached
+		for (WeakReference<Snapshot> ref : snapshots) {
+			Snapshot snapshot = ref.get();
+			if (snapshot != null) {
+				snapshot.detach();
+			}
+		}
+		snapshots.clear();
+		shared = false;
+		final int n = syntacticItems.size();
+		// Items below this index are retained without consideration
+		final int start = full ? 0 : Math.min(watermark, n);
 		// Mark all reachable items
-		BitSet reachable = findReachable(getRootItem(), new BitSet());
+		BitSet reachable = new BitSet(n);
+		if (full) {
+			findReachable(getRootItem(), reachable);
+		} else {
+			markYoung(start, reachable);
+		}
 		// Sweep all unreachable items away
-		int count = 0;
-		for(int i=0;i!=syntacticItems.size();++i) {
-			if(reachable.get(i)) {
+		int[] remap = new int[n];
+		int count = start;
+		for (int i = 0; i != n; ++i) {
+			if (i < start) {
+				remap[i] = i;
+			} else if (reachable.get(i)) {
 				SyntacticItem item = syntacticItems.get(i);
 				// Reset the index of this item
 				item.allocate(this, count);
 				// Move the item down
-				syntacticItems.set(count++, item);
+				syntacticItems.set(count, item);
+				remap[i] = count++;
+			} else {
+				remap[i] = -1;
 			}
 		}
-		// Remove all unreachable items.
-		for (int i = syntacticItems.size(); i > count; i = i - 1) {
-			syntacticItems.remove(i - 1);
+		// Remove all unreachable items in one go.
+		syntacticItems.subList(count, n).clear();
+		// Removed items can no longer be interned
+		if (!internedItems.isEmpty()) {
+			internedItems.removeIf(item -> {
+				if (!owns(item)) {
+					interned.remove(item);
+					return true;
+				}
+				return false;
+			});
 		}
-		// Indicate whether anything changed
-		return count < syntacticItems.size();
+		// Survivors are now in the old generation
+		root = remap[root];
+		watermark = count;
+		dirty.clear();
+		invalidateIndices();
+		return remap;
 	}
 
 	public void print(PrintWriter out) {
@@ -255,41 +551,354 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	// HELPERS
 	// ========================================================================
 
-	private static <T extends SyntacticItem> void findAll(SyntacticItem item, Class<T> kind, ArrayList<T> matches,
-			BitSet visited) {
+	/**
+	 * Signal that a given item in this heap is about to be modified. This
+	 * preserves the item for any snapshots, records it for generational garbage
+	 * collection, and invalidates any indices maintained for this heap.
+	 *
+	 * @param item
+	 */
+	protected void modifying(SyntacticItem item) {
+		if (shared) {
+			preserve(item);
+		}
 		int index = item.getIndex();
-		// Check whether already visited this item
-		if (!visited.get(index)) {
-			visited.set(index);
-			// Check whether this item has a marker associated with it.
-			if (kind.isInstance(item)) {
-				// At least one marked assocaited with item.
-				matches.add((T) item);
+		if (index < watermark) {
+			dirty.set(index);
+		}
+		if (internedItems.contains(item)) {
+			throw new UnsupportedOperationException("cannot modify interned item");
+		}
+		invalidateIndices();
+	}
+
+	/**
+	 * Preserve a given item which is about to be modified for every snapshot still
+	 * in use, discarding those which are not.
+	 *
+	 * @param item
+	 */
+	private void preserve(SyntacticItem item) {
+		Iterator<WeakReference<Snapshot>> iterator = snapshots.iterator();
+		while (iterator.hasNext()) {
+			Snapshot snapshot = iterator.next().get();
+			if (snapshot == null) {
+				// Snapshot no longer in use
+				iterator.remove();
+			} else {
+				snapshot.preserve(item);
+			}
+		}
+		shared = !snapshots.isEmpty();
+	}
+
+	/**
+	 * Record that an allocation of an item with a given opcode was avoided by
+	 * interning.
+	 *
+	 * @param opcode
+	 */
+	private void recordInterned(int opcode) {
+		if (opcode >= internedCounts.length) {
+			internedCounts = Arrays.copyOf(internedCounts, opcode + 1);
+		}
+		internedCounts[opcode]++;
+	}
+
+	/**
+	 * Check whether a given item is interned in this heap and, hence, is shared
+	 * and immutable.
+	 *
+	 * @param item
+	 * @return
+	 */
+	public boolean isInterned(SyntacticItem item) {
+		return internedItems.contains(item);
+	}
+
+	/**
+	 * Invalidate any indices maintained for this heap. This must be called
+	 * whenever an item is allocated, or an existing item is modified.
+	 */
+	protected void invalidateIndices() {
+		parentOffsets = null;
+		parentEdges = null;
+		opcodeItems = null;
+		opcodeKinds = null;
+		kindItems.clear();
+		preorder = null;
+	}
+
+	/**
+	 * Check whether a given item is currently allocated in this heap. That is, the
+	 * item is associated with this heap, and is located at its given index. Items
+	 * removed by garbage collection are not owned, even though they remain
+	 * associated with this heap.
+	 *
+	 * @param item
+	 * @return
+	 */
+	private boolean owns(SyntacticItem item) {
+		if (item.getHeap() == this) {
+			int index = item.getIndex();
+			return index < syntacticItems.size() && syntacticItems.get(index) == item;
+		}
+		return false;
+	}
+
+	/**
+	 * Construct the index of reverse edges for this heap (if not already
+	 * constructed). This requires two passes over the heap: the first counts the
+	 * number of parents for each item; the second records them.
+	 */
+	private void buildParentIndex() {
+		if (parentOffsets != null) {
+			return;
+		}
+		final int n = syntacticItems.size();
+		int[] offsets = new int[n + 1];
+		// Count parents of each item
+		for (int i = 0; i != n; ++i) {
+			SyntacticItem item = syntacticItems.get(i);
+			for (int j = 0; j != item.size(); ++j) {
+				SyntacticItem child = item.get(j);
+				if (child != null && owns(child)) {
+					offsets[child.getIndex() + 1]++;
+				}
+			}
+		}
+		// Convert counts into offsets
+		for (int i = 0; i != n; ++i) {
+			offsets[i + 1] += offsets[i];
+		}
+		// Record parents of each item
+		int[] edges = new int[offsets[n]];
+		int[] next = Arrays.copyOf(offsets, n);
+		for (int i = 0; i != n; ++i) {
+			SyntacticItem item = syntacticItems.get(i);
+			for (int j = 0; j != item.size(); ++j) {
+				SyntacticItem child = item.get(j);
+				if (child != null && owns(child)) {
+					edges[next[child.getIndex()]++] = i;
+				}
+			}
+		}
+		this.parentOffsets = offsets;
+		this.parentEdges = edges;
+	}
+
+	/**
+	 * Construct the opcode index for this heap (if not already constructed). As
+	 * for the parent index, this requires two passes over the heap.
+	 */
+	private void buildOpcodeIndex() {
+		if (opcodeItems != null) {
+			return;
+		}
+		final int n = syntacticItems.size();
+		// Count items with each opcode
+		int[] counts = new int[0];
+		for (int i = 0; i != n; ++i) {
+			int opcode = syntacticItems.get(i).getOpcode();
+			if (opcode < 0) {
+				throw new IllegalArgumentException("invalid opcode (" + opcode + ")");
+			} else if (opcode >= counts.length) {
+				counts = Arrays.copyOf(counts, opcode + 1);
+			}
+			counts[opcode]++;
+		}
+		int[][] items = new int[counts.length][];
+		Class<?>[] kinds = new Class<?>[counts.length];
+		for (int k = 0; k != counts.length; ++k) {
+			items[k] = new int[counts[k]];
+			counts[k] = 0;
+		}
+		// Record items with each opcode
+		for (int i = 0; i != n; ++i) {
+			SyntacticItem item = syntacticItems.get(i);
+			int opcode = item.getOpcode();
+			int count = counts[opcode]++;
+			items[opcode][count] = i;
+			if (count == 0) {
+				kinds[opcode] = item.getClass();
+			} else if (kinds[opcode] != item.getClass()) {
+				kinds[opcode] = null;
+			}
+		}
+		this.opcodeItems = items;
+		this.opcodeKinds = kinds;
+	}
+
+	/**
+	 * Determine the indices of all items in this heap of a given kind. This is
+	 * done by taking the union of the opcodes whose items are of the given kind.
+	 * Opcodes whose items are not all of the same class are filtered individually.
+	 *
+	 * @param kind
+	 * @return
+	 */
+	private int[] selectKind(Class<?> kind) {
+		buildOpcodeIndex();
+		int[] indices = kindItems.get(kind);
+		if (indices == null) {
+			int count = 0;
+			int opcodes = 0;
+			indices = new int[16];
+			for (int k = 0; k != opcodeItems.length; ++k) {
+				int[] items = opcodeItems[k];
+				Class<?> k_kind = opcodeKinds[k];
+				if (items.length == 0 || (k_kind != null && !kind.isAssignableFrom(k_kind))) {
+					continue;
+				}
+				for (int i = 0; i != items.length; ++i) {
+					int index = items[i];
+					if (k_kind != null || kind.isInstance(syntacticItems.get(index))) {
+						if (count == indices.length) {
+							indices = Arrays.copyOf(indices, Math.max(count + items.length, count * 2));
+						}
+						indices[count++] = index;
+					}
+				}
+				opcodes++;
+			}
+			indices = Arrays.copyOf(indices, count);
+			if (opcodes > 1) {
+				// Restore heap order across opcodes
+				Arrays.sort(indices);
 			}
-			// Recursive children looking for other syntactic markers
-			for (int i = 0; i != item.size(); ++i) {
-				findAll(item.get(i), kind, matches, visited);
+			kindItems.put(kind, indices);
+		}
+		return indices;
+	}
+
+	/**
+	 * Determine the pre-order position of every item reachable from the root (if
+	 * not already determined). Unlike garbage collection, this does traverse
+	 * references.
+	 *
+	 * @return
+	 */
+	private int[] findPreorder() {
+		if (preorder == null || preorderRoot != root) {
+			preorder = numberAll(getRootItem());
+			preorderRoot = root;
+		}
+		return preorder;
+	}
+
+	/**
+	 * Mark all items in the young generation which are reachable from the root,
+	 * assuming every item in the old generation is reachable. The items traversed
+	 * are the root (if young), and the operands of any old items modified since
+	 * the last collection. Only young items are traversed further since, otherwise,
+	 * an old item can only refer to young items if it was modified.
+	 *
+	 * @param start
+	 *            The index of the first item in the young generation.
+	 * @param visited
+	 */
+	private void markYoung(int start, BitSet visited) {
+		ArrayList<SyntacticItem> worklist = new ArrayList<>();
+		worklist.add(getRootItem());
+		for (int i = dirty.nextSetBit(0); i >= 0 && i < start; i = dirty.nextSetBit(i + 1)) {
+			SyntacticItem item = syntacticItems.get(i);
+			if (item instanceof AbstractCompilationUnit.Ref) {
+				// NOTE: do not traverse references as these are non-owning pointers.
+				continue;
+			}
+			for (int j = 0; j != item.size(); ++j) {
+				SyntacticItem child = item.get(j);
+				if (child != null) {
+					worklist.add(child);
+				}
+			}
+		}
+		while (!worklist.isEmpty()) {
+			SyntacticItem item = worklist.remove(worklist.size() - 1);
+			int index = item.getIndex();
+			// Check whether already visited this item, or it is old
+			if (index >= start && !visited.get(index)) {
+				visited.set(index);
+				// NOTE: do not traverse references as these are non-owning pointers.
+				if (!(item instanceof AbstractCompilationUnit.Ref)) {
+					for (int i = 0; i != item.size(); ++i) {
+						SyntacticItem child = item.get(i);
+						if (child != null) {
+							worklist.add(child);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Number all items reachable from a given item, including through references,
+	 * in the order they are visited by a depth-first traversal. Operands are
+	 * pushed in reverse, so they are visited in the same order as for a recursive
+	 * traversal. Items which are no longer in this heap (e.g. those referenced
+	 * from a reference whose target was garbage collected) are ignored.
+	 *
+	 * @param item
+	 * @return The position of each item, or <code>-1</code> for those which are
+	 *         not reachable.
+	 */
+	private int[] numberAll(SyntacticItem item) {
+		int[] numbers = new int[syntacticItems.size()];
+		Arrays.fill(numbers, -1);
+		int count = 0;
+		ArrayList<SyntacticItem> worklist = new ArrayList<>();
+		worklist.add(item);
+		while (!worklist.isEmpty()) {
+			item = worklist.remove(worklist.size() - 1);
+			int index = item.getIndex();
+			// Check whether already visited this item
+			if (numbers[index] < 0) {
+				numbers[index] = count++;
+				for (int i = item.size() - 1; i >= 0; --i) {
+					SyntacticItem child = item.get(i);
+					if (child != null && owns(child)) {
+						worklist.add(child);
+					}
+				}
 			}
 		}
+		return numbers;
 	}
 
+	/**
+	 * Replace all occurrences of one item (<code>from</code>) with another
+	 * (<code>to</code>) in those items reachable from a given item, except for
+	 * those only reachable through <code>from</code>. This uses an explicit
+	 * worklist and, hence, is not limited by the depth of the heap.
+	 *
+	 * @param item
+	 * @param from
+	 * @param to
+	 * @param visited
+	 */
 	private static <T extends SyntacticItem> void replaceAll(SyntacticItem item, T from, T to, BitSet visited) {
-		int index = item.getIndex();
-		// Check whether already visited this item
-		if (item != from && !visited.get(index)) {
-			// Record that have now visited
-			visited.set(index);
-			// Attempt the replacement
-			SyntacticItem[] children = item.getAll();
-			if(children != null) {
-				for (int i = 0; i != children.length; ++i) {
-					// Apply the replacement.
-					if (children[i] == from) {
-						// Time for replacement!
-						item.setOperand(i, to);
-					} else {
-						// Recursively traverse children.
-						replaceAll(children[i],from,to,visited);
+		ArrayList<SyntacticItem> worklist = new ArrayList<>();
+		worklist.add(item);
+		while (!worklist.isEmpty()) {
+			item = worklist.remove(worklist.size() - 1);
+			int index = item.getIndex();
+			// Check whether already visited this item
+			if (item != from && !visited.get(index)) {
+				// Record that have now visited
+				visited.set(index);
+				// Attempt the replacement
+				SyntacticItem[] children = item.getAll();
+				if (children != null) {
+					for (int i = 0; i != children.length; ++i) {
+						// Apply the replacement.
+						if (children[i] == from) {
+							// Time for replacement!
+							item.setOperand(i, to);
+						} else if (children[i] != null) {
+							// Traverse children later
+							worklist.add(children[i]);
+						}
 					}
 				}
 			}
@@ -305,16 +914,23 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 * @return
 	 */
 	public static BitSet findReachable(SyntacticItem item, BitSet visited) {
-		int index = item.getIndex();
-		// Check whether already visited this item
-		if (!visited.get(index)) {
-			visited.set(index);
-			if(item instanceof AbstractCompilationUnit.Ref) {
-				// NOTE: do not traverse references as these are non-owning pointers.
-			} else {
-				// Recursive children looking for other syntactic markers
-				for (int i = 0; i != item.size(); ++i) {
-					findReachable(item.get(i), visited);
+		ArrayList<SyntacticItem> worklist = new ArrayList<>();
+		worklist.add(item);
+		while (!worklist.isEmpty()) {
+			item = worklist.remove(worklist.size() - 1);
+			int index = item.getIndex();
+			// Check whether already visited this item
+			if (!visited.get(index)) {
+				visited.set(index);
+				if (item instanceof AbstractCompilationUnit.Ref) {
+					// NOTE: do not traverse references as these are non-owning pointers.
+				} else {
+					for (int i = 0; i != item.size(); ++i) {
+						SyntacticItem child = item.get(i);
+						if (child != null) {
+							worklist.add(child);
+						}
+					}
 				}
 			}
 		}
@@ -333,50 +949,24 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 * @return
 	 */
 	private static <T extends SyntacticItem> T clone(T item, Map<SyntacticItem, SyntacticItem> mapping) {
-		SyntacticItem clonedItem = mapping.get(item);
-		if (clonedItem == null) {
-			// Item not previously cloned. Therefore, first create new item
-			SyntacticItem[] operands = new SyntacticItem[item.size()];
-			for (int i = 0; i != operands.length; ++i) {
-				SyntacticItem operand = item.get(i);
-				if (operand != null) {
-					operands[i] = clone(operand, mapping);
-				}
+		return (T) rebuild(item, mapping, (original, operands) -> {
+			if (operands == original.getAll()) {
+				// Item has no (non-null) operands, but must still be copied
+				operands = new SyntacticItem[original.size()];
 			}
-			// Now, create new item and store that for later.
-			clonedItem = item.clone(operands);
-			mapping.put(item, clonedItem);
-		}
-		return (T) clonedItem;
+			return original.clone(operands);
+		});
 	}
 
 	public static <T extends SyntacticItem> T cloneOnly(T item, Map<SyntacticItem, SyntacticItem> mapping, Class<?> clazz) {
-		SyntacticItem clonedItem = mapping.get(item);
-		if (clonedItem == null) {
-			// Item not previously cloned. Therefore, first create new item
-			SyntacticItem[] operands = item.getAll();
-			SyntacticItem[] nOperands = operands;
-			if (operands != null) {
-				for (int i = 0; i != operands.length; ++i) {
-					SyntacticItem operand = operands[i];
-					if (operand != null) {
-						SyntacticItem nOperand = cloneOnly(operand, mapping,clazz);
-						if(nOperand != operand && operands == nOperands) {
-							nOperands = Arrays.copyOf(operands, operands.length);
-						}
-						nOperands[i] = nOperand;
-					}
-				}
-			}
-			// Now, create new item and store that for later.
-			if(nOperands != operands || clazz.isInstance(item)) {
-				clonedItem = item.clone(nOperands);
-				mapping.put(item, clonedItem);
+		return (T) rebuild(item, mapping, (original, operands) -> {
+			// Only create new item if necessary
+			if (operands != original.getAll() || clazz.isInstance(original)) {
+				return original.clone(operands);
 			} else {
-				clonedItem = item;
+				return original;
 			}
-		}
-		return (T) clonedItem;
+		});
 	}
 
 	/**
@@ -396,8 +986,8 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 * <p>
 	 * This method preserves the underlying aliasing structure of the object
 	 * being cloned. However, aliasing information is not preserved across calls
-	 * to this method. Furthermore, it is not currently capable of handling
-	 * cyclic structures.
+	 * to this method. Furthermore, it is not capable of handling cyclic
+	 * structures.
 	 * </p>
 	 *
 	 * @param item
@@ -409,7 +999,20 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 * @return
 	 */
 	public static SyntacticItem substitute(SyntacticItem item, SyntacticItem from, SyntacticItem to) {
-		SyntacticItem nItem = substitute(item, from, to, new IdentityHashMap<>());
+		Map<SyntacticItem, SyntacticItem> mapping = new IdentityHashMap<>();
+		// We've matched the item being replaced, therefore return the item
+		// to which it is being replaced.
+		mapping.put(from, to);
+		SyntacticItem nItem = rebuild(item, mapping, (original, children) -> {
+			// Clone the original item if necessary. This is only necessary if the
+			// children array as been updated in some way.
+			if (children != original.getAll()) {
+				// Create the new item which, at this point, will be detached.
+				return original.clone(children);
+			} else {
+				return original;
+			}
+		});
 		if(nItem != item) {
 			item.getHeap().allocate(nItem);
 		}
@@ -417,68 +1020,96 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	}
 
 	/**
-	 * Helper method for above.
+	 * <p>
+	 * Rebuild a given item by first rebuilding its children, and then applying a
+	 * given constructor. The constructor is passed the original item and its
+	 * rebuilt children. If no children were changed, then the children passed
+	 * are exactly those of the original item (i.e. the same array). Otherwise, a
+	 * fresh array is passed. Items are rebuilt in the same order as for a
+	 * recursive depth-first traversal. However, this uses an explicit stack and,
+	 * hence, is not limited by the depth of the item.
+	 * </p>
+	 * <p>
+	 * Items which are rebuilt as something different are recorded in the given
+	 * mapping, and this is used to preserve the underlying aliasing structure.
+	 * An item can be mapped in advance to force its replacement.
+	 * </p>
 	 *
+	 * @param item
 	 * @param mapping
-	 *            A mapping from the original syntactic items to the cloned
-	 *            syntactic items. This is necessary to preserve the aliasing
-	 *            structure in the resulting cloned item.
+	 * @param constructor
+	 * @return
 	 */
-	private static SyntacticItem substitute(SyntacticItem item, SyntacticItem from, SyntacticItem to,
-			Map<SyntacticItem, SyntacticItem> mapping) {
-		SyntacticItem sItem = mapping.get(item);
-		if (sItem != null) {
-			// We've previously substituted this item already to produce a
-			// potentially updated item. Therefore, simply return that item to
-			// ensure the original aliasing structure of the ancestor(s) is
-			// properly preserved.
-			return sItem;
-		} else if (item == from) {
-			// We've matched the item being replaced, therefore return the item
-			// to which it is being replaced.
-			return to;
-		} else {
-			SyntacticItem nItem = item;
-			// We need to recursively descend into children of this item looking
-			// for the item to replace. The challenge here is that we need to
-			// ensure the original item is preserved as is if there is no
-			// change.
-			SyntacticItem[] children = item.getAll();
-			// Initially, this will alias children. In the event of a child
-			// which is actually updated, then this will refer to a new array.
-			// That will be the signal that we need to create a new item to
-			// return.
-			SyntacticItem[] nChildren = children;
-			if (children != null) {
-				for (int i = 0; i != children.length; ++i) {
-					SyntacticItem child = children[i];
-					// Check for null, since we don't want to try and substitute
-					// into null.
-					if (child != null) {
-						// Perform the substitution in the given child
-						SyntacticItem nChild = substitute(child, from, to, mapping);
-						// Check whether anything was actually changed by the
-						// substitution.
-						if (nChild != child && children == nChildren) {
-							// Yes, the child changed and we haven't already
-							// cloned the children array. Hence, we'd better
-							// clone it now to make sure that the original item
-							// is preserved.
-							nChildren = Arrays.copyOf(children, children.length);
-						}
-						nChildren[i] = nChild;
+	private static SyntacticItem rebuild(SyntacticItem item, Map<SyntacticItem, SyntacticItem> mapping,
+			BiFunction<SyntacticItem, SyntacticItem[], SyntacticItem> constructor) {
+		// Items which were rebuilt without change
+		Set<SyntacticItem> unchanged = Collections.newSetFromMap(new IdentityHashMap<>());
+		// Items currently being rebuilt, used to detect cycles
+		Set<SyntacticItem> active = Collections.newSetFromMap(new IdentityHashMap<>());
+		SyntacticItem nItem = mapping.get(item);
+		if (nItem != null) {
+			return nItem;
+		}
+		ArrayList<Frame> stack = new ArrayList<>();
+		stack.add(new Frame(item));
+		active.add(item);
+		while (true) {
+			Frame frame = stack.get(stack.size() - 1);
+			SyntacticItem[] children = frame.children;
+			if (children != null && frame.next < children.length) {
+				SyntacticItem child = children[frame.next];
+				if (child == null) {
+					// Don't try to rebuild null.
+					frame.next++;
+					continue;
+				}
+				SyntacticItem nChild = unchanged.contains(child) ? child : mapping.get(child);
+				if (nChild == null) {
+					// Child not yet rebuilt, so do that first
+					if (!active.add(child)) {
+						throw new IllegalArgumentException("cyclic syntactic item");
 					}
+					stack.add(new Frame(child));
+					continue;
+				} else if (nChild != child && children == frame.nChildren) {
+					// Child changed, so copy children to preserve the original item.
+					frame.nChildren = Arrays.copyOf(children, children.length);
 				}
-				// Now, clone the original item if necessary. This is only
-				// necessary if the children array as been updated in some way.
-				if (children != nChildren) {
-					// Create the new item which, at this point, will be
-					// detached.
-					nItem = item.clone(nChildren);
+				frame.nChildren[frame.next++] = nChild;
+			} else {
+				// All children now rebuilt
+				stack.remove(stack.size() - 1);
+				active.remove(frame.item);
+				nItem = constructor.apply(frame.item, frame.nChildren);
+				if (nItem == frame.item) {
+					unchanged.add(nItem);
+				} else {
+					mapping.put(frame.item, nItem);
+				}
+				if (stack.isEmpty()) {
+					return nItem;
 				}
 			}
-			mapping.put(item, nItem);
-			return nItem;
+		}
+	}
+
+	/**
+	 * Represents an item being rebuilt, along with the progress made through its
+	 * children.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Frame {
+		private final SyntacticItem item;
+		private final SyntacticItem[] children;
+		private SyntacticItem[] nChildren;
+		private int next;
+
+		public Frame(SyntacticItem item) {
+			this.item = item;
+			this.children = item.getAll();
+			this.nChildren = children;
 		}
 	}
 
@@ -491,36 +1122,616 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 			this.map = new IdentityHashMap<>();
 		}
 
+		/**
+		 * Allocate a given item and, recursively, its children into the heap.
+		 * Items are allocated in the same order as for a recursive depth-first
+		 * traversal. However, this uses an explicit stack and, hence, is not
+		 * limited by the depth of the item.
+		 *
+		 * @param item
+		 * @return
+		 */
 		@Override
 		public SyntacticItem allocate(SyntacticItem item) {
-			SyntacticHeap parent = item.getHeap();
+			SyntacticItem nItem = lookup(item);
+			if (nItem != null) {
+				return nItem;
+			}
+			nItem = create(item, new SyntacticItem[item.size()]);
+			// Item not allocated to this heap. Therefore, allocate all children.
+			ArrayList<SyntacticItem> items = new ArrayList<>();
+			ArrayList<SyntacticItem> nItems = new ArrayList<>();
+			int[] next = new int[16];
+			items.add(item);
+			nItems.add(nItem);
+			while (!items.isEmpty()) {
+				int top = items.size() - 1;
+				SyntacticItem original = items.get(top);
+				int i = next[top];
+				if (i == original.size()) {
+					// All children allocated
+					items.remove(top);
+					nItems.remove(top);
+					continue;
+				}
+				next[top]++;
+				SyntacticItem child = original.get(i);
+				if (child != null) {
+					SyntacticItem nChild = lookup(child);
+					if (nChild == null) {
+						// Child not yet allocated, so allocate it (and its children) next
+						nChild = create(child, new SyntacticItem[child.size()]);
+						if (items.size() == next.length) {
+							next = Arrays.copyOf(next, next.length * 2);
+						}
+						next[items.size()] = 0;
+						items.add(child);
+						nItems.add(nChild);
+					}
+					child = nChild;
+				}
+				checkOperand(original, i, child);
+				nItems.get(top).setOperand(i, child);
+			}
+			return nItem;
+		}
+
+		/**
+		 * Determine the allocated item corresponding to a given item, or
+		 * <code>null</code> if this has not yet been allocated.
+		 *
+		 * @param item
+		 * @return
+		 */
+		protected SyntacticItem lookup(SyntacticItem item) {
 			SyntacticItem allocated = map.get(item);
 			if (allocated != null) {
 				return allocated;
-			} else if (parent == heap) {
+			} else if (item.getHeap() == heap) {
 				// Item already allocated to this heap, hence nothing to do.
 				return item;
 			} else {
-				// Determine index for allocation
-				int index = heap.size();
-				// Clone item prior to allocation
-				SyntacticItem nItem = item.clone(new SyntacticItem[item.size()]);
-				// Allocate item
-				heap.syntacticItems.add(nItem);
-				// ... and allocate item itself
-				nItem.allocate(heap, index);
+				return null;
+			}
+		}
+
+		/**
+		 * Allocate a copy of a given item into the heap, using the given operands
+		 * for the copy.
+		 *
+		 * @param item
+		 * @param operands
+		 * @return
+		 */
+		protected SyntacticItem create(SyntacticItem item, SyntacticItem[] operands) {
+			for (int i = 0; i != operands.length; ++i) {
+				checkOperand(item, i, operands[i]);
+			}
+			// Determine index for allocation
+			int index = heap.size();
+			// Clone item prior to allocation
+			SyntacticItem nItem = item.clone(operands);
+			// Allocate item
+			heap.syntacticItems.add(nItem);
+			heap.invalidateIndices();
+			// ... and allocate item itself
+			nItem.allocate(heap, index);
+			map.put(item, nItem);
+			return nItem;
+		}
+
+		/**
+		 * Check that a given (allocated) operand can be used for a given item. In
+		 * particular, attributes cannot be allocated for interned items, since these
+		 * would then be shared by every occurrence.
+		 *
+		 * @param item
+		 * @param i
+		 * @param operand
+		 */
+		protected void checkOperand(SyntacticItem item, int i, SyntacticItem operand) {
+			if (i == 0 && item instanceof AbstractCompilationUnit.Attribute && heap.isInterned(operand)) {
+				throw new IllegalArgumentException("cannot allocate attribute for interned item");
+			}
+		}
+	};
+
+	/**
+	 * An allocator which interns constants as they are allocated. That is, where
+	 * an equal constant has already been interned into the heap, that constant is
+	 * used rather than allocating another. Children are allocated before their
+	 * parents and, hence, a compound constant (e.g. an array) is only interned
+	 * when all of its operands were.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class InterningAllocator extends Allocator {
+		/**
+		 * Items which are the target of some reference or attribute allocated at
+		 * the same time and, hence, whose identity is significant.
+		 */
+		private final Set<SyntacticItem> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+
+		/**
+		 * References allocated whose target has yet to be allocated, each paired
+		 * with its original target. Since references may introduce cycles, their
+		 * targets are allocated separately.
+		 */
+		private final ArrayList<SyntacticItem[]> references = new ArrayList<>();
+
+		public InterningAllocator(AbstractSyntacticHeap heap) {
+			super(heap);
+		}
+
+		@Override
+		public SyntacticItem allocate(SyntacticItem item) {
+			SyntacticItem nItem = lookup(item);
+			if (nItem != null) {
+				return nItem;
+			}
+			findTargets(item);
+			nItem = allocateOwned(item);
+			// Allocate the targets of any references
+			while (!references.isEmpty()) {
+				SyntacticItem[] reference = references.remove(references.size() - 1);
+				SyntacticItem nTarget = lookup(reference[1]);
+				if (nTarget == null) {
+					nTarget = allocateOwned(reference[1]);
+				}
+				reference[0].setOperand(0, nTarget);
+			}
+			return nItem;
+		}
+
+		/**
+		 * Allocate a given item and, recursively, all children it owns. That is,
+		 * references are allocated but their targets are not.
+		 *
+		 * @param item
+		 * @return
+		 */
+		private SyntacticItem allocateOwned(SyntacticItem item) {
+			if (item instanceof AbstractCompilationUnit.Ref) {
+				return createReference(item);
+			}
+			Set<SyntacticItem> active = Collections.newSetFromMap(new IdentityHashMap<>());
+			ArrayList<SyntacticItem> items = new ArrayList<>();
+			ArrayList<SyntacticItem[]> operands = new ArrayList<>();
+			int[] next = new int[16];
+			items.add(item);
+			operands.add(new SyntacticItem[item.size()]);
+			active.add(item);
+			while (true) {
+				int top = items.size() - 1;
+				SyntacticItem original = items.get(top);
+				int i = next[top];
+				if (i == original.size()) {
+					// All children allocated
+					items.remove(top);
+					active.remove(original);
+					SyntacticItem nItem = intern(original, operands.remove(top));
+					if (top == 0) {
+						return nItem;
+					}
+					continue;
+				}
+				SyntacticItem child = original.get(i);
+				SyntacticItem nChild = child == null ? null : lookup(child);
+				if (child != null && nChild == null) {
+					if (child instanceof AbstractCompilationUnit.Ref) {
+						nChild = createReference(child);
+					} else if (!active.add(child)) {
+						throw new IllegalArgumentException("cyclic syntactic item");
+					} else {
+						// Allocate child (and its children) first
+						if (items.size() == next.length) {
+							next = Arrays.copyOf(next, next.length * 2);
+						}
+						next[items.size()] = 0;
+						items.add(child);
+						operands.add(new SyntacticItem[child.size()]);
+						continue;
+					}
+				}
+				operands.get(top)[i] = nChild;
+				next[top]++;
+			}
+		}
+
+		/**
+		 * Allocate a given reference, whose target is allocated later.
+		 *
+		 * @param ref
+		 * @return
+		 */
+		private SyntacticItem createReference(SyntacticItem ref) {
+			SyntacticItem nRef = create(ref, new SyntacticItem[ref.size()]);
+			references.add(new SyntacticItem[] { nRef, ref.get(0) });
+			return nRef;
+		}
+
+		/**
+		 * Allocate a given item with the given (allocated) operands, unless it is a
+		 * constant and an equal constant has already been interned.
+		 *
+		 * @param item
+		 * @param operands
+		 * @return
+		 */
+		private SyntacticItem intern(SyntacticItem item, SyntacticItem[] operands) {
+			if (!isInternable(item, operands)) {
+				return create(item, operands);
+			}
+			// Since the operands are interned, the original item is equal to any
+			// interned copy of it.
+			SyntacticItem nItem = heap.interned.get(item);
+			if (nItem != null) {
 				map.put(item, nItem);
-				// Item not allocated to this heap. Therefore, recursively allocate
-				// all children.
-				for (int i = 0; i != nItem.size(); ++i) {
-					SyntacticItem child = item.get(i);
-					if (child != null) {
-						child = allocate(child);
+				heap.recordInterned(item.getOpcode());
+			} else {
+				nItem = create(item, operands);
+				heap.interned.put(nItem, nItem);
+				heap.internedItems.add(nItem);
+			}
+			return nItem;
+		}
+
+		/**
+		 * Determine whether a given item with the given (allocated) operands can be
+		 * interned. That is, it is a constant whose identity is not significant and
+		 * whose operands are all interned.
+		 *
+		 * @param item
+		 * @param operands
+		 * @return
+		 */
+		private boolean isInternable(SyntacticItem item, SyntacticItem[] operands) {
+			if (!(item instanceof AbstractCompilationUnit.Value) || targets.contains(item)) {
+				return false;
+			}
+			for (int i = 0; i != operands.length; ++i) {
+				if (!heap.isInterned(operands[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Determine all items which are the target of some reference or attribute,
+		 * and are reachable from a given item without passing through items already
+		 * allocated.
+		 *
+		 * @param item
+		 */
+		private void findTargets(SyntacticItem item) {
+			Set<SyntacticItem> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+			ArrayList<SyntacticItem> worklist = new ArrayList<>();
+			worklist.add(item);
+			while (!worklist.isEmpty()) {
+				item = worklist.remove(worklist.size() - 1);
+				if (lookup(item) == null && visited.add(item)) {
+					if (item instanceof AbstractCompilationUnit.Ref
+							|| item instanceof AbstractCompilationUnit.Attribute) {
+						SyntacticItem target = item.get(0);
+						if (lookup(target) == null) {
+							targets.add(target);
+						}
+					}
+					for (int i = 0; i != item.size(); ++i) {
+						SyntacticItem child = item.get(i);
+						if (child != null) {
+							worklist.add(child);
+						}
 					}
-					nItem.setOperand(i, child);
 				}
-				return nItem;
 			}
 		}
-	};
+	}
+
+	/**
+	 * A read-only view of a heap at some point in time. Items are shared with the
+	 * heap until they are modified, at which point a copy of the original is
+	 * preserved in the snapshot. Since the snapshot itself never changes, indices
+	 * computed over it remain valid indefinitely.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Snapshot implements SyntacticHeap {
+		/**
+		 * The heap of which this is a snapshot, or <code>null</code> if this
+		 * snapshot has been detached.
+		 */
+		private AbstractSyntacticHeap heap;
+
+		/**
+		 * The number of items in the heap when this snapshot was taken.
+		 */
+		private final int size;
+
+		/**
+		 * The index of the root item when this snapshot was taken.
+		 */
+		private final int root;
+
+		/**
+		 * Copies of items modified since this snapshot was taken, indexed by the
+		 * original item.
+		 */
+		private final IdentityHashMap<SyntacticItem, SyntacticItem> preserved = new IdentityHashMap<>();
+
+		/**
+		 * The items of this snapshot, once it has been detached from its heap.
+		 */
+		private SyntacticItem[] items;
+
+		/**
+		 * Index of reverse edges in this snapshot, with the same layout as for the
+		 * heap itself. This is constructed on demand.
+		 */
+		private int[] parentOffsets;
+		private int[] parentEdges;
+
+		public Snapshot(AbstractSyntacticHeap heap) {
+			this.heap = heap;
+			this.size = heap.size();
+			this.root = heap.root;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public SyntacticItem getRootItem() {
+			return getSyntacticItem(root);
+		}
+
+		@Override
+		public SyntacticItem getSyntacticItem(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("invalid index (" + index + ")");
+			} else if (items != null) {
+				return items[index];
+			}
+			SyntacticItem item = heap.syntacticItems.get(index);
+			SyntacticItem copy = preserved.get(item);
+			return copy != null ? copy : item;
+		}
+
+		@Override
+		public int getIndexOf(SyntacticItem item) {
+			int index = indexOf(item);
+			if (index < 0) {
+				throw new IllegalArgumentException("invalid syntactic item");
+			}
+			return index;
+		}
+
+		@Override
+		public <T extends SyntacticItem> T getParent(SyntacticItem child, Class<T> kind) {
+			List<T> parents = getParents(child, kind);
+			return parents.isEmpty() ? null : parents.get(0);
+		}
+
+		@Override
+		public <T extends SyntacticItem> List<T> getParents(SyntacticItem child, Class<T> kind) {
+			ArrayList<T> parents = new ArrayList<>();
+			int index = indexOf(child);
+			if (index >= 0) {
+				buildParentIndex();
+				for (int i = parentOffsets[index]; i < parentOffsets[index + 1]; ++i) {
+					SyntacticItem parent = getSyntacticItem(parentEdges[i]);
+					if (kind.isInstance(parent)) {
+						parents.add(kind.cast(parent));
+					}
+				}
+			}
+			return parents;
+		}
+
+		@Override
+		public <T extends SyntacticItem> T getAncestor(SyntacticItem child, Class<T> kind) {
+			int index = indexOf(child);
+			if (kind.isInstance(child)) {
+				return kind.cast(child);
+			} else if (index >= 0) {
+				buildParentIndex();
+				// Depth-first search through parents, as for the heap itself.
+				BitSet visited = new BitSet();
+				int[] stack = new int[16];
+				int top = 0;
+				stack[top++] = index;
+				while (top > 0) {
+					index = stack[--top];
+					if (visited.get(index)) {
+						continue;
+					}
+					visited.set(index);
+					SyntacticItem item = getSyntacticItem(index);
+					if (kind.isInstance(item)) {
+						return kind.cast(item);
+					}
+					for (int i = parentOffsets[index + 1] - 1; i >= parentOffsets[index]; --i) {
+						int parent = parentEdges[i];
+						// Don't follow cross-references
+						if (!(getSyntacticItem(parent) instanceof AbstractCompilationUnit.Ref)) {
+							if (top == stack.length) {
+								stack = Arrays.copyOf(stack, stack.length * 2);
+							}
+							stack[top++] = parent;
+						}
+					}
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public SyntacticHeap getParent() {
+			return null;
+		}
+
+		@Override
+		public <T extends SyntacticItem> List<T> findAll(Class<T> kind) {
+			// Depth-first traversal from the root, collecting matches in pre-order
+			ArrayList<T> matches = new ArrayList<>();
+			BitSet visited = new BitSet();
+			int[] worklist = new int[16];
+			int top = 0;
+			worklist[top++] = root;
+			while (top > 0) {
+				int index = worklist[--top];
+				if (!visited.get(index)) {
+					visited.set(index);
+					SyntacticItem item = getSyntacticItem(index);
+					if (kind.isInstance(item)) {
+						matches.add(kind.cast(item));
+					}
+					// Push operands in reverse, so they are visited in order
+					for (int i = item.size() - 1; i >= 0; --i) {
+						int child = indexOf(item.get(i));
+						if (child >= 0) {
+							if (top == worklist.length) {
+								worklist = Arrays.copyOf(worklist, worklist.length * 2);
+							}
+							worklist[top++] = child;
+						}
+					}
+				}
+			}
+			return matches;
+		}
+
+		@Override
+		public void setRootItem(SyntacticItem item) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public <T extends SyntacticItem> T allocate(T item) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public <T extends SyntacticItem> void replace(T from, T to) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean gc() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Preserve a copy of a given item which is about to be modified, if it is
+		 * shared with this snapshot and has not already been preserved.
+		 *
+		 * @param item
+		 */
+		private void preserve(SyntacticItem item) {
+			int index = indexOf(item);
+			if (index >= 0 && items == null && !preserved.containsKey(item)) {
+				SyntacticItem[] operands = item.getAll();
+				operands = operands == null ? new SyntacticItem[0] : Arrays.copyOf(operands, operands.length);
+				SyntacticItem copy = item.clone(operands);
+				// NOTE: opcode may differ from that given by clone
+				copy.setOpcode(item.getOpcode());
+				copy.allocate(this, index);
+				preserved.put(item, copy);
+			}
+		}
+
+		/**
+		 * Detach this snapshot from its heap by copying all items it shares, and
+		 * updating all operands to refer to the copies. Afterwards, this snapshot
+		 * is independent of the heap.
+		 */
+		private void detach() {
+			SyntacticItem[] nItems = new SyntacticItem[size];
+			for (int i = 0; i != size; ++i) {
+				SyntacticItem item = getSyntacticItem(i);
+				nItems[i] = item.clone(new SyntacticItem[item.size()]);
+				nItems[i].setOpcode(item.getOpcode());
+			}
+			for (int i = 0; i != size; ++i) {
+				SyntacticItem item = getSyntacticItem(i);
+				SyntacticItem nItem = nItems[i];
+				for (int j = 0; j != item.size(); ++j) {
+					SyntacticItem operand = item.get(j);
+					int index = operand == null ? -1 : indexOf(operand);
+					nItem.setOperand(j, index >= 0 ? nItems[index] : operand);
+				}
+			}
+			for (int i = 0; i != size; ++i) {
+				nItems[i].allocate(this, i);
+			}
+			this.items = nItems;
+			this.preserved.clear();
+			this.heap = null;
+		}
+
+		/**
+		 * Determine the index of a given item in this snapshot, or <code>-1</code>
+		 * if it is not part of this snapshot.
+		 *
+		 * @param item
+		 * @return
+		 */
+		private int indexOf(SyntacticItem item) {
+			if (item.getHeap() == this) {
+				// A copy held by this snapshot
+				return item.getIndex();
+			} else if (heap != null && heap.owns(item) && item.getIndex() < size) {
+				// An item still shared with the heap
+				return item.getIndex();
+			} else {
+				return -1;
+			}
+		}
+
+		/**
+		 * Construct the index of reverse edges for this snapshot (if not already
+		 * constructed).
+		 */
+		private void buildParentIndex() {
+			if (parentOffsets != null) {
+				return;
+			}
+			int[] offsets = new int[size + 1];
+			int[][] children = new int[size][];
+			// Count parents of each item
+			for (int i = 0; i != size; ++i) {
+				SyntacticItem item = getSyntacticItem(i);
+				children[i] = new int[item.size()];
+				for (int j = 0; j != item.size(); ++j) {
+					SyntacticItem child = item.get(j);
+					int index = child == null ? -1 : indexOf(child);
+					children[i][j] = index;
+					if (index >= 0) {
+						offsets[index + 1]++;
+					}
+				}
+			}
+			// Convert counts into offsets
+			for (int i = 0; i != size; ++i) {
+				offsets[i + 1] += offsets[i];
+			}
+			// Record parents of each item
+			int[] edges = new int[offsets[size]];
+			int[] next = Arrays.copyOf(offsets, size);
+			for (int i = 0; i != size; ++i) {
+				for (int index : children[i]) {
+					if (index >= 0) {
+						edges[next[index]++] = i;
+					}
+				}
+			}
+			this.parentOffsets = offsets;
+			this.parentEdges = edges;
+		}
+	}
 }
@@ -105,6 +105,10 @@ public abstract class AbstractSyntacticItem implements Comparable<SyntacticItem>
 
 	@Override
 	public void setOpcode(int opcode) {
+		if (parent instanceof AbstractSyntacticHeap) {
+			// Heap may need to know about this opcode
+			((AbstractSyntacticHeap) parent).modifying(this);
+		}
 		this.opcode = opcode;
 	}
 
@@ -125,6 +129,10 @@ public abstract class AbstractSyntacticItem implements Comparable<SyntacticItem>
 
 	@Override
 	public void setOperand(int ith, SyntacticItem child) {
+		if (parent instanceof AbstractSyntacticHeap) {
+			// Heap may need to know about this operand
+			((AbstractSyntacticHeap) parent).modifying(this);
+		}
 		operands[ith] = child;
 	}
 
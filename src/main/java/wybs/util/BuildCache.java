@@ -0,0 +1,488 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Function;
+
+import wybs.lang.Build;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.DefaultContentRegistry;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+
+/**
+ * <p>
+ * A content-addressed cache of build artifacts stored in a local directory.
+ * Each artifact is the target produced by a build task, and is stored under a
+ * <i>fingerprint</i> computed from the identity of the rule and task which
+ * produced it, along with the identity and contents of every source. When a
+ * task with the same fingerprint is encountered again (e.g. in another
+ * workspace or branch checkout), its target is restored from the cache rather
+ * than being recomputed.
+ * </p>
+ * <p>
+ * The cache is used by wrapping existing build rules using
+ * <code>wrap()</code>. Thus, it can be employed with any
+ * <code>Build.Project</code> without changing existing rule implementations.
+ * The total size of the cache is bounded, with the least recently used
+ * artifacts evicted first.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildCache {
+	/**
+	 * Algorithm used for computing fingerprints.
+	 */
+	private static final String ALGORITHM = "SHA-256";
+
+	/**
+	 * The content type of artifacts stored in the cache. These are simply
+	 * uninterpreted sequences of bytes.
+	 */
+	public static final Content.Type<byte[]> Artifact = new Content.Type<byte[]>() {
+
+		@Override
+		public String getSuffix() {
+			return "artifact";
+		}
+
+		@Override
+		public byte[] read(Path.Entry<byte[]> e, InputStream input) throws IOException {
+			return readAll(input);
+		}
+
+		@Override
+		public void write(OutputStream output, byte[] bytes) throws IOException {
+			output.write(bytes);
+		}
+
+		@Override
+		public String toString() {
+			return "Content-Type: artifact";
+		}
+	};
+
+	/**
+	 * The root in which artifacts are stored.
+	 */
+	private final DirectoryRoot root;
+
+	/**
+	 * The maximum number of bytes of artifacts to retain.
+	 */
+	private final long capacity;
+
+	/**
+	 * The size of every artifact in the cache, ordered from least to most recently
+	 * used.
+	 */
+	private final LinkedHashMap<Path.ID, Long> artifacts = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * The total size of all artifacts in the cache.
+	 */
+	private long size;
+
+	/**
+	 * Number of targets restored from this cache.
+	 */
+	private int hits;
+
+	/**
+	 * Number of targets which could not be restored from this cache.
+	 */
+	private int misses;
+
+	/**
+	 * Construct a cache stored in a given directory, whose total size is bounded
+	 * by a given number of bytes. Any artifacts already in the directory are
+	 * retained, with the order of use determined by their modification times.
+	 *
+	 * @param dir
+	 * @param capacity
+	 * @throws IOException
+	 */
+	public BuildCache(File dir, long capacity) throws IOException {
+		this.root = new DirectoryRoot(dir, new DefaultContentRegistry().register(Artifact, "artifact"));
+		this.capacity = capacity;
+		// Determine existing artifacts in order of use
+		List<Path.Entry<byte[]>> entries = root.get(Content.filter("**", Artifact));
+		entries.sort((e1, e2) -> Long.compare(e1.lastModified(), e2.lastModified()));
+		for (Path.Entry<byte[]> e : entries) {
+			long length = ((DirectoryRoot.Entry<?>) e).file().length();
+			artifacts.put(e.id(), length);
+			size += length;
+		}
+		for (Path.ID id : evict()) {
+			toFile(id).delete();
+		}
+	}
+
+	/**
+	 * Get the total size (in bytes) of all artifacts in this cache.
+	 *
+	 * @return
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of targets restored from this cache so far.
+	 *
+	 * @return
+	 */
+	public synchronized int hits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of targets which could not be restored from this cache so
+	 * far.
+	 *
+	 * @return
+	 */
+	public synchronized int misses() {
+		return misses;
+	}
+
+	/**
+	 * Wrap a given build rule so that every task it produces first attempts to
+	 * restore its target from this cache. Tasks which cannot be restored are
+	 * executed as normal, with their targets then stored in this cache. The
+	 * identity of the rule is determined by its class name.
+	 *
+	 * @param rule
+	 * @return
+	 */
+	public Build.Rule wrap(Build.Rule rule) {
+		return wrap(rule, rule.getClass().getName());
+	}
+
+	/**
+	 * Wrap a given build rule with a given identity so that every task it produces
+	 * first attempts to restore its target from this cache. The identity should
+	 * change whenever the rule would produce different targets from the same
+	 * sources (e.g. because its configuration has changed).
+	 *
+	 * @param rule
+	 * @param identity
+	 * @return
+	 */
+	public Build.Rule wrap(Build.Rule rule, String identity) {
+		return (tasks) -> {
+			ArrayList<Build.Task> tmp = new ArrayList<>();
+			rule.apply(tmp);
+			for (Build.Task task : tmp) {
+				tasks.add(new CachedTask(identity, task));
+			}
+		};
+	}
+
+	/**
+	 * Compute the fingerprint for a given task produced by a rule with a given
+	 * identity. This covers the identity of both, and the identity and contents of
+	 * every source and the identity of the target.
+	 *
+	 * @param rule
+	 * @param task
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] fingerprint(String rule, Build.Task task) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		update(md, rule);
+		update(md, task.getClass().getName());
+		update(md, task.getTarget());
+		for (Path.Entry<?> source : task.getSources()) {
+			update(md, source);
+			update(md, readAll(source));
+		}
+		return md.digest();
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Attempt to restore the target of a given task from the artifact with a given
+	 * fingerprint. The lock is only held whilst consulting the set of artifacts,
+	 * so that other tasks may use the cache whilst this artifact is read.
+	 *
+	 * @param fingerprint
+	 * @param target
+	 * @return True if the target was restored.
+	 * @throws IOException
+	 */
+	private boolean restore(Path.ID fingerprint, Path.Entry<?> target) throws IOException {
+		synchronized (this) {
+			// NOTE: this records the use of the artifact
+			if (artifacts.get(fingerprint) == null) {
+				misses++;
+				return false;
+			}
+		}
+		File file = toFile(fingerprint);
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(file.toPath());
+		} catch (NoSuchFileException e) {
+			// Artifact removed externally, or evicted concurrently
+			synchronized (this) {
+				forget(fingerprint);
+				misses++;
+			}
+			return false;
+		}
+		try (OutputStream output = target.outputStream()) {
+			output.write(bytes);
+		}
+		// Discard any in-memory contents of target so they are reread
+		target.refresh();
+		// Record use of artifact for subsequent runs
+		file.setLastModified(System.currentTimeMillis());
+		synchronized (this) {
+			hits++;
+		}
+		return true;
+	}
+
+	/**
+	 * Store the contents of a given target as the artifact for a given
+	 * fingerprint, evicting older artifacts as necessary. The artifact is first
+	 * written to a temporary file and then renamed, so a concurrent reader never
+	 * observes a partially written artifact. As for <code>restore()</code>, the
+	 * lock is not held during I/O.
+	 *
+	 * @param fingerprint
+	 * @param target
+	 * @throws IOException
+	 */
+	private void store(Path.ID fingerprint, Path.Entry<?> target) throws IOException {
+		byte[] bytes = readAll(target);
+		File file = toFile(fingerprint);
+		File dir = file.getParentFile();
+		dir.mkdirs();
+		File tmp = File.createTempFile("artifact", ".tmp", dir);
+		try {
+			Files.write(tmp.toPath(), bytes);
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmp.delete();
+		}
+		List<Path.ID> evicted;
+		synchronized (this) {
+			forget(fingerprint);
+			artifacts.put(fingerprint, (long) bytes.length);
+			size += bytes.length;
+			evicted = evict();
+		}
+		for (Path.ID id : evicted) {
+			toFile(id).delete();
+		}
+	}
+
+	/**
+	 * Evict least recently used artifacts until the cache is within capacity. This
+	 * only updates the set of artifacts and, hence, the caller is responsible for
+	 * deleting the files of those evicted.
+	 *
+	 * @return The artifacts evicted.
+	 */
+	private List<Path.ID> evict() {
+		ArrayList<Path.ID> evicted = new ArrayList<>();
+		Iterator<Map.Entry<Path.ID, Long>> iterator = artifacts.entrySet().iterator();
+		while (size > capacity && iterator.hasNext()) {
+			Map.Entry<Path.ID, Long> eldest = iterator.next();
+			iterator.remove();
+			size -= eldest.getValue();
+			evicted.add(eldest.getKey());
+		}
+		return evicted;
+	}
+
+	/**
+	 * Remove a given artifact from the set of artifacts, without deleting its
+	 * file.
+	 *
+	 * @param fingerprint
+	 */
+	private void forget(Path.ID fingerprint) {
+		Long length = artifacts.remove(fingerprint);
+		if (length != null) {
+			size -= length;
+		}
+	}
+
+	/**
+	 * Determine the file in which the artifact with a given fingerprint is stored.
+	 *
+	 * @param fingerprint
+	 * @return
+	 */
+	private File toFile(Path.ID fingerprint) {
+		String name = fingerprint.toString().replace('/', File.separatorChar);
+		return new File(root.location(), name + "." + Artifact.getSuffix());
+	}
+
+	/**
+	 * Convert a fingerprint into the ID of the corresponding artifact. The first
+	 * byte is used as a subfolder to avoid very large directories.
+	 *
+	 * @param fingerprint
+	 * @return
+	 */
+	private static Path.ID toID(byte[] fingerprint) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i != fingerprint.length; ++i) {
+			sb.append(String.format("%02x", fingerprint[i] & 0xFF));
+			if (i == 0) {
+				sb.append('/');
+			}
+		}
+		return Trie.fromString(sb.toString());
+	}
+
+	private static void update(MessageDigest md, String str) {
+		update(md, str.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Update a digest with a given sequence of bytes, prefixed by its length. This
+	 * ensures distinct sequences of updates cannot produce the same input.
+	 *
+	 * @param md
+	 * @param bytes
+	 */
+	private static void update(MessageDigest md, byte[] bytes) {
+		md.update((byte) (bytes.length >> 24));
+		md.update((byte) (bytes.length >> 16));
+		md.update((byte) (bytes.length >> 8));
+		md.update((byte) bytes.length);
+		md.update(bytes);
+	}
+
+	private static void update(MessageDigest md, Path.Entry<?> entry) {
+		update(md, entry.id().toString());
+		update(md, entry.suffix());
+	}
+
+	/**
+	 * Read the contents of a given entry as a sequence of bytes. If the entry has
+	 * been modified in memory, then these contents are used in preference to
+	 * those in permanent storage.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	private static <T> byte[] readAll(Path.Entry<T> entry) throws IOException {
+		if (entry.isModified()) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			entry.contentType().write(output, entry.read());
+			return output.toByteArray();
+		} else {
+			try (InputStream input = entry.inputStream()) {
+				return readAll(input);
+			}
+		}
+	}
+
+	private static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = input.read(buffer)) >= 0) {
+			output.write(buffer, 0, n);
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * A build task which wraps another, such that the target is restored from the
+	 * cache where possible.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private class CachedTask implements Build.Task {
+		private final String rule;
+		private final Build.Task task;
+
+		public CachedTask(String rule, Build.Task task) {
+			this.rule = rule;
+			this.task = task;
+		}
+
+		@Override
+		public Function<Build.Meter, Boolean> initialise() throws IOException {
+			// NOTE: sources may be produced by other tasks, hence the fingerprint can
+			// only be computed at the point of execution.
+			Function<Build.Meter, Boolean> instance = task.initialise();
+			return (meter) -> {
+				try {
+					Path.ID fingerprint = toID(fingerprint(rule, task));
+					if (restore(fingerprint, task.getTarget())) {
+						meter.step("cached");
+						return true;
+					} else if (instance.apply(meter)) {
+						store(fingerprint, task.getTarget());
+						return true;
+					} else {
+						return false;
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			};
+		}
+
+		@Override
+		public Build.Project project() {
+			return task.project();
+		}
+
+		@Override
+		public List<Path.Entry<?>> getSources() {
+			return task.getSources();
+		}
+
+		@Override
+		public Path.Entry<?> getTarget() {
+			return task.getTarget();
+		}
+	}
+}
@@ -0,0 +1,291 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.*;
+
+import wybs.lang.Build;
+import wyfs.lang.Path;
+import wyfs.util.ArrayUtils;
+
+/**
+ * <p>
+ * Provides a straightforward implementation of <code>Build.Graph</code>
+ * constructed from an arbitrary list of build tasks. Construction first indexes
+ * the target of every task, and then uses this to determine the parents of each
+ * task from its sources. Tasks are then placed in topological order using a
+ * depth-first traversal which, for each task in turn, places its parents first.
+ * Thus, construction is linear in the number of tasks and sources.
+ * </p>
+ * <p>
+ * <b>NOTE:</b> the resulting order matches that of the original list as closely
+ * as possible. That is, independent tasks retain their relative order.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildGraph implements Build.Graph {
+	private static final int[] EMPTY = new int[0];
+
+	/**
+	 * The set of tasks in topological order.
+	 */
+	private final Build.Task[] tasks;
+
+	/**
+	 * Maps each target to the indices of the task(s) which produce it.
+	 */
+	private final HashMap<Path.Entry<?>, int[]> producers;
+
+	/**
+	 * For each task, the indices of those tasks on which it depends.
+	 */
+	private final int[][] parents;
+
+	/**
+	 * For each task, the indices of those tasks which depend upon it.
+	 */
+	private final int[][] children;
+
+	/**
+	 * Construct a build graph from a given list of tasks.
+	 *
+	 * @param tasks
+	 * @throws IllegalArgumentException
+	 *             if the tasks contain a cyclic dependency.
+	 */
+	public BuildGraph(List<Build.Task> tasks) {
+		final int n = tasks.size();
+		// Determine parents of each task in the original order
+		int[][] ps = determineParents(tasks, index(tasks));
+		// Topologically sort tasks
+		int[] order = topologicalSort(tasks, ps);
+		// Construct mapping from original indices to sorted indices
+		int[] rank = new int[n];
+		for (int i = 0; i != n; ++i) {
+			rank[order[i]] = i;
+		}
+		// Construct the final graph in topological order
+		this.tasks = new Build.Task[n];
+		this.parents = new int[n][];
+		for (int i = 0; i != n; ++i) {
+			this.tasks[i] = tasks.get(order[i]);
+			int[] ith = ps[order[i]];
+			int[] nth = new int[ith.length];
+			for (int j = 0; j != ith.length; ++j) {
+				nth[j] = rank[ith[j]];
+			}
+			Arrays.sort(nth);
+			this.parents[i] = nth;
+		}
+		this.producers = index(Arrays.asList(this.tasks));
+		this.children = invert(parents);
+	}
+
+	@Override
+	public int size() {
+		return tasks.length;
+	}
+
+	@Override
+	public Build.Task get(int index) {
+		return tasks[index];
+	}
+
+	@Override
+	public int[] getProducers(Path.Entry<?> target) {
+		int[] ps = producers.get(target);
+		return ps == null ? EMPTY : ps;
+	}
+
+	@Override
+	public int[] getParents(int index) {
+		return parents[index];
+	}
+
+	@Override
+	public int[] getChildren(int index) {
+		return children[index];
+	}
+
+	/**
+	 * Get the tasks in this graph as an array in topological order.
+	 *
+	 * @return
+	 */
+	public Build.Task[] toArray() {
+		return Arrays.copyOf(tasks, tasks.length);
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Construct a mapping from each target to the indices of those tasks which
+	 * produce it.
+	 *
+	 * @param tasks
+	 * @return
+	 */
+	private static HashMap<Path.Entry<?>, int[]> index(List<Build.Task> tasks) {
+		HashMap<Path.Entry<?>, int[]> producers = new HashMap<>();
+		for (int i = 0; i != tasks.size(); ++i) {
+			Path.Entry<?> target = tasks.get(i).getTarget();
+			int[] ps = producers.get(target);
+			producers.put(target, ps == null ? new int[] { i } : ArrayUtils.append(ps, new int[] { i }));
+		}
+		return producers;
+	}
+
+	/**
+	 * Determine the parents of each task. That is, those tasks which produce a
+	 * source of the given task. The parents of each task are given in ascending
+	 * order, without duplicates.
+	 *
+	 * @param tasks
+	 * @param producers
+	 * @return
+	 */
+	private static int[][] determineParents(List<Build.Task> tasks, HashMap<Path.Entry<?>, int[]> producers) {
+		int[][] parents = new int[tasks.size()][];
+		BitSet ancestors = new BitSet();
+		for (int i = 0; i != parents.length; ++i) {
+			ancestors.clear();
+			for (Path.Entry<?> source : tasks.get(i).getSources()) {
+				int[] ps = producers.get(source);
+				if (ps != null) {
+					for (int p : ps) {
+						ancestors.set(p);
+					}
+				}
+			}
+			int[] ith = new int[ancestors.cardinality()];
+			for (int j = ancestors.nextSetBit(0), k = 0; j >= 0; j = ancestors.nextSetBit(j + 1)) {
+				ith[k++] = j;
+			}
+			parents[i] = ith;
+		}
+		return parents;
+	}
+
+	/**
+	 * Determine the children of each task from its parents. Since parents are
+	 * visited in ascending order, the children of each task are also ascending.
+	 *
+	 * @param parents
+	 * @return
+	 */
+	private static int[][] invert(int[][] parents) {
+		int[] counts = new int[parents.length];
+		for (int[] ps : parents) {
+			for (int p : ps) {
+				counts[p]++;
+			}
+		}
+		int[][] children = new int[parents.length][];
+		for (int i = 0; i != children.length; ++i) {
+			children[i] = counts[i] == 0 ? EMPTY : new int[counts[i]];
+			counts[i] = 0;
+		}
+		for (int i = 0; i != parents.length; ++i) {
+			for (int p : parents[i]) {
+				children[p][counts[p]++] = i;
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Topologically sort a set of tasks, returning the original index of each task
+	 * in the resulting order. Each task is placed in turn, where the ancestors of a
+	 * task are always placed before it. This is implemented using an explicit
+	 * stack to avoid overflowing the native stack on long dependency chains.
+	 *
+	 * @param tasks
+	 *            The original list of tasks to be topologically sorted.
+	 * @param parents
+	 *            The parents of each task in the original list.
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the tasks contain a cyclic dependency.
+	 */
+	private static int[] topologicalSort(List<Build.Task> tasks, int[][] parents) {
+		final int n = parents.length;
+		// Indicates whether tasks are placed (2), on the stack (1) or neither (0).
+		byte[] state = new byte[n];
+		// The stack of tasks currently being placed, along with the next parent to
+		// consider for each.
+		int[] stack = new int[n];
+		int[] next = new int[n];
+		int[] order = new int[n];
+		int placed = 0;
+		for (int i = 0; i != n; ++i) {
+			if (state[i] != 0) {
+				continue;
+			}
+			int top = 0;
+			stack[0] = i;
+			next[0] = 0;
+			state[i] = 1;
+			while (top >= 0) {
+				int task = stack[top];
+				int[] ps = parents[task];
+				if (next[top] < ps.length) {
+					int parent = ps[next[top]++];
+					if (state[parent] == 1) {
+						throw new IllegalArgumentException(
+								"cyclic dependency between build tasks: " + describeCycle(tasks, stack, top, parent));
+					} else if (state[parent] == 0) {
+						// Place parent first
+						++top;
+						stack[top] = parent;
+						next[top] = 0;
+						state[parent] = 1;
+					}
+				} else {
+					// All parents placed, so place this task
+					state[task] = 2;
+					order[placed++] = task;
+					--top;
+				}
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Describe a cycle on the stack which begins at a given task, in terms of the
+	 * targets of the tasks involved. Each target is followed by a target which
+	 * (transitively) requires it.
+	 *
+	 * @param tasks
+	 * @param stack
+	 * @param top
+	 * @param start
+	 * @return
+	 */
+	private static String describeCycle(List<Build.Task> tasks, int[] stack, int top, int start) {
+		int i = top;
+		while (stack[i] != start) {
+			--i;
+		}
+		String r = tasks.get(start).getTarget().toString();
+		for (int j = top; j >= i; --j) {
+			r += " => " + tasks.get(stack[j]).getTarget();
+		}
+		return r;
+	}
+}
@@ -0,0 +1,415 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import wybs.lang.Build;
+import wyfs.lang.Path;
+
+/**
+ * <p>
+ * Records the state of every source and target for a set of build tasks at the
+ * point they were last built. This allows a build project to determine which
+ * tasks are up-to-date and, hence, can be skipped. For each task, the ledger
+ * records the last modified time and a digest of the contents for each source,
+ * along with the same for the target.
+ * </p>
+ * <p>
+ * A task is considered up-to-date if its sources are the same (and in the same
+ * order) as last recorded, and neither the sources nor the target have changed
+ * since then. Modification times are checked first, and the (more expensive)
+ * digests are only compared when these differ. Thus, simply touching a file
+ * does not cause a task to be rebuilt. Furthermore, when the digests match, the
+ * recorded modification time is updated so the digest is not recomputed on
+ * subsequent checks.
+ * </p>
+ * <p>
+ * The state of each source should be captured by <code>begin()</code> when a
+ * task starts, rather than when it is recorded. Otherwise, a source modified
+ * whilst the task is executing would be recorded as up-to-date, even though the
+ * task never observed the modification.
+ * </p>
+ * <p>
+ * The ledger is persisted in a file, which is read on construction (if it
+ * exists) and replaced atomically by <code>save()</code>. A ledger file which is
+ * unrecognised, truncated or otherwise corrupt is treated as empty.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildLedger {
+	/**
+	 * Identifies a ledger file and the version of its format.
+	 */
+	private static final int MAGIC = 0x57424C32; // "WBL2"
+
+	/**
+	 * Algorithm used for computing digests of entries.
+	 */
+	private static final String ALGORITHM = "SHA-256";
+
+	/**
+	 * The file in which this ledger is persisted.
+	 */
+	private final File file;
+
+	/**
+	 * The records of each task, indexed by the key of its target.
+	 */
+	private final HashMap<String, Record> records = new HashMap<>();
+
+	/**
+	 * The source stamps captured for each task which has begun, but not yet been
+	 * recorded, indexed by the key of its target. Tasks may begin concurrently
+	 * and, hence, this must be thread-safe.
+	 */
+	private final ConcurrentHashMap<String, Stamp[]> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * Construct a ledger which is persisted in a given file. If the file exists,
+	 * then the records it contains are read. Otherwise, or if the file cannot be
+	 * decoded, the ledger is initially empty and all tasks are considered
+	 * out-of-date.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public BuildLedger(File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				read(input);
+			} catch (EOFException | UTFDataFormatException e) {
+				// Truncated or corrupt ledger, hence treat everything as out-of-date.
+				records.clear();
+			}
+		}
+	}
+
+	/**
+	 * Get the number of tasks recorded in this ledger.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * Check whether a given task is up-to-date with respect to this ledger. That
+	 * is, whether its sources and target are unchanged since the task was last
+	 * recorded.
+	 *
+	 * @param task
+	 * @return
+	 */
+	public boolean isUpToDate(Build.Task task) {
+		Path.Entry<?> target = task.getTarget();
+		Record record = records.get(key(target));
+		List<Path.Entry<?>> sources = task.getSources();
+		if (record == null || record.sources.length != sources.size()) {
+			return false;
+		}
+		for (int i = 0; i != record.sources.length; ++i) {
+			Path.Entry<?> source = sources.get(i);
+			if (!record.sources[i].isAt(key(source))) {
+				return false;
+			}
+			Stamp stamp = record.sources[i].check(source);
+			if (stamp == null) {
+				return false;
+			}
+			record.sources[i] = stamp;
+		}
+		Stamp stamp = record.target.check(target);
+		if (stamp == null) {
+			return false;
+		}
+		records.put(stamp.key, new Record(record.sources, stamp));
+		return true;
+	}
+
+	/**
+	 * Capture the current state of the sources for a given task, which is about
+	 * to execute. These are then used when the task is recorded, rather than the
+	 * state of the sources at that point. Sources whose in-memory contents have
+	 * been modified (e.g. those produced by another task in the same build) or
+	 * which cannot be read are instead captured when the task is recorded.
+	 *
+	 * @param task
+	 */
+	public void begin(Build.Task task) {
+		List<Path.Entry<?>> sources = task.getSources();
+		Stamp[] stamps = new Stamp[sources.size()];
+		for (int i = 0; i != stamps.length; ++i) {
+			Path.Entry<?> source = sources.get(i);
+			if (!source.isModified()) {
+				try {
+					stamps[i] = new Stamp(source);
+				} catch (IOException e) {
+					// Cannot capture now, hence leave until recorded
+				}
+			}
+		}
+		pending.put(key(task.getTarget()), stamps);
+	}
+
+	/**
+	 * Record the state of the sources and target for a given task. This should be
+	 * called once the target has been written to permanent storage. The state of
+	 * each source is that captured by <code>begin()</code> when the task started
+	 * or, if not captured then, its current state.
+	 *
+	 * @param task
+	 * @throws IOException
+	 */
+	public void record(Build.Task task) throws IOException {
+		List<Path.Entry<?>> sources = task.getSources();
+		Path.Entry<?> target = task.getTarget();
+		String key = key(target);
+		Stamp[] begun = pending.remove(key);
+		Stamp[] stamps = new Stamp[sources.size()];
+		for (int i = 0; i != stamps.length; ++i) {
+			Path.Entry<?> source = sources.get(i);
+			if (begun != null && begun.length == stamps.length && begun[i] != null
+					&& begun[i].isAt(key(source))) {
+				stamps[i] = begun[i];
+			} else {
+				stamps[i] = new Stamp(source);
+			}
+		}
+		records.put(key, new Record(stamps, new Stamp(target)));
+	}
+
+	/**
+	 * Remove the record for a given task, thus ensuring it is considered
+	 * out-of-date.
+	 *
+	 * @param task
+	 */
+	public void invalidate(Build.Task task) {
+		String key = key(task.getTarget());
+		records.remove(key);
+		pending.remove(key);
+	}
+
+	/**
+	 * Write this ledger to its file. The ledger is first written to a temporary
+	 * file and then renamed. Thus, a failure part way through never leaves a
+	 * partially written ledger in place of the previous one.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+		try {
+			try (DataOutputStream output = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				write(output);
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Compute a digest of the contents of a given entry, as currently stored in
+	 * permanent storage.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] digest(Path.Entry<?> entry) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] buffer = new byte[8192];
+		try (InputStream input = entry.inputStream()) {
+			int n;
+			while ((n = input.read(buffer)) >= 0) {
+				md.update(buffer, 0, n);
+			}
+		}
+		return md.digest();
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Determine the key used to identify a given entry in the ledger. This is
+	 * based on its location, since this identifies the root containing the entry
+	 * as well as its ID and suffix. Thus, entries with the same ID in different
+	 * roots (e.g. a source and a binary folder) are not confused. Locations are
+	 * not guaranteed to be stable (e.g. they may be relative or absolute) and,
+	 * hence, filesystem locations are normalised first.
+	 *
+	 * @param entry
+	 * @return
+	 */
+	private static String key(Path.Entry<?> entry) {
+		String location = entry.location();
+		try {
+			return Paths.get(location).toAbsolutePath().normalize().toString();
+		} catch (InvalidPathException e) {
+			// Not a filesystem location, hence use as is
+			return location;
+		}
+	}
+
+	private void read(DataInputStream input) throws IOException {
+		if (input.readInt() != MAGIC) {
+			// Unrecognised format, hence treat everything as out-of-date.
+			return;
+		}
+		int n = input.readInt();
+		for (int i = 0; i < n; ++i) {
+			int m = input.readInt();
+			if (m < 0) {
+				// Corrupt ledger, hence treat everything as out-of-date.
+				records.clear();
+				return;
+			}
+			// NOTE: sources are not preallocated, as the count may be corrupt
+			ArrayList<Stamp> sources = new ArrayList<>();
+			for (int j = 0; j != m; ++j) {
+				sources.add(readStamp(input));
+			}
+			Stamp target = readStamp(input);
+			records.put(target.key, new Record(sources.toArray(new Stamp[m]), target));
+		}
+	}
+
+	private static Stamp readStamp(DataInputStream input) throws IOException {
+		String key = input.readUTF();
+		long lastModified = input.readLong();
+		byte[] digest = new byte[input.readUnsignedShort()];
+		input.readFully(digest);
+		return new Stamp(key, lastModified, digest);
+	}
+
+	private void write(DataOutputStream output) throws IOException {
+		output.writeInt(MAGIC);
+		output.writeInt(records.size());
+		for (Record record : records.values()) {
+			output.writeInt(record.sources.length);
+			for (Stamp source : record.sources) {
+				writeStamp(source, output);
+			}
+			writeStamp(record.target, output);
+		}
+	}
+
+	private static void writeStamp(Stamp stamp, DataOutputStream output) throws IOException {
+		output.writeUTF(stamp.key);
+		output.writeLong(stamp.lastModified);
+		output.writeShort(stamp.digest.length);
+		output.write(stamp.digest);
+	}
+
+	/**
+	 * The recorded state of a single task.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Record {
+		private final Stamp[] sources;
+		private final Stamp target;
+
+		public Record(Stamp[] sources, Stamp target) {
+			this.sources = sources;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * The recorded state of a single entry.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Stamp {
+		private final String key;
+		private final long lastModified;
+		private final byte[] digest;
+
+		public Stamp(Path.Entry<?> entry) throws IOException {
+			this(key(entry), entry.lastModified(), digest(entry));
+		}
+
+		public Stamp(String key, long lastModified, byte[] digest) {
+			this.key = key;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+
+		public boolean isAt(String key) {
+			return this.key.equals(key);
+		}
+
+		/**
+		 * Check whether a given entry is unchanged with respect to this stamp. An
+		 * entry whose in-memory contents have been modified is always considered
+		 * changed. When only the modification time has changed, a stamp with the
+		 * new modification time is returned. Thus, the digest need not be
+		 * recomputed when the entry is next checked.
+		 *
+		 * @param entry
+		 * @return This stamp (or an updated stamp) if the entry is unchanged, or
+		 *         <code>null</code> otherwise.
+		 */
+		public Stamp check(Path.Entry<?> entry) {
+			if (entry.isModified()) {
+				return null;
+			}
+			long modified = entry.lastModified();
+			if (modified == lastModified) {
+				return this;
+			}
+			try {
+				if (Arrays.equals(digest, digest(entry))) {
+					return new Stamp(key, modified, digest);
+				}
+			} catch (IOException e) {
+				// Entry no longer readable (e.g. has been deleted)
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,279 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+
+/**
+ * <p>
+ * A syntactic heap which stores its items in packed primitive arrays, rather
+ * than as individual objects. Specifically, the opcode of each item is held in
+ * a byte array, whilst the operands and data of all items are concatenated into
+ * a single array of indices and a single array of bytes (respectively), with a
+ * table of offsets locating those of each item. This requires roughly a quarter
+ * of the memory of an equivalent <code>AbstractSyntacticHeap</code>, making it
+ * suitable for holding large compilation units which are mostly read (e.g.
+ * when written or read by <code>SyntacticHeapWriter</code> and
+ * <code>SyntacticHeapReader</code>).
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CompactSyntacticHeap extends AbstractPackedSyntacticHeap {
+	/**
+	 * The number of items in this heap.
+	 */
+	private int size;
+
+	/**
+	 * The opcode of each item.
+	 */
+	private byte[] opcodes;
+
+	/**
+	 * The operands of item <code>i</code> are held in
+	 * <code>operands[operandOffsets[i] .. operandOffsets[i+1]]</code>, with
+	 * <code>-1</code> representing a <code>null</code> operand.
+	 */
+	private int[] operandOffsets;
+	private int[] operands;
+
+	/**
+	 * The data of item <code>i</code> is held in
+	 * <code>data[dataOffsets[i] .. dataOffsets[i+1]]</code>.
+	 */
+	private int[] dataOffsets;
+	private byte[] data;
+
+	public CompactSyntacticHeap(SyntacticHeap.Schema schema) {
+		super(schema);
+		this.opcodes = new byte[16];
+		this.operandOffsets = new int[17];
+		this.operands = new int[16];
+		this.dataOffsets = new int[17];
+		this.data = new byte[16];
+	}
+
+	/**
+	 * Construct a compact copy of a given heap. Every item is copied at the same
+	 * index as in the original heap.
+	 *
+	 * @param schema
+	 * @param heap
+	 */
+	public CompactSyntacticHeap(SyntacticHeap.Schema schema, SyntacticHeap heap) {
+		this(schema);
+		final int n = heap.size();
+		for (int i = 0; i != n; ++i) {
+			SyntacticItem item = heap.getSyntacticItem(i);
+			int[] children = new int[item.size()];
+			for (int j = 0; j != children.length; ++j) {
+				SyntacticItem child = item.get(j);
+				children[j] = child == null ? -1 : heap.getIndexOf(child);
+			}
+			add(item.getOpcode(), children, item.getData());
+		}
+		this.root = heap.getIndexOf(heap.getRootItem());
+	}
+
+	// ======================================================================
+	// Packed Accessors
+	// ======================================================================
+
+	@Override
+	public int add(int opcode, int[] operands, byte[] data) {
+		if (opcode < 0 || opcode > 255) {
+			throw new IllegalArgumentException("invalid opcode (" + opcode + ")");
+		}
+		final int index = size;
+		final int operandStart = operandOffsets[index];
+		final int dataStart = dataOffsets[index];
+		final int length = data == null ? 0 : data.length;
+		// Ensure sufficient space
+		if (index == opcodes.length) {
+			opcodes = Arrays.copyOf(opcodes, index * 2);
+			operandOffsets = Arrays.copyOf(operandOffsets, index * 2 + 1);
+			dataOffsets = Arrays.copyOf(dataOffsets, index * 2 + 1);
+		}
+		if (operandStart + operands.length > this.operands.length) {
+			this.operands = Arrays.copyOf(this.operands, Math.max(this.operands.length * 2, operandStart + operands.length));
+		}
+		if (dataStart + length > this.data.length) {
+			this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, dataStart + length));
+		}
+		// Record the item
+		opcodes[index] = (byte) opcode;
+		System.arraycopy(operands, 0, this.operands, operandStart, operands.length);
+		operandOffsets[index + 1] = operandStart + operands.length;
+		if (length > 0) {
+			System.arraycopy(data, 0, this.data, dataStart, length);
+		}
+		dataOffsets[index + 1] = dataStart + length;
+		size = index + 1;
+		invalidateIndices();
+		return index;
+	}
+
+	@Override
+	public int getOpcode(int index) {
+		checkIndex(index);
+		return opcodes[index] & 0xFF;
+	}
+
+	@Override
+	public void setOpcode(int index, int opcode) {
+		checkIndex(index);
+		if (opcode < 0 || opcode > 255) {
+			throw new IllegalArgumentException("invalid opcode (" + opcode + ")");
+		}
+		opcodes[index] = (byte) opcode;
+		invalidateIndices();
+	}
+
+	@Override
+	public int getOperandCount(int index) {
+		checkIndex(index);
+		return operandOffsets[index + 1] - operandOffsets[index];
+	}
+
+	@Override
+	public int getOperand(int index, int ith) {
+		return operands[operandSlot(index, ith)];
+	}
+
+	@Override
+	public void setOperand(int index, int ith, int operand) {
+		if (operand < -1 || operand >= size) {
+			throw new IllegalArgumentException("invalid operand (" + operand + ")");
+		}
+		operands[operandSlot(index, ith)] = operand;
+		invalidateIndices();
+	}
+
+	@Override
+	public byte[] getData(int index) {
+		checkIndex(index);
+		return Arrays.copyOfRange(data, dataOffsets[index], dataOffsets[index + 1]);
+	}
+
+	@Override
+	public ByteBuffer getDataBuffer(int index) {
+		checkIndex(index);
+		int start = dataOffsets[index];
+		return ByteBuffer.wrap(data, start, dataOffsets[index + 1] - start).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Release any spare capacity held by the underlying arrays.
+	 */
+	public void trimToSize() {
+		opcodes = Arrays.copyOf(opcodes, size);
+		operandOffsets = Arrays.copyOf(operandOffsets, size + 1);
+		operands = Arrays.copyOf(operands, operandOffsets[size]);
+		dataOffsets = Arrays.copyOf(dataOffsets, size + 1);
+		data = Arrays.copyOf(data, dataOffsets[size]);
+	}
+
+	// ======================================================================
+	// Syntactic Heap
+	// ======================================================================
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Force a garbage collection event. This removes all items which are
+	 * unreachable from the root, and compacts those remaining down. Operands
+	 * which refer to removed items (i.e. via references) become
+	 * <code>null</code>.
+	 *
+	 * @return True if any items were removed.
+	 */
+	@Override
+	public boolean gc() {
+		int[] remap = compact();
+		return remap.length > size;
+	}
+
+	/**
+	 * Remove unreachable items and compact those remaining down, whilst
+	 * preserving their relative order. This returns a table which maps the old
+	 * index of each item to its new index, or to <code>-1</code> for items which
+	 * were removed.
+	 *
+	 * @return
+	 */
+	public int[] compact() {
+		final int n = size;
+		if (n == 0) {
+			return new int[0];
+		}
+		BitSet reachable = markReachable(false);
+		int[] remap = new int[n];
+		int count = 0;
+		int operandCount = 0;
+		int dataCount = 0;
+		for (int i = 0; i != n; ++i) {
+			if (reachable.get(i)) {
+				int operandStart = operandOffsets[i];
+				int operandLength = operandOffsets[i + 1] - operandStart;
+				int dataStart = dataOffsets[i];
+				int dataLength = dataOffsets[i + 1] - dataStart;
+				// Move the item down
+				opcodes[count] = opcodes[i];
+				System.arraycopy(operands, operandStart, operands, operandCount, operandLength);
+				System.arraycopy(data, dataStart, data, dataCount, dataLength);
+				operandOffsets[count] = operandCount;
+				dataOffsets[count] = dataCount;
+				operandCount += operandLength;
+				dataCount += dataLength;
+				remap[i] = count++;
+			} else {
+				remap[i] = -1;
+			}
+		}
+		operandOffsets[count] = operandCount;
+		dataOffsets[count] = dataCount;
+		// Update operands to the new indices
+		for (int i = 0; i != operandCount; ++i) {
+			int operand = operands[i];
+			operands[i] = operand < 0 ? -1 : remap[operand];
+		}
+		size = count;
+		root = remap[root];
+		invalidateIndices();
+		return remap;
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private int operandSlot(int index, int ith) {
+		checkIndex(index);
+		int slot = operandOffsets[index] + ith;
+		if (ith < 0 || slot >= operandOffsets[index + 1]) {
+			throw new IndexOutOfBoundsException("invalid operand (" + ith + ")");
+		}
+		return slot;
+	}
+}
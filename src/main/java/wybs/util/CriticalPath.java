@@ -0,0 +1,233 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import wybs.lang.Build;
+
+/**
+ * <p>
+ * Determines the critical path through a build graph, given the duration of
+ * every task. The critical path is the longest chain of dependent tasks and,
+ * hence, bounds the total time of a build regardless of how many tasks can
+ * execute in parallel. Every task on the critical path has zero <i>slack</i>.
+ * For other tasks, the slack is the amount by which the task could be delayed
+ * (or lengthened) without lengthening the build overall.
+ * </p>
+ * <p>
+ * Thus, tasks on the critical path are those which should be split or optimised
+ * first. Conversely, optimising a task with large slack has no effect on the
+ * overall build time.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CriticalPath {
+	/**
+	 * The graph being analysed.
+	 */
+	private final Build.Graph graph;
+
+	/**
+	 * The duration of each task (in nanoseconds).
+	 */
+	private final long[] durations;
+
+	/**
+	 * The earliest time each task could start, assuming unbounded parallelism.
+	 */
+	private final long[] earliest;
+
+	/**
+	 * The latest time each task could start without delaying the build.
+	 */
+	private final long[] latest;
+
+	/**
+	 * The indices of tasks on the critical path, in order of execution.
+	 */
+	private final int[] path;
+
+	/**
+	 * The total length of the critical path.
+	 */
+	private final long length;
+
+	/**
+	 * Construct the critical path analysis for a given graph.
+	 *
+	 * @param graph
+	 * @param durations
+	 *            The duration of each task in the graph, indexed by the task's
+	 *            index in the graph.
+	 */
+	public CriticalPath(Build.Graph graph, long[] durations) {
+		final int n = graph.size();
+		if (durations.length != n) {
+			throw new IllegalArgumentException("invalid number of durations");
+		}
+		this.graph = graph;
+		this.durations = Arrays.copyOf(durations, n);
+		this.earliest = new long[n];
+		this.latest = new long[n];
+		// Forward pass. Since tasks are in topological order, all parents of a task
+		// are considered before it.
+		long end = 0;
+		for (int i = 0; i != n; ++i) {
+			long start = 0;
+			for (int p : graph.getParents(i)) {
+				start = Math.max(start, earliest[p] + durations[p]);
+			}
+			earliest[i] = start;
+			end = Math.max(end, start + durations[i]);
+		}
+		this.length = end;
+		// Backward pass. Likewise, all children of a task are considered before it.
+		for (int i = n - 1; i >= 0; --i) {
+			long finish = end;
+			for (int c : graph.getChildren(i)) {
+				finish = Math.min(finish, latest[c]);
+			}
+			latest[i] = finish - durations[i];
+		}
+		this.path = determinePath();
+	}
+
+	/**
+	 * Get the total length of the critical path (in nanoseconds). This is the
+	 * shortest time in which the build could complete with unbounded parallelism.
+	 *
+	 * @return
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Get the indices of those tasks on the critical path, in the order in which
+	 * they execute.
+	 *
+	 * @return
+	 */
+	public int[] getPath() {
+		return Arrays.copyOf(path, path.length);
+	}
+
+	/**
+	 * Get the duration of the task at a given index (in nanoseconds).
+	 *
+	 * @param index
+	 * @return
+	 */
+	public long getDuration(int index) {
+		return durations[index];
+	}
+
+	/**
+	 * Get the earliest time at which the task at a given index could start (in
+	 * nanoseconds from the start of the build).
+	 *
+	 * @param index
+	 * @return
+	 */
+	public long getEarliestStart(int index) {
+		return earliest[index];
+	}
+
+	/**
+	 * Get the slack of the task at a given index (in nanoseconds). This is zero for
+	 * tasks on the critical path.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public long getSlack(int index) {
+		return latest[index] - earliest[index];
+	}
+
+	/**
+	 * Print a report of this analysis. This lists the tasks on the critical path,
+	 * followed by all tasks ordered by increasing slack.
+	 *
+	 * @param out
+	 */
+	public void print(PrintStream out) {
+		long total = 0;
+		for (long d : durations) {
+			total += d;
+		}
+		out.println("Critical path: " + millis(length) + "ms (total task time " + millis(total) + "ms)");
+		for (int i : path) {
+			out.println("  " + graph.get(i).getTarget() + " [" + millis(durations[i]) + "ms]");
+		}
+		out.println("Slack:");
+		Integer[] order = new Integer[durations.length];
+		for (int i = 0; i != order.length; ++i) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (i, j) -> {
+			int c = Long.compare(getSlack(i), getSlack(j));
+			return c != 0 ? c : Long.compare(durations[j], durations[i]);
+		});
+		for (int i : order) {
+			out.println("  " + graph.get(i).getTarget() + " [" + millis(durations[i]) + "ms, slack "
+					+ millis(getSlack(i)) + "ms]");
+		}
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Determine the critical path by starting from the task which finishes last,
+	 * and repeatedly moving to the parent which finishes last.
+	 *
+	 * @return
+	 */
+	private int[] determinePath() {
+		int last = -1;
+		for (int i = 0; i != durations.length; ++i) {
+			if (last < 0 || earliest[i] + durations[i] > earliest[last] + durations[last]) {
+				last = i;
+			}
+		}
+		// Walk backwards from the last task, recording the path in reverse
+		int[] path = new int[durations.length];
+		int count = 0;
+		while (last >= 0) {
+			path[count++] = last;
+			int next = -1;
+			for (int p : graph.getParents(last)) {
+				if (earliest[p] + durations[p] == earliest[last]) {
+					next = p;
+					break;
+				}
+			}
+			last = next;
+		}
+		int[] r = new int[count];
+		for (int i = 0; i != count; ++i) {
+			r[i] = path[count - i - 1];
+		}
+		return r;
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3f", nanos / 1e6);
+	}
+}
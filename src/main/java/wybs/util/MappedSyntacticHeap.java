@@ -0,0 +1,552 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+import wyfs.io.BinaryInputStream;
+
+/**
+ * <p>
+ * A syntactic heap which is held entirely off the Java heap. The heap is read
+ * directly from a buffer holding its binary form (as written by
+ * <code>SyntacticHeapWriter</code>), which is typically a memory-mapped file.
+ * The buffer is scanned to construct a table locating the opcode, operands and
+ * data of every item. This table is itself held in direct buffers and, hence,
+ * does not contribute to garbage collection. The data of an item is decoded
+ * from the underlying buffer only when requested.
+ * </p>
+ * <p>
+ * The table is constructed in chunks of consecutive items. Ordinarily, all
+ * chunks are scanned when the heap is opened. However, when the positions of
+ * chunks are known in advance (i.e. from an offset table), each chunk is
+ * scanned only when one of its items is first accessed. Thus, the cost of
+ * opening a heap is then proportional to the items actually used.
+ * </p>
+ * <p>
+ * The underlying buffer is never modified. Instead, when the heap is first
+ * modified (e.g. by allocating an item), every item is copied into a
+ * <code>CompactSyntacticHeap</code> which then holds the heap from that point
+ * on. Thus, heaps which are only read are never copied onto the Java heap.
+ * </p>
+ * <p>
+ * Items are accessed through flyweights, as for
+ * <code>AbstractPackedSyntacticHeap</code>. Observe that, since direct buffers
+ * are indexed by <code>int</code>, the binary form is limited to 2GB.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class MappedSyntacticHeap extends AbstractPackedSyntacticHeap {
+	/**
+	 * The number of bytes in each record of the item table. Each record holds
+	 * the opcode, the offset and number of its operands in the operand table of
+	 * its chunk, the length of its data and the (bit) position of its data in
+	 * the buffer.
+	 */
+	private static final int RECORD = 24;
+
+	/**
+	 * The minimum number of items in each chunk.
+	 */
+	private static final int CHUNK = 4096;
+
+	/**
+	 * The buffer holding the binary form of this heap.
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * The number of items in this heap.
+	 */
+	private final int size;
+
+	/**
+	 * Table of items in this heap, with one record per item.
+	 */
+	private final ByteBuffer items;
+
+	/**
+	 * The number of items in each chunk.
+	 */
+	private final int chunkSize;
+
+	/**
+	 * The (bit) position in the buffer of the first item in each chunk, or
+	 * <code>-1</code> if this is not yet known.
+	 */
+	private final long[] positions;
+
+	/**
+	 * The operands of all items in each chunk concatenated together, or
+	 * <code>null</code> if the chunk has not yet been scanned.
+	 */
+	private final IntBuffer[] operands;
+
+	/**
+	 * Indicates whether items use the byte-aligned encoding (see
+	 * <code>SectionedSchema.LEB128</code>).
+	 */
+	private final boolean leb128;
+
+	/**
+	 * The copy of this heap made when it was first modified, or
+	 * <code>null</code> if it has not been modified.
+	 */
+	private CompactSyntacticHeap copy;
+
+	/**
+	 * Open a heap whose items begin at a given (bit) position in a buffer. This
+	 * is typically determined by <code>SyntacticHeapReader</code> after reading
+	 * the header. Every item is scanned immediately.
+	 *
+	 * @param schema
+	 *            The schema for decoding the items of this heap.
+	 * @param buffer
+	 *            The buffer holding the binary form of this heap.
+	 * @param position
+	 *            The position (in bits) of the first item within the buffer.
+	 * @param size
+	 *            The number of items in this heap.
+	 * @param root
+	 *            The index of the root item.
+	 * @throws IOException
+	 */
+	public MappedSyntacticHeap(SyntacticHeap.Schema schema, ByteBuffer buffer, long position, int size, int root)
+			throws IOException {
+		this(schema, buffer, size, root, CHUNK, new long[] { position });
+		for (int i = 0; i != operands.length; ++i) {
+			scan(i);
+		}
+	}
+
+	/**
+	 * Open a heap whose items are located by a given offset table. This records
+	 * the (bit) position of every Kth item within the buffer, where K is the
+	 * stride. Items are only scanned when first accessed.
+	 *
+	 * @param schema
+	 *            The schema for decoding the items of this heap.
+	 * @param buffer
+	 *            The buffer holding the binary form of this heap.
+	 * @param size
+	 *            The number of items in this heap.
+	 * @param root
+	 *            The index of the root item.
+	 * @param stride
+	 *            The stride of the offset table.
+	 * @param offsets
+	 *            The position (in bits) of every Kth item, starting with the
+	 *            first.
+	 */
+	public MappedSyntacticHeap(SyntacticHeap.Schema schema, ByteBuffer buffer, int size, int root, int stride,
+			long[] offsets) {
+		super(schema);
+		if ((long) size * RECORD > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("heap too large (" + size + " items)");
+		} else if (root < 0 || (root >= size && size > 0)) {
+			throw new IllegalArgumentException("invalid root (" + root + ")");
+		} else if (stride < 1 || offsets.length == 0) {
+			throw new IllegalArgumentException("invalid offset table");
+		}
+		this.buffer = buffer;
+		this.size = size;
+		this.root = root;
+		this.leb128 = SectionedSchema.hasFeature(schema, SectionedSchema.LEB128);
+		this.items = ByteBuffer.allocateDirect(size * RECORD);
+		// Chunks must start on items with known offsets
+		int step = (CHUNK + stride - 1) / stride;
+		this.chunkSize = stride * step;
+		int chunks = (int) (((long) size + chunkSize - 1) / chunkSize);
+		this.positions = new long[chunks];
+		this.operands = new IntBuffer[chunks];
+		for (int i = 0; i != chunks; ++i) {
+			int offset = i * step;
+			positions[i] = offset < offsets.length ? offsets[offset] : -1;
+		}
+	}
+
+	/**
+	 * Map a given file into memory, such that it can be opened as a heap.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappedByteBuffer map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/**
+	 * Scan every item in this heap in parallel. When the position of every
+	 * chunk is known (i.e. from an offset table), chunks are scanned
+	 * independently. Otherwise, they must be scanned in order. This should be
+	 * called before accessing the heap from multiple threads.
+	 *
+	 * @param pool
+	 * @throws IOException
+	 */
+	public void scan(ForkJoinPool pool) throws IOException {
+		if (copy != null) {
+			// Already copied, so nothing to scan.
+			return;
+		}
+		for (int i = 0; i != positions.length; ++i) {
+			if (positions[i] < 0) {
+				// Positions not known, so scan in order.
+				if (size > 0) {
+					ensureScanned(size - 1);
+				}
+				return;
+			}
+		}
+		try {
+			pool.invoke(new Scan(this, 0, positions.length));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	// ======================================================================
+	// Packed Accessors
+	// ======================================================================
+
+	@Override
+	public int getOpcode(int index) {
+		if (copy != null) {
+			return copy.getOpcode(index);
+		}
+		ensureScanned(index);
+		return items.getInt(index * RECORD);
+	}
+
+	@Override
+	public int getOperandCount(int index) {
+		if (copy != null) {
+			return copy.getOperandCount(index);
+		}
+		ensureScanned(index);
+		return items.getInt(index * RECORD + 8);
+	}
+
+	@Override
+	public int getOperand(int index, int ith) {
+		if (copy != null) {
+			return copy.getOperand(index, ith);
+		}
+		IntBuffer chunk = ensureScanned(index);
+		if (ith < 0 || ith >= items.getInt(index * RECORD + 8)) {
+			throw new IndexOutOfBoundsException("invalid operand (" + ith + ")");
+		}
+		return chunk.get(items.getInt(index * RECORD + 4) + ith);
+	}
+
+	@Override
+	public byte[] getData(int index) {
+		if (copy != null) {
+			return copy.getData(index);
+		}
+		ensureScanned(index);
+		byte[] bytes = new byte[items.getInt(index * RECORD + 12)];
+		long position = items.getLong(index * RECORD + 16);
+		int offset = (int) (position >>> 3);
+		int shift = (int) (position & 7);
+		if (shift == 0) {
+			// Data is byte aligned, so can be copied directly
+			ByteBuffer slice = buffer.duplicate();
+			slice.position(offset);
+			slice.get(bytes);
+		} else {
+			// Data straddles byte boundaries, hence must be reassembled
+			for (int i = 0; i != bytes.length; ++i) {
+				int lo = (buffer.get(offset + i) & 0xFF) >>> shift;
+				int hi = buffer.get(offset + i + 1) << (8 - shift);
+				bytes[i] = (byte) (lo | hi);
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Get the data of a given item without copying it where possible. When the
+	 * data is byte aligned (as is always the case for the byte-aligned
+	 * encoding), this returns a read-only view of the underlying buffer.
+	 * Otherwise, it must be copied into a fresh buffer. Once the heap has been
+	 * modified, this is a view of its copy instead.
+	 *
+	 * @param index
+	 * @return
+	 */
+	@Override
+	public ByteBuffer getDataBuffer(int index) {
+		if (copy != null) {
+			return copy.getDataBuffer(index);
+		}
+		ensureScanned(index);
+		int length = items.getInt(index * RECORD + 12);
+		long position = items.getLong(index * RECORD + 16);
+		if ((position & 7) == 0) {
+			ByteBuffer slice = buffer.asReadOnlyBuffer();
+			slice.position((int) (position >>> 3));
+			slice.limit((int) (position >>> 3) + length);
+			return slice.slice();
+		} else {
+			return ByteBuffer.wrap(getData(index)).asReadOnlyBuffer();
+		}
+	}
+
+	@Override
+	public void setOpcode(int index, int opcode) {
+		modifying().setOpcode(index, opcode);
+	}
+
+	@Override
+	public void setOperand(int index, int ith, int operand) {
+		modifying().setOperand(index, ith, operand);
+	}
+
+	@Override
+	public int add(int opcode, int[] operands, byte[] data) {
+		return modifying().add(opcode, operands, data);
+	}
+
+	/**
+	 * Check whether this heap has been modified and, hence, is no longer held
+	 * in the underlying buffer.
+	 *
+	 * @return
+	 */
+	public boolean isModified() {
+		return copy != null;
+	}
+
+	// ======================================================================
+	// Syntactic Heap
+	// ======================================================================
+
+	@Override
+	public int size() {
+		return copy != null ? copy.size() : size;
+	}
+
+	/**
+	 * Force a garbage collection event. This removes all items which are
+	 * unreachable from the root, and compacts those remaining down, as for
+	 * <code>CompactSyntacticHeap</code>.
+	 *
+	 * @return True if any items were removed.
+	 */
+	@Override
+	public boolean gc() {
+		CompactSyntacticHeap copy = modifying();
+		copy.root = root;
+		int[] remap = copy.compact();
+		root = copy.root;
+		return remap.length > copy.size();
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Signal that this heap is about to be modified, returning the copy which
+	 * holds it from then on. The copy is made when this is first called.
+	 *
+	 * @return
+	 */
+	private CompactSyntacticHeap modifying() {
+		if (copy == null) {
+			CompactSyntacticHeap nCopy = new CompactSyntacticHeap(schema);
+			for (int i = 0; i != size; ++i) {
+				int[] children = new int[getOperandCount(i)];
+				for (int j = 0; j != children.length; ++j) {
+					children[j] = getOperand(i, j);
+				}
+				nCopy.add(getOpcode(i), children, getData(i));
+			}
+			copy = nCopy;
+		}
+		invalidateIndices();
+		return copy;
+	}
+
+	/**
+	 * Ensure the chunk containing a given item has been scanned, returning the
+	 * operands of that chunk. Where the position of the chunk is not known, the
+	 * preceding chunks are scanned first.
+	 *
+	 * @param index
+	 * @return
+	 */
+	private IntBuffer ensureScanned(int index) {
+		checkIndex(index);
+		int chunk = index / chunkSize;
+		IntBuffer r = operands[chunk];
+		if (r == null) {
+			try {
+				// Find nearest chunk whose position is known
+				int start = chunk;
+				while (positions[start] < 0) {
+					start = start - 1;
+				}
+				for (int i = start; i <= chunk; ++i) {
+					if (operands[i] == null) {
+						scan(i);
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			r = operands[chunk];
+		}
+		return r;
+	}
+
+	/**
+	 * Scan every item in a given chunk, recording its opcode, operands and the
+	 * location of its data. This decodes items in the same way as
+	 * <code>SyntacticHeapReader</code>.
+	 *
+	 * @param chunk
+	 * @throws IOException
+	 */
+	private void scan(int chunk) throws IOException {
+		BinaryInputStream in = open(positions[chunk]);
+		int start = chunk * chunkSize;
+		int end = Math.min(size, start + chunkSize);
+		IntBuffer chunkOperands = ByteBuffer.allocateDirect((end - start) * 4).asIntBuffer();
+		int count = 0;
+		for (int i = start; i != end; ++i) {
+			int opcode = in.read_u8();
+			SyntacticItem.Descriptor descriptor = schema.getDescriptor(opcode);
+			// Read operands according to layout
+			SyntacticItem.Operands operandLayout = descriptor.getOperandLayout();
+			int n = operandLayout == SyntacticItem.Operands.MANY ? SyntacticHeapEncoding.readCount(in, leb128)
+					: operandLayout.ordinal();
+			if (count + n > chunkOperands.capacity()) {
+				IntBuffer nOperands = ByteBuffer.allocateDirect(Math.max(chunkOperands.capacity() * 2, count + n) * 4)
+						.asIntBuffer();
+				chunkOperands.position(0);
+				chunkOperands.limit(count);
+				nOperands.put(chunkOperands);
+				chunkOperands = nOperands;
+			}
+			for (int j = 0; j != n; ++j) {
+				int operand = SyntacticHeapEncoding.readOperand(in, leb128, i);
+				if (operand < 0 || operand >= size) {
+					throw new IllegalArgumentException("invalid operand (" + operand + ")");
+				}
+				chunkOperands.put(count + j, operand);
+			}
+			// Determine data according to layout
+			SyntacticItem.Data dataLayout = descriptor.getDataLayout();
+			int length = dataLayout == SyntacticItem.Data.MANY ? SyntacticHeapEncoding.readCount(in, leb128)
+					: dataLayout.ordinal();
+			// Record item
+			int record = i * RECORD;
+			items.putInt(record, opcode);
+			items.putInt(record + 4, count);
+			items.putInt(record + 8, n);
+			items.putInt(record + 12, length);
+			items.putLong(record + 16, in.getBitPosition());
+			count += n;
+			// Skip over data, and pad to next byte boundary
+			if (in.skip(length) != length) {
+				throw new EOFException();
+			}
+			in.pad_u8();
+		}
+		long position = in.getBitPosition();
+		// Record (or check) the position of the next chunk
+		if (chunk + 1 < positions.length) {
+			if (positions[chunk + 1] < 0) {
+				positions[chunk + 1] = position;
+			} else if (positions[chunk + 1] != position) {
+				throw new IOException("invalid offset table");
+			}
+		}
+		operands[chunk] = chunkOperands;
+	}
+
+	/**
+	 * Open a stream for decoding items from a given (bit) position within the
+	 * underlying buffer. Values are read directly from the buffer and, hence,
+	 * nothing is copied from it.
+	 *
+	 * @param position
+	 * @return
+	 * @throws IOException
+	 */
+	private BinaryInputStream open(long position) throws IOException {
+		if ((position >>> 3) > buffer.limit()) {
+			throw new EOFException();
+		}
+		ByteBuffer view = buffer.duplicate();
+		view.position((int) (position >>> 3));
+		BinaryInputStream in = new BinaryInputStream(view);
+		// Discard any bits of the first byte before the position
+		in.read_un((int) (position & 7));
+		return in;
+	}
+
+	/**
+	 * Responsible for scanning a range of chunks, splitting the range in two
+	 * where it contains more than one chunk.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Scan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final MappedSyntacticHeap heap;
+		private final int start;
+		private final int end;
+
+		public Scan(MappedSyntacticHeap heap, int start, int end) {
+			this.heap = heap;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > 1) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new Scan(heap, start, middle), new Scan(heap, middle, end));
+			} else if (heap.operands[start] == null) {
+				try {
+					heap.scan(start);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	}
+}
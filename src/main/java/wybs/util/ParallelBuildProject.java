@@ -0,0 +1,188 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import wybs.lang.Build;
+import wyfs.lang.Path;
+
+/**
+ * <p>
+ * Provides an implementation of Build.Project which executes independent build
+ * tasks concurrently. A task is submitted for execution as soon as every task
+ * producing one of its sources has completed. Thus, tasks within a wide "layer"
+ * of the build graph can all execute at the same time, subject to the
+ * parallelism offered by the given executor.
+ * </p>
+ * <p>
+ * The results produced are the same as for a <code>SequentialBuildProject</code>
+ * since every task still observes the targets of all tasks on which it
+ * depends. However, tasks may complete in a different order. As for a
+ * sequential build, the first task which fails causes the build to fail and
+ * no further tasks are started.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ParallelBuildProject extends SequentialBuildProject {
+
+	public ParallelBuildProject(Path.Root root) {
+		super(root);
+	}
+
+	// ======================================================================
+	// Build
+	// ======================================================================
+
+	@Override
+	public Future<Boolean> build(ExecutorService executor, Build.Meter meter) {
+		long[] profile = profiling ? new long[instances.length] : null;
+		Schedule schedule = new Schedule(executor, meter, graph, prepare(profile));
+		schedule.start();
+		return completeOnDone(schedule.result.thenApply(b -> publish(b, profile)), meter);
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Responsible for scheduling the execution of a given set of task instances.
+	 * This maintains for each task a count of the tasks it is still waiting on. As
+	 * each task completes successfully, the counts for its dependents are
+	 * decremented and any which reach zero are then submitted for execution.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Schedule {
+		private final ExecutorService executor;
+		private final Build.Meter meter;
+		private final Function<Build.Meter, Boolean>[] instances;
+		/**
+		 * The graph of tasks being executed, whose indices match those of the task
+		 * instances.
+		 */
+		private final Build.Graph graph;
+		/**
+		 * For each task, the number of tasks it depends upon which have not yet
+		 * completed.
+		 */
+		private final AtomicInteger[] waiting;
+		/**
+		 * The number of tasks which have yet to complete.
+		 */
+		private final AtomicInteger remaining;
+		/**
+		 * Signals that a task has failed and, hence, no further tasks should be
+		 * started.
+		 */
+		private final AtomicBoolean failed = new AtomicBoolean(false);
+		/**
+		 * Holds the overall outcome of the build.
+		 */
+		private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+		public Schedule(ExecutorService executor, Build.Meter meter, Build.Graph graph,
+				Function<Build.Meter, Boolean>[] instances) {
+			this.executor = executor;
+			this.meter = meter;
+			this.instances = instances;
+			this.graph = graph;
+			this.waiting = new AtomicInteger[graph.size()];
+			this.remaining = new AtomicInteger(graph.size());
+			for (int i = 0; i != waiting.length; ++i) {
+				waiting[i] = new AtomicInteger(graph.getParents(i).length);
+			}
+		}
+
+		/**
+		 * Begin execution by submitting all tasks which have no dependencies.
+		 */
+		public void start() {
+			if (instances.length == 0) {
+				result.complete(true);
+			} else {
+				for (int i = 0; i != instances.length; ++i) {
+					if (waiting[i].get() == 0) {
+						submit(i);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Submit a given task for execution, providing no other task has already
+		 * failed.
+		 *
+		 * @param index
+		 */
+		private void submit(int index) {
+			if (failed.get()) {
+				return;
+			}
+			try {
+				executor.submit(() -> execute(index));
+			} catch (RejectedExecutionException e) {
+				fail(e);
+			}
+		}
+
+		/**
+		 * Execute a given task and, if it succeeds, release any dependents which are
+		 * now ready.
+		 *
+		 * @param index
+		 */
+		private void execute(int index) {
+			if (failed.get()) {
+				return;
+			}
+			try {
+				if (!instances[index].apply(meter)) {
+					if (failed.compareAndSet(false, true)) {
+						result.complete(false);
+					}
+					return;
+				}
+			} catch (Throwable t) {
+				fail(t);
+				return;
+			}
+			// Release dependents which are now ready
+			for (int dependent : graph.getChildren(index)) {
+				if (waiting[dependent].decrementAndGet() == 0) {
+					submit(dependent);
+				}
+			}
+			if (remaining.decrementAndGet() == 0) {
+				result.complete(true);
+			}
+		}
+
+		private void fail(Throwable t) {
+			if (failed.compareAndSet(false, true)) {
+				result.completeExceptionally(t);
+			}
+		}
+	}
+}
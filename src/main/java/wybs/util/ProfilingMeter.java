@@ -0,0 +1,518 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import wybs.lang.Build;
+
+/**
+ * <p>
+ * Provides an implementation of <code>Build.Meter</code> which records timing
+ * and allocation information for every (sub)task and step. Specifically, for
+ * each forked meter and each step this records the elapsed wall time and,
+ * where supported by the JVM, the CPU time and number of bytes allocated by the
+ * executing thread. The time recorded for a step is that since the previous
+ * step (or the start of the meter).
+ * </p>
+ * <p>
+ * Meters are thread-safe, so parallel tasks can fork from a shared meter.
+ * However, CPU time and allocation are measured per thread. Thus, these are
+ * only recorded for a meter (or step) when it finishes on the same thread it
+ * started on. Otherwise, they are reported as unknown (i.e. <code>-1</code>).
+ * </p>
+ * <p>
+ * The results can be printed as a tree, or written in the Chrome Trace Event
+ * format for viewing as a flame graph (e.g. in <code>chrome://tracing</code>).
+ * </p>
+ * <p>
+ * Measuring CPU time and allocation may need to be enabled in the JVM. This
+ * happens when a top-level meter is constructed, and the previous settings are
+ * restored once every top-level meter has completed.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ProfilingMeter implements Build.Meter {
+	/**
+	 * Provides access to per-thread CPU time and allocation, or <code>null</code>
+	 * if unsupported.
+	 */
+	private static final ThreadMXBean THREADS = threadBean();
+
+	/**
+	 * Indicates whether per-thread allocation is supported.
+	 */
+	private static final boolean ALLOCATION = allocationSupported();
+
+	/**
+	 * The number of top-level meters which have not yet completed. Whilst this is
+	 * non-zero, CPU time and allocation measurement are enabled.
+	 */
+	private static int active;
+
+	/**
+	 * Whether CPU time measurement was enabled before the first active meter was
+	 * constructed.
+	 */
+	private static boolean cpuEnabled;
+
+	/**
+	 * Whether allocation measurement was enabled before the first active meter
+	 * was constructed.
+	 */
+	private static boolean allocationEnabled;
+
+	/**
+	 * The name of this meter.
+	 */
+	private final String name;
+
+	/**
+	 * Indicates whether this is a top-level meter (i.e. was not forked).
+	 */
+	private final boolean root;
+
+	/**
+	 * Identifies the thread on which this meter was created.
+	 */
+	private final long thread;
+
+	/**
+	 * Sample taken when this meter was created.
+	 */
+	private final Sample start;
+
+	/**
+	 * Sample taken at the most recent step.
+	 */
+	private Sample last;
+
+	/**
+	 * Sample taken when this meter completed, or <code>null</code> if it has not
+	 * yet completed.
+	 */
+	private Sample end;
+
+	/**
+	 * The steps recorded against this meter, in the order they occurred.
+	 */
+	private final ArrayList<Step> steps = new ArrayList<>();
+
+	/**
+	 * The meters forked from this meter, in the order they were created.
+	 */
+	private final ArrayList<ProfilingMeter> children = new ArrayList<>();
+
+	public ProfilingMeter(String name) {
+		this(name, true);
+	}
+
+	private ProfilingMeter(String name, boolean root) {
+		if (root) {
+			enable();
+		}
+		this.name = name;
+		this.root = root;
+		this.thread = Thread.currentThread().getId();
+		this.start = new Sample();
+		this.last = start;
+	}
+
+	// ======================================================================
+	// Meter
+	// ======================================================================
+
+	@Override
+	public ProfilingMeter fork(String name) {
+		ProfilingMeter child = new ProfilingMeter(name, false);
+		synchronized (this) {
+			children.add(child);
+		}
+		return child;
+	}
+
+	@Override
+	public void step(String tag) {
+		Sample now = new Sample();
+		synchronized (this) {
+			steps.add(new Step(tag, last, now));
+			last = now;
+		}
+	}
+
+	@Override
+	public void done() {
+		Sample now = new Sample();
+		synchronized (this) {
+			if (end != null) {
+				return;
+			}
+			end = now;
+		}
+		if (root) {
+			disable();
+		}
+	}
+
+	// ======================================================================
+	// Accessors
+	// ======================================================================
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Check whether this meter has completed.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isDone() {
+		return end != null;
+	}
+
+	/**
+	 * Get the elapsed wall time (in nanoseconds) of this meter. If the meter has
+	 * not yet completed, this is the time elapsed so far.
+	 *
+	 * @return
+	 */
+	public synchronized long getWallTime() {
+		Sample e = end != null ? end : new Sample();
+		return e.wall - start.wall;
+	}
+
+	/**
+	 * Get the CPU time (in nanoseconds) used by this meter, or <code>-1</code> if
+	 * this is unknown.
+	 *
+	 * @return
+	 */
+	public synchronized long getCpuTime() {
+		return end == null ? -1 : Sample.cpu(start, end);
+	}
+
+	/**
+	 * Get the number of bytes allocated during this meter, or <code>-1</code> if
+	 * this is unknown.
+	 *
+	 * @return
+	 */
+	public synchronized long getAllocatedBytes() {
+		return end == null ? -1 : Sample.allocated(start, end);
+	}
+
+	/**
+	 * Get the meters forked from this meter.
+	 *
+	 * @return
+	 */
+	public synchronized List<ProfilingMeter> getChildren() {
+		return new ArrayList<>(children);
+	}
+
+	/**
+	 * Get the steps recorded against this meter.
+	 *
+	 * @return
+	 */
+	public synchronized List<Step> getSteps() {
+		return new ArrayList<>(steps);
+	}
+
+	// ======================================================================
+	// Reporting
+	// ======================================================================
+
+	/**
+	 * Print the results of this meter (and all forked meters) as an indented tree.
+	 * Steps with the same tag are aggregated together.
+	 *
+	 * @param out
+	 */
+	public void print(PrintStream out) {
+		print(out, "");
+	}
+
+	/**
+	 * Write the results of this meter (and all forked meters) as a JSON document
+	 * in the Chrome Trace Event format. Each meter and step is written as a
+	 * "complete" event.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTrace(Writer out) throws IOException {
+		out.write("{\"traceEvents\":[");
+		writeTrace(out, start.wall, true);
+		out.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+		out.flush();
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private void print(PrintStream out, String indent) {
+		out.println(indent + name + " " + format(getWallTime(), getCpuTime(), getAllocatedBytes()));
+		String nindent = indent + "  ";
+		// Aggregate steps by tag, retaining order of first occurrence
+		ArrayList<String> tags = new ArrayList<>();
+		ArrayList<long[]> totals = new ArrayList<>();
+		for (Step s : getSteps()) {
+			int index = tags.indexOf(s.tag);
+			if (index < 0) {
+				index = tags.size();
+				tags.add(s.tag);
+				totals.add(new long[4]);
+			}
+			long[] total = totals.get(index);
+			total[0]++;
+			total[1] += s.getWallTime();
+			total[2] = add(total[2], s.getCpuTime());
+			total[3] = add(total[3], s.getAllocatedBytes());
+		}
+		for (int i = 0; i != tags.size(); ++i) {
+			long[] total = totals.get(i);
+			out.println(nindent + "#" + tags.get(i) + " x" + total[0] + " " + format(total[1], total[2], total[3]));
+		}
+		for (ProfilingMeter child : getChildren()) {
+			child.print(out, nindent);
+		}
+	}
+
+	private void writeTrace(Writer out, long origin, boolean first) throws IOException {
+		Sample e;
+		synchronized (this) {
+			e = end != null ? end : new Sample();
+		}
+		writeEvent(out, name, thread, start, e, origin, first);
+		for (Step s : getSteps()) {
+			writeEvent(out, s.tag, s.end.thread, s.start, s.end, origin, false);
+		}
+		for (ProfilingMeter child : getChildren()) {
+			child.writeTrace(out, origin, false);
+		}
+	}
+
+	private static void writeEvent(Writer out, String name, long tid, Sample start, Sample end, long origin,
+			boolean first) throws IOException {
+		out.write(first ? "\n" : ",\n");
+		out.write("{\"name\":\"" + escape(name) + "\",\"ph\":\"X\",\"pid\":1,\"tid\":" + tid);
+		out.write(",\"ts\":" + ((start.wall - origin) / 1000) + ",\"dur\":" + ((end.wall - start.wall) / 1000));
+		out.write(",\"args\":{\"cpu_us\":" + micros(Sample.cpu(start, end)) + ",\"alloc_bytes\":"
+				+ Sample.allocated(start, end) + "}}");
+	}
+
+	private static String format(long wall, long cpu, long allocated) {
+		String r = "[" + millis(wall) + "ms";
+		if (cpu >= 0) {
+			r += ", cpu " + millis(cpu) + "ms";
+		}
+		if (allocated >= 0) {
+			r += ", " + (allocated / 1024) + "kb";
+		}
+		return r + "]";
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3f", nanos / 1e6);
+	}
+
+	private static long micros(long nanos) {
+		return nanos < 0 ? -1 : nanos / 1000;
+	}
+
+	/**
+	 * Add two measurements, where either may be unknown (i.e. negative).
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @return
+	 */
+	private static long add(long lhs, long rhs) {
+		return (lhs < 0 || rhs < 0) ? -1 : lhs + rhs;
+	}
+
+	private static String escape(String str) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i != str.length(); ++i) {
+			char c = str.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Enable CPU time and allocation measurement for a newly constructed
+	 * top-level meter, remembering the previous settings if it is the first.
+	 */
+	private static synchronized void enable() {
+		if (active++ == 0 && THREADS != null) {
+			try {
+				cpuEnabled = THREADS.isThreadCpuTimeEnabled();
+				THREADS.setThreadCpuTimeEnabled(true);
+				if (ALLOCATION) {
+					com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREADS;
+					allocationEnabled = bean.isThreadAllocatedMemoryEnabled();
+					bean.setThreadAllocatedMemoryEnabled(true);
+				}
+			} catch (Throwable t) {
+				// Not permitted, hence measurements will be unknown
+			}
+		}
+	}
+
+	/**
+	 * Note that a top-level meter has completed, restoring the previous settings
+	 * for CPU time and allocation measurement if it was the last.
+	 */
+	private static synchronized void disable() {
+		if (--active == 0 && THREADS != null) {
+			try {
+				THREADS.setThreadCpuTimeEnabled(cpuEnabled);
+				if (ALLOCATION) {
+					((com.sun.management.ThreadMXBean) THREADS).setThreadAllocatedMemoryEnabled(allocationEnabled);
+				}
+			} catch (Throwable t) {
+				// Not permitted, hence nothing was changed
+			}
+		}
+	}
+
+	private static ThreadMXBean threadBean() {
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean.isCurrentThreadCpuTimeSupported()) {
+				return bean;
+			}
+		} catch (Throwable t) {
+			// Management API unavailable or not permitted
+		}
+		return null;
+	}
+
+	private static boolean allocationSupported() {
+		try {
+			if (THREADS instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREADS;
+				return bean.isThreadAllocatedMemorySupported();
+			}
+		} catch (Throwable t) {
+			// Extended management API unavailable on this JVM
+		}
+		return false;
+	}
+
+	/**
+	 * Represents a step recorded against a given meter.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Step {
+		private final String tag;
+		private final Sample start;
+		private final Sample end;
+
+		private Step(String tag, Sample start, Sample end) {
+			this.tag = tag;
+			this.start = start;
+			this.end = end;
+		}
+
+		public String getTag() {
+			return tag;
+		}
+
+		/**
+		 * Get the wall time (in nanoseconds) since the previous step.
+		 *
+		 * @return
+		 */
+		public long getWallTime() {
+			return end.wall - start.wall;
+		}
+
+		/**
+		 * Get the CPU time (in nanoseconds) since the previous step, or
+		 * <code>-1</code> if this is unknown.
+		 *
+		 * @return
+		 */
+		public long getCpuTime() {
+			return Sample.cpu(start, end);
+		}
+
+		/**
+		 * Get the number of bytes allocated since the previous step, or
+		 * <code>-1</code> if this is unknown.
+		 *
+		 * @return
+		 */
+		public long getAllocatedBytes() {
+			return Sample.allocated(start, end);
+		}
+	}
+
+	/**
+	 * A snapshot of the current time, along with the CPU time and allocation of
+	 * the current thread.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Sample {
+		private final long thread;
+		private final long wall;
+		private final long cpu;
+		private final long allocated;
+
+		public Sample() {
+			this.thread = Thread.currentThread().getId();
+			this.wall = System.nanoTime();
+			this.cpu = THREADS != null ? THREADS.getCurrentThreadCpuTime() : -1;
+			this.allocated = ALLOCATION ? ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(thread)
+					: -1;
+		}
+
+		public static long cpu(Sample start, Sample end) {
+			if (start.thread != end.thread || start.cpu < 0 || end.cpu < 0) {
+				return -1;
+			}
+			return end.cpu - start.cpu;
+		}
+
+		public static long allocated(Sample start, Sample end) {
+			if (start.thread != end.thread || start.allocated < 0 || end.allocated < 0) {
+				return -1;
+			}
+			return end.allocated - start.allocated;
+		}
+	}
+}
@@ -36,18 +36,91 @@ public class SectionedSchema implements SyntacticHeap.Schema {
 	 */
 	public static final SectionedSchema ROOT = new SectionedSchema(null, 0, 0, new Section[0]);
 
+	/**
+	 * <p>
+	 * Feature of the binary format which appends an offset table after the
+	 * last item. This records the byte offset of every Kth item (except the
+	 * first, which immediately follows the header), thus allowing readers to
+	 * seek directly to a given item. The table is followed by a trailer
+	 * consisting of the byte offset of the table and the stride K, both as
+	 * 32bit values. All offsets are relative to the start of the heap (i.e.
+	 * the first byte of its header), so they remain valid wherever the heap is
+	 * embedded. Since the table follows all items, readers which are unaware
+	 * of this feature are unaffected by it.
+	 * </p>
+	 * <p>
+	 * This feature is enabled for a schema through
+	 * <code>Builder.enable()</code>, which results in a minor
+	 * version increment.
+	 * </p>
+	 */
+	public static final Feature OFFSET_TABLE = new Feature("offset-table", true);
+
+	/**
+	 * <p>
+	 * Feature of the binary format which replaces the bit-packed encoding of
+	 * items with a byte-aligned encoding. After the header, the stream is
+	 * padded to a byte boundary and all variable-length values (i.e. counts,
+	 * lengths and indices) are written as LEB128 bytes, rather than 4 bit
+	 * chunks. Furthermore, each operand is written as the difference between
+	 * its index and that of the item itself, zigzag encoded so that small
+	 * negative differences remain small. Since operands typically refer to
+	 * nearby items, this keeps them compact regardless of heap size. Files are
+	 * slightly larger than the bit-packed encoding, but much quicker to decode.
+	 * </p>
+	 * <p>
+	 * As for <code>OFFSET_TABLE</code>, this feature is enabled for a schema
+	 * through <code>Builder.enable()</code>. Readers detect it
+	 * from the schema selected by <code>checkHeader()</code>. Since readers
+	 * unaware of this feature would misdecode every item, enabling it results
+	 * in a major version increment.
+	 * </p>
+	 */
+	public static final Feature LEB128 = new Feature("leb128", false);
+
+	/**
+	 * <p>
+	 * Feature of the binary format which writes the number of items and the
+	 * root index in a trailer after the last item (as two 32bit values), rather
+	 * than before the first. After the header, the stream is padded to a byte
+	 * boundary. Where an offset table is also present, the trailer immediately
+	 * precedes it. This allows items to be streamed out as they are produced,
+	 * without first building the entire heap (see
+	 * <code>SyntacticHeapWriter.begin()</code>).
+	 * </p>
+	 * <p>
+	 * Since the trailer must be located before reading any items, readers
+	 * require random access to the heap (i.e. must be constructed over a
+	 * buffer). Readers unaware of this feature would misread the first item
+	 * as the number of items and, hence, enabling it results in a major
+	 * version increment.
+	 * </p>
+	 */
+	public static final Feature TRAILER = new Feature("trailer", false);
+
 	private final Schema parent;
 	private final int major;
 	private final int minor;
 	private final Section[] sections;
 	private final Opcode[] opcodes;
+	/**
+	 * The optional features of the binary format enabled in this schema (e.g.
+	 * an offset table). Features are inherited by all schemas derived from
+	 * this.
+	 */
+	private final Feature[] features;
 
 	public SectionedSchema(Schema parent, int major, int minor, Section[] sections) {
+		this(parent, major, minor, sections, new Feature[0]);
+	}
+
+	public SectionedSchema(Schema parent, int major, int minor, Section[] sections, Feature[] features) {
 		this.parent = parent;
 		this.major = major;
 		this.minor = minor;
 		this.sections = sections;
 		this.opcodes = flattern(sections);
+		this.features = features;
 	}
 
 	@Override
@@ -84,6 +157,34 @@ public class SectionedSchema implements SyntacticHeap.Schema {
 		return sections[ith];
 	}
 
+	/**
+	 * Check whether a given feature of the binary format is enabled in this
+	 * schema.
+	 *
+	 * @param feature
+	 * @return
+	 */
+	public boolean hasFeature(Feature feature) {
+		for (int i = 0; i != features.length; ++i) {
+			if (features[i].name.equals(feature.name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether a given feature of the binary format is enabled in a given
+	 * schema. Only sectioned schemas can enable features.
+	 *
+	 * @param schema
+	 * @param feature
+	 * @return
+	 */
+	public static boolean hasFeature(Schema schema, Feature feature) {
+		return schema instanceof SectionedSchema && ((SectionedSchema) schema).hasFeature(feature);
+	}
+
 	/**
 	 * Begin an extension of this schema
 	 *
@@ -99,6 +200,45 @@ public class SectionedSchema implements SyntacticHeap.Schema {
 		return d == null ? null : d.schema;
 	}
 
+	/**
+	 * An optional feature of the binary format, such as an offset table. Most
+	 * features change how items are encoded and, hence, a reader which is
+	 * unaware of them would accept the heap but decode it incorrectly. Such
+	 * features are not backwards compatible. Others (e.g. an offset table
+	 * following all items) can be safely ignored by readers unaware of them.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Feature {
+		private final String name;
+		private final boolean compatible;
+
+		public Feature(String name, boolean compatible) {
+			this.name = name;
+			this.compatible = compatible;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Check whether readers unaware of this feature can still decode heaps
+		 * using it.
+		 *
+		 * @return
+		 */
+		public boolean isBackwardsCompatible() {
+			return compatible;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
 	public static class Section {
 		private final String name;
 		private final int size;
@@ -172,10 +312,34 @@ public class SectionedSchema implements SyntacticHeap.Schema {
 	public static class Builder {
 		private final SectionedSchema schema;
 		private final List<Action> delta;
+		private final List<Feature> features;
+		/**
+		 * Indicates whether every feature enabled through this builder is
+		 * backwards compatible.
+		 */
+		private boolean compatible = true;
 
 		public Builder(SectionedSchema schema) {
 			this.schema = schema;
 			this.delta = new ArrayList<>();
+			this.features = new ArrayList<>(Arrays.asList(schema.features));
+		}
+
+		/**
+		 * Enable an optional feature of the binary format (e.g. an offset table).
+		 * A feature which is not backwards compatible results in a major version
+		 * increment, such that older readers reject the heap.
+		 *
+		 * @param feature
+		 */
+		public void enable(Feature feature) {
+			for (Feature f : features) {
+				if (f.name.equals(feature.name)) {
+					return;
+				}
+			}
+			features.add(feature);
+			this.compatible &= feature.isBackwardsCompatible();
 		}
 
 		/**
@@ -225,7 +389,7 @@ public class SectionedSchema implements SyntacticHeap.Schema {
 			// Determine whether major or minor increment
 			Section[] sections = schema.sections;
 			sections = Arrays.copyOf(sections, sections.length);
-			boolean isMinor = true;
+			boolean isMinor = compatible;
 			for (int i = 0; i != delta.size(); ++i) {
 				Action ith = delta.get(i);
 				isMinor &= ith.isBackwardsCompatible();
@@ -240,7 +404,7 @@ public class SectionedSchema implements SyntacticHeap.Schema {
 				minor = 0;
 			}
 			//
-			return new SectionedSchema(schema, major, minor, sections);
+			return new SectionedSchema(schema, major, minor, sections, features.toArray(new Feature[features.size()]));
 		}
 	}
 
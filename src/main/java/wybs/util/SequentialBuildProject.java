@@ -59,6 +59,12 @@ public class SequentialBuildProject implements Build.Project {
 	 */
 	protected final ArrayList<Build.Rule> rules;
 
+	/**
+	 * The graph of instantiated build tasks. This is <code>null</code> when the
+	 * project is dirty and the build graph needs to be refreshed.
+	 */
+	protected BuildGraph graph;
+
 	/**
 	 * The set of instantiated build tasks in topological order. This is
 	 * <code>null</code> when the project is dirty and the build graph needs to be
@@ -71,6 +77,29 @@ public class SequentialBuildProject implements Build.Project {
 	 */
 	protected Function<Build.Meter,Boolean>[] instances;
 
+	/**
+	 * The ledger used for incremental builds. When this is <code>null</code>, every
+	 * task is executed on every build.
+	 */
+	protected BuildLedger ledger;
+
+	/**
+	 * Identifies those tasks which have completed successfully since the ledger
+	 * was last updated.
+	 */
+	protected final BitSet completed = new BitSet();
+
+	/**
+	 * Indicates whether the duration of each task is recorded during a build.
+	 */
+	protected boolean profiling;
+
+	/**
+	 * The duration of each task (in nanoseconds) during the most recent successful
+	 * build. This is <code>null</code> when no such build has been profiled.
+	 */
+	protected volatile long[] durations;
+
 	public SequentialBuildProject(Path.Root root) {
 		this.root = root;
 		this.rules = new ArrayList<>();
@@ -90,6 +119,45 @@ public class SequentialBuildProject implements Build.Project {
 		rules.add(rule);
 	}
 
+	/**
+	 * Enable incremental builds using a given ledger. When refreshed, only tasks
+	 * which are out-of-date with respect to the ledger (or depend upon such tasks)
+	 * will be executed by subsequent builds. The ledger is updated whenever the
+	 * project is flushed.
+	 *
+	 * @param ledger
+	 *            The ledger to use, or <code>null</code> to disable incremental
+	 *            builds.
+	 */
+	public void setLedger(BuildLedger ledger) {
+		this.ledger = ledger;
+	}
+
+	/**
+	 * Enable or disable profiling of builds. When enabled, the duration of every
+	 * task is recorded during each build. This allows the critical path through
+	 * the build graph to be determined.
+	 *
+	 * @param enabled
+	 */
+	public void setProfiling(boolean enabled) {
+		this.profiling = enabled;
+		this.durations = null;
+	}
+
+	/**
+	 * Get the critical path analysis for the most recent successful build. This
+	 * requires that profiling was enabled for that build.
+	 *
+	 * @return
+	 */
+	public CriticalPath getCriticalPath() {
+		if (durations == null || durations.length != graph.size()) {
+			throw new IllegalStateException("no build profile available");
+		}
+		return new CriticalPath(graph, durations);
+	}
+
 	/**
 	 * Get the top-level root associated with this project.
 	 *
@@ -115,6 +183,11 @@ public class SequentialBuildProject implements Build.Project {
 		return Arrays.asList(tasks);
 	}
 
+	@Override
+	public Build.Graph getGraph() {
+		return graph;
+	}
+
 	/**
 	 * Get the packages (i.e. dependencies) associated with this projects.
 	 *
@@ -140,6 +213,16 @@ public class SequentialBuildProject implements Build.Project {
 	 */
 	public void flush() throws IOException {
 		root.flush();
+		// Record tasks completed since last flush
+		if (ledger != null) {
+			synchronized (completed) {
+				for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)) {
+					ledger.record(tasks[i]);
+				}
+				completed.clear();
+			}
+			ledger.save();
+		}
 	}
 
 	/**
@@ -151,16 +234,25 @@ public class SequentialBuildProject implements Build.Project {
 	public void refresh() throws IOException {
 		// Refresh the root to ensure all filesystem changes are recognised.
 		root.refresh();
+		// Discard completed tasks not yet recorded, as task indices may change
+		synchronized (completed) {
+			completed.clear();
+		}
 		// Construct temporary list of tasks
 		ArrayList<Build.Task> tmp = new ArrayList<>();
 		// Match all rules to produce the list of tasks
 		for (Build.Rule rule : rules) {
 			rule.apply(tmp);
 		}
-		// Topologically sort tasks
-		this.tasks = topologicalSort(tmp);
+		// Construct build graph, which topologically sorts tasks
+		this.graph = new BuildGraph(tmp);
+		this.tasks = graph.toArray();
 		// Initialise task instances
-		this.instances = initialiseAll(tasks);
+		if (ledger == null) {
+			this.instances = initialiseAll(tasks);
+		} else {
+			this.instances = initialiseStale(determineStale(graph, ledger), tasks);
+		}
 	}
 
 	// ======================================================================
@@ -176,7 +268,73 @@ public class SequentialBuildProject implements Build.Project {
 	 */
 	@Override
 	public Future<Boolean> build(ExecutorService executor, Build.Meter meter) {
-		Future<Boolean> r = executor.submit(() -> execute(executor, meter, instances));
+		long[] profile = profiling ? new long[this.instances.length] : null;
+		Function<Build.Meter, Boolean>[] instances = prepare(profile);
+		Future<Boolean> r = executor.submit(() -> publish(execute(executor, meter, instances), profile));
+		return completeOnDone(r, meter);
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Prepare the task instances for a build. When profiling is enabled, each
+	 * instance is wrapped so that its duration is recorded in the given profile.
+	 *
+	 * @param profile
+	 *            The array in which to record durations, or <code>null</code> if
+	 *            the build is not being profiled.
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	protected Function<Build.Meter, Boolean>[] prepare(long[] profile) {
+		if (profile == null) {
+			return instances;
+		}
+		Function<Build.Meter, Boolean>[] timed = (Function<Build.Meter, Boolean>[]) new Function<?, ?>[instances.length];
+		for (int i = 0; i != instances.length; ++i) {
+			final int index = i;
+			final Function<Build.Meter, Boolean> instance = instances[i];
+			timed[i] = (meter) -> {
+				long start = System.nanoTime();
+				try {
+					return instance.apply(meter);
+				} finally {
+					profile[index] = System.nanoTime() - start;
+				}
+			};
+		}
+		return timed;
+	}
+
+	/**
+	 * Publish the profile of a completed build, providing it was successful. Thus,
+	 * the durations of a failed build (which may be incomplete) are never used.
+	 *
+	 * @param success
+	 *            The outcome of the build.
+	 * @param profile
+	 *            The durations recorded, or <code>null</code> if the build was not
+	 *            profiled.
+	 * @return The outcome of the build.
+	 */
+	protected boolean publish(boolean success, long[] profile) {
+		if (success && profile != null) {
+			this.durations = profile;
+		}
+		return success;
+	}
+
+	/**
+	 * Wrap a future representing the outcome of a build so that the given meter
+	 * is notified once the build has completed successfully.
+	 *
+	 * @param r
+	 * @param meter
+	 * @return
+	 */
+	protected static Future<Boolean> completeOnDone(Future<Boolean> r, Build.Meter meter) {
 		return new Future<Boolean>() {
 
 			@Override
@@ -216,10 +374,6 @@ public class SequentialBuildProject implements Build.Project {
 		};
 	}
 
-	// ======================================================================
-	// Helpers
-	// ======================================================================
-
 	/**
 	 * Execute a given set of build task instances in strict sequence. In other
 	 * words, do not allow concurrent execution of tasks which are independent of
@@ -256,57 +410,63 @@ public class SequentialBuildProject implements Build.Project {
 	}
 
 	/**
-	 * A very simple implementation of a topological sort over build tasks.
+	 * Initialise only those tasks which are stale. Every other task is replaced
+	 * with an instance which does nothing. Instances of stale tasks additionally
+	 * capture the state of their sources in the ledger when they start, and note
+	 * when they complete successfully, so the ledger can be updated.
 	 *
+	 * @param stale
 	 * @param tasks
+	 * @return
+	 * @throws IOException
 	 */
-	private static Build.Task[] topologicalSort(List<Build.Task> tasks) {
-		// Indicates whether tasks placed on stack or not.
-		BitSet placed = new BitSet();
-		// Holds topological ordering of tasks
-		ArrayList<Build.Task> stack = new ArrayList<>();
-		// Place each task in turn. This recursively ensures the ancestors for each task
-		// are placed first.
-		for (int i = 0; i != tasks.size(); ++i) {
-			if (!placed.get(i)) {
-				topologicalSort(i, tasks, placed, stack);
+	@SuppressWarnings("unchecked")
+	private Function<Build.Meter, Boolean>[] initialiseStale(BitSet stale, Build.Task... tasks) throws IOException {
+		Function<Build.Meter, Boolean>[] instances = (Function<Build.Meter, Boolean>[]) new Function<?, ?>[tasks.length];
+		final BuildLedger ledger = this.ledger;
+		for (int i = 0; i != tasks.length; ++i) {
+			if (stale.get(i)) {
+				final int index = i;
+				final Build.Task task = tasks[i];
+				final Function<Build.Meter, Boolean> instance = task.initialise();
+				instances[i] = (meter) -> {
+					ledger.begin(task);
+					boolean r = instance.apply(meter);
+					if (r) {
+						synchronized (completed) {
+							completed.set(index);
+						}
+					}
+					return r;
+				};
+			} else {
+				instances[i] = (meter) -> true;
 			}
 		}
-		//
-		// Write out tasks as an array
-		return stack.toArray(new Build.Task[stack.size()]);
+		return instances;
 	}
 
 	/**
-	 * Place the task at the give index into the topological order. The key is that
-	 * we must first ensure all ancestors are placed before we can place this task.
+	 * Determine which tasks in a given graph are stale. A task is stale if it is
+	 * not up-to-date with respect to the given ledger, or if any task on which it
+	 * depends is stale. Since tasks are topologically ordered, the parents of a
+	 * task are always considered before it.
 	 *
-	 * @param index
-	 *            Index in tasks list of the task being placed.
-	 * @param tasks
-	 *            The original list of tasks to be topological sorted.
-	 * @param placed
-	 *            Identifies tasks which have now been placed in the final ordering.
-	 * @param order
-	 *            The final ordering of tasks where the ancestors of a task are
-	 *            guaranteed to come before (i.e. have earlier indices) the task
-	 *            itself.
+	 * @param graph
+	 * @param ledger
+	 * @return
 	 */
-	private static void topologicalSort(int index, List<Build.Task> tasks, BitSet placed, List<Build.Task> order) {
-		// Extract task being placed
-		Build.Task task = tasks.get(index);
-		List<Path.Entry<?>> ancestors = task.getSources();
-		// First, place all ancestors
-		for (int i = 0; i != tasks.size(); ++i) {
-			Build.Task t = tasks.get(i);
-			// Check whether is an unplaced ancestor
-			if (ancestors.contains(t.getTarget()) && !placed.get(i)) {
-				// Yes, therefore place it
-				topologicalSort(i, tasks, placed, order);
+	private static BitSet determineStale(Build.Graph graph, BuildLedger ledger) {
+		BitSet stale = new BitSet();
+		for (int i = 0; i != graph.size(); ++i) {
+			boolean s = false;
+			for (int p : graph.getParents(i)) {
+				s |= stale.get(p);
+			}
+			if (s || !ledger.isUpToDate(graph.get(i))) {
+				stale.set(i);
 			}
 		}
-		// Finally, place this task
-		placed.set(index);
-		order.add(task);
+		return stale;
 	}
 }
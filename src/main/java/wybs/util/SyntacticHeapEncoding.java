@@ -0,0 +1,70 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.IOException;
+
+import wyfs.io.BinaryInputStream;
+
+/**
+ * Decodes the variable-length values of items in the binary form of a
+ * syntactic heap, as written by <code>SyntacticHeapWriter</code>. These are
+ * shared by <code>SyntacticHeapReader</code> and
+ * <code>MappedSyntacticHeap</code>, which must decode items in exactly the
+ * same way.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class SyntacticHeapEncoding {
+
+	private SyntacticHeapEncoding() {
+
+	}
+
+	/**
+	 * Read an unsigned value (e.g. a count or length) from a given stream.
+	 *
+	 * @param in
+	 * @param leb128
+	 *            Indicates whether the byte-aligned encoding is used.
+	 * @return
+	 * @throws IOException
+	 */
+	public static int readCount(BinaryInputStream in, boolean leb128) throws IOException {
+		return leb128 ? in.read_leb128() : in.read_uv();
+	}
+
+	/**
+	 * Read an operand of the item at a given index from a given stream. In the
+	 * byte-aligned encoding, operands are written as the zigzag encoded
+	 * difference from the index of their item.
+	 *
+	 * @param in
+	 * @param leb128
+	 *            Indicates whether the byte-aligned encoding is used.
+	 * @param index
+	 *            The index of the item being read.
+	 * @return
+	 * @throws IOException
+	 */
+	public static int readOperand(BinaryInputStream in, boolean leb128, int index) throws IOException {
+		if (leb128) {
+			int delta = in.read_leb128();
+			return index + ((delta >>> 1) ^ -(delta & 1));
+		} else {
+			return in.read_uv();
+		}
+	}
+}
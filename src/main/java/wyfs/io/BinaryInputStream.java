@@ -14,16 +14,57 @@
 package wyfs.io;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+/**
+ * Reads a stream of bits, where bits within each byte are read from the least
+ * significant position upwards. Bits are buffered in a 64-bit accumulator so
+ * that a field of several bits is extracted in one step, rather than one bit
+ * at a time. Bytes are only taken from the underlying stream when they are
+ * actually needed and, hence, the accumulator never holds more than seven
+ * unread bits between calls.
+ *
+ * @author David J. Pearce
+ *
+ */
 public class BinaryInputStream extends InputStream {
 	protected InputStream input;
-	protected int value;
+	/**
+	 * The accumulator holding unread bits, with the next bit in the least
+	 * significant position.
+	 */
+	protected long value;
+	/**
+	 * The number of unread bits in the accumulator.
+	 */
 	protected int count;
 
 	public BinaryInputStream(InputStream input) {
 		this.input = input;
 	}
 
+	/**
+	 * Read directly from a given buffer (e.g. a memory-mapped file), starting
+	 * from its current position.
+	 *
+	 * @param buffer
+	 */
+	public BinaryInputStream(ByteBuffer buffer) {
+		this(new ByteBufferInputStream(buffer));
+	}
+
+	/**
+	 * Read the remaining contents of a given file channel, which is
+	 * memory-mapped when sufficiently large.
+	 *
+	 * @param channel
+	 * @throws IOException
+	 */
+	public BinaryInputStream(FileChannel channel) throws IOException {
+		this(ByteBufferInputStream.read(channel));
+	}
+
 	@Override
 	public int read() throws IOException {
 		if(count == 0) {
@@ -35,23 +76,53 @@ public class BinaryInputStream extends InputStream {
 
 	@Override
 	public int read(byte[] bytes) throws IOException {
-		for (int i = 0; i != bytes.length; ++i) {
-			bytes[i] = (byte) read();
-		}
-		return bytes.length;
+		return read(bytes, 0, bytes.length);
 	}
 
+	/**
+	 * Read up to <code>length</code> bytes into a given array, blocking until
+	 * either all have been read or the end of stream is reached. When the
+	 * stream is byte aligned, bytes are read in bulk from the underlying
+	 * stream.
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return The number of bytes read, or -1 if the end of stream was reached
+	 *         before any were read.
+	 */
 	@Override
 	public int read(byte[] bytes, int offset, int length) throws IOException {
-		for(;offset < length;++offset) {
-			bytes[offset] = (byte) read();
+		if (length == 0) {
+			return 0;
+		} else if (count == 0) {
+			int total = 0;
+			while (total < length) {
+				int n = input.read(bytes, offset + total, length - total);
+				if (n < 0) {
+					break;
+				}
+				total += n;
+			}
+			return total == 0 ? -1 : total;
+		} else {
+			for (int i = 0; i != length; ++i) {
+				if (!fill(8)) {
+					return i == 0 ? -1 : i;
+				}
+				bytes[offset + i] = (byte) read_un(8);
+			}
+			return length;
 		}
-		return length;
 	}
 
 	public int read_u8() throws IOException {
 		if(count == 0) {
-			return input.read() & 0xFF;
+			int b = input.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			return b;
 		} else {
 			return read_un(8);
 		}
@@ -62,49 +133,125 @@ public class BinaryInputStream extends InputStream {
 	}
 
 	public long read_u32() throws IOException {
-		// FIXME: this is most definitely broken
-		return (read_u8() << 24) | (read_u8() << 16) | (read_u8() << 8)
-				| read_u8();
+		return ((long) read_u16() << 16) | read_u16();
 	}
 
+	/**
+	 * Read an unsigned integer of up to 32 bits, where the first bit read is
+	 * the least significant.
+	 *
+	 * @param n
+	 * @return
+	 * @throws IOException
+	 */
 	public int read_un(int n) throws IOException {
-		int value = 0;
-		int mask = 1;
-		for(int i=0;i!=n;++i) {
-			if(read_bit()) {
-				value |= mask;
-			}
-			mask = mask << 1;
+		if (!fill(n)) {
+			throw new EOFException();
 		}
-		return value;
+		int r = (int) (value & ((1L << n) - 1));
+		value = value >>> n;
+		count = count - n;
+		return r;
 	}
 
 	public int read_uv() throws IOException {
 		int value = 0;
-		boolean flag = true;
 		int shift = 0;
-		while(flag) {
-			int w = read_un(4);
-			flag = (w&8) != 0;
-			value = ((w&7)<<shift) | value;
+		int w;
+		do {
+			w = read_un(4);
+			value = ((w & 7) << shift) | value;
 			shift = shift + 3;
+		} while ((w & 8) != 0);
+		return value;
+	}
+
+	/**
+	 * Read an unsigned integer value written using a variable number of bytes
+	 * (i.e. LEB128). This is intended for use when the stream is byte aligned.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public int read_leb128() throws IOException {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = read_u8();
+			value = ((b & 0x7F) << shift) | value;
+			shift = shift + 7;
+		} while ((b & 0x80) != 0 && shift < 35);
+		if ((b & 0x80) != 0) {
+			throw new IOException("invalid LEB128 value");
 		}
 		return value;
 	}
 
 	public boolean read_bit() throws IOException {
-		if(count == 0) {
-			value = input.read();
-			if(value < 0) { throw new EOFException(); }
-			count = 8;
+		return read_un(1) != 0;
+	}
+
+	/**
+	 * Skip over up to <code>n</code> bytes. When the stream is byte aligned,
+	 * bytes are skipped in the underlying stream without being read.
+	 *
+	 * @param n
+	 * @return The number of bytes skipped.
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		if (count == 0) {
+			return input.skip(n);
 		}
-		boolean r = (value&1) != 0;
-		value = value >> 1;
-		count = count - 1;
-		return r;
+		long i = 0;
+		while (i < n && fill(8)) {
+			read_un(8);
+			i = i + 1;
+		}
+		return i;
+	}
+
+	/**
+	 * Get the position (in bits) reached within the underlying buffer,
+	 * accounting for any bits of the current byte not yet read. This requires
+	 * the stream was constructed over a buffer.
+	 *
+	 * @return
+	 */
+	public long getBitPosition() {
+		if (!(input instanceof ByteBufferInputStream)) {
+			throw new IllegalStateException("stream not constructed over a buffer");
+		}
+		return ((ByteBufferInputStream) input).getBuffer().position() * 8L - count;
 	}
 
 	public void pad_u8() throws IOException {
+		value = 0;
 		count = 0; // easy!!
 	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Ensure the accumulator holds at least <code>n</code> unread bits, by
+	 * reading as few bytes as necessary from the underlying stream.
+	 *
+	 * @param n
+	 * @return False if the end of stream was reached first.
+	 * @throws IOException
+	 */
+	private boolean fill(int n) throws IOException {
+		while (count < n) {
+			int b = input.read();
+			if (b < 0) {
+				return false;
+			}
+			value |= ((long) b) << count;
+			count = count + 8;
+		}
+		return true;
+	}
 }
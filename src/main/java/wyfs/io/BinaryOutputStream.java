@@ -14,10 +14,29 @@
 package wyfs.io;
 
 import java.io.*;
+import java.nio.channels.WritableByteChannel;
 
+/**
+ * Writes a stream of bits, where bits within each byte are written from the
+ * least significant position upwards. Bits are buffered in a 64-bit
+ * accumulator so that a field of several bits is appended in one step, rather
+ * than one bit at a time. Complete bytes are passed on to the underlying
+ * stream immediately and, hence, the accumulator never holds more than seven
+ * pending bits between calls.
+ *
+ * @author David J. Pearce
+ *
+ */
 public class BinaryOutputStream extends OutputStream {
 	protected OutputStream output;
-	protected int value;
+	/**
+	 * The accumulator holding pending bits, with the first bit in the least
+	 * significant position.
+	 */
+	protected long value;
+	/**
+	 * The number of pending bits in the accumulator.
+	 */
 	protected int count;
 	protected int length;
 
@@ -29,6 +48,16 @@ public class BinaryOutputStream extends OutputStream {
 		this.output = output;
 	}
 
+	/**
+	 * Write out data in big-endian format directly to a given channel (e.g. a
+	 * <code>FileChannel</code>), buffering as necessary.
+	 *
+	 * @param channel
+	 */
+	public BinaryOutputStream(WritableByteChannel channel) {
+		this(new ChannelOutputStream(channel));
+	}
+
 	/**
 	 * Get number of bytes written.
 	 * @return
@@ -37,6 +66,16 @@ public class BinaryOutputStream extends OutputStream {
 		return length;
 	}
 
+	/**
+	 * Get number of bits written, including those not yet making up a whole
+	 * byte.
+	 *
+	 * @return
+	 */
+	public long bitLength() {
+		return (length * 8L) + count;
+	}
+
 	/**
 	 * Write an unsigned integer value using 8bits using a big-endian encoding.
 	 *
@@ -55,15 +94,27 @@ public class BinaryOutputStream extends OutputStream {
 
 	@Override
 	public void write(byte[] bytes) throws IOException {
-		for(byte b : bytes) {
-			write(b);
-		}
+		write(bytes, 0, bytes.length);
 	}
 
+	/**
+	 * Write a number of bytes from a given array. When the stream is byte
+	 * aligned, these are written in bulk to the underlying stream.
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
 	@Override
 	public void write(byte[] bytes, int offset, int length) throws IOException {
-		for(;offset < length;++offset) {
-			write(bytes[offset]);
+		if (count == 0) {
+			output.write(bytes, offset, length);
+			this.length += length;
+		} else {
+			for (int i = offset; i != offset + length; ++i) {
+				write_bits(bytes[i] & 0xFF, 8);
+			}
 		}
 	}
 
@@ -78,7 +129,7 @@ public class BinaryOutputStream extends OutputStream {
 			output.write(w & 0xFF);
 			length++;
 		} else {
-			write_un(w & 0xFF,8);
+			write_bits(w & 0xFF, 8);
 		}
 	}
 
@@ -121,15 +172,40 @@ public class BinaryOutputStream extends OutputStream {
 		if(w < 0) {
 			throw new IllegalArgumentException("cannot write negative number in a variable amount of space");
 		}
+		// Encode all chunks first, so they can be appended in one go. At most
+		// 11 chunks are required for a non-negative int.
+		long bits = 0;
+		int n = 0;
 		do {
 			int t = w & 7;
 			w = w >> 3;
 			if(w != 0) {
-				write_un(8|t,4);
-			} else {
-				write_un(t,4);
+				t = 8 | t;
 			}
+			bits |= ((long) t) << n;
+			n = n + 4;
 		} while(w != 0);
+		write_bits(bits, n);
+	}
+
+	/**
+	 * Write an unsigned integer value using a variable number of bytes (i.e.
+	 * LEB128). The value is split into 7 bit chunks, least significant first,
+	 * where the msb of each byte is a flag indicating whether there are more
+	 * chunks. Therefore, values between 0 and 127 fit into one byte. Unlike
+	 * <code>write_uv()</code>, this is intended for use when the stream is byte
+	 * aligned, in which case each byte is written directly.
+	 *
+	 * @param w
+	 *            --- number to convert (which is treated as unsigned)
+	 * @throws IOException
+	 */
+	public void write_leb128(int w) throws IOException {
+		while ((w & ~0x7F) != 0) {
+			write_u8((w & 0x7F) | 0x80);
+			w = w >>> 7;
+		}
+		write_u8(w);
 	}
 
 	/**
@@ -139,26 +215,11 @@ public class BinaryOutputStream extends OutputStream {
 	 * @throws IOException
 	 */
 	public void write_un(int bits, int n) throws IOException {
-		int mask = 1;
-		for(int i=0;i<n;++i) {
-			boolean bit = (bits & mask) != 0;
-			write_bit(bit);
-			mask = mask << 1;
-		}
+		write_bits(bits & ((1L << n) - 1), n);
 	}
 
 	public void write_bit(boolean bit) throws IOException {
-		value = value >> 1;
-		if(bit) {
-			value |= 128;
-		}
-		count = count + 1;
-		if(count == 8) {
-			count = 0;
-			output.write(value);
-			length++;
-			value = 0;
-		}
+		write_bits(bit ? 1 : 0, 1);
 	}
 
 	/**
@@ -167,7 +228,7 @@ public class BinaryOutputStream extends OutputStream {
 	 */
 	public void pad_u8() throws IOException {
 		if (count > 0) {
-			output.write(value >>> (8-count));
+			output.write((int) value);
 			length++;
 			value = 0;
 			count = 0;
@@ -187,11 +248,37 @@ public class BinaryOutputStream extends OutputStream {
 			// write. This means we have to pad out the remainder of a byte.
 			// Instead of padding with zeros, I pad with ones. The reason for
 			// this is that it forces an EOF when reading back in with read_uv().
-			value = value >>> (8-count);
 			int mask = 0xff & ((~0) << count);
-			value = value | mask;
-			output.write(value);
+			output.write((int) value | mask);
+			length++;
+			value = 0;
+			count = 0;
+		}
+		output.flush();
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Append the lowest <code>n</code> bits of a given value (whose remaining
+	 * bits must be zero), passing on any completed bytes to the underlying
+	 * stream. Since at most seven bits are pending, up to 56 bits can be
+	 * appended at once.
+	 *
+	 * @param bits
+	 * @param n
+	 * @throws IOException
+	 */
+	private void write_bits(long bits, int n) throws IOException {
+		value |= bits << count;
+		count = count + n;
+		while (count >= 8) {
+			output.write((int) value & 0xFF);
 			length++;
+			value = value >>> 8;
+			count = count - 8;
 		}
 	}
 
@@ -0,0 +1,286 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyfs.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Provides access to a block-compressed container, as written by
+ * <code>BlockCompressedOutputStream</code>. The container is read from a
+ * buffer (e.g. a memory-mapped file), and each block is only decompressed
+ * when requested. Since blocks are independent, they can be decompressed in
+ * any order and from multiple threads.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BlockCompressedFile {
+	private final ByteBuffer buffer;
+	private final byte[] dictionary;
+	private final int blockSize;
+	private final int[] offsets;
+	/**
+	 * The offset of the index, which marks the end of the last block.
+	 */
+	private final int index;
+	/**
+	 * The total number of uncompressed bytes.
+	 */
+	private final long length;
+
+	/**
+	 * Open a container held in a given buffer, using a given dictionary. This
+	 * assumes the container spans from the buffer's position to its limit.
+	 *
+	 * @param buffer
+	 * @param dictionary
+	 *            The dictionary used when the container was written, or
+	 *            <code>null</code> if none.
+	 * @throws IOException
+	 */
+	public BlockCompressedFile(ByteBuffer buffer, byte[] dictionary) throws IOException {
+		this.buffer = buffer.slice();
+		this.dictionary = dictionary;
+		int limit = this.buffer.limit();
+		if (!isCompressed(this.buffer) || limit < 32) {
+			throw new IOException("invalid block compressed container");
+		}
+		this.blockSize = this.buffer.getInt(4);
+		if (this.buffer.getInt(8) != BlockCompressedOutputStream.checksum(dictionary)) {
+			throw new IOException("incorrect dictionary for block compressed container");
+		}
+		this.index = this.buffer.getInt(limit - 20);
+		int blocks = this.buffer.getInt(limit - 16);
+		this.length = ((long) this.buffer.getInt(limit - 12) << 32) | (this.buffer.getInt(limit - 8) & 0xFFFFFFFFL);
+		if (blockSize < 1 || blocks < 0 || index < 12 || (long) index + blocks * 4L != limit - 20
+				|| length > (long) blocks * blockSize || length <= (long) (blocks - 1) * blockSize) {
+			throw new IOException("invalid block compressed container");
+		}
+		this.offsets = new int[blocks];
+		for (int i = 0; i != blocks; ++i) {
+			offsets[i] = this.buffer.getInt(index + (i * 4));
+		}
+	}
+
+	/**
+	 * Check whether a given buffer holds a block-compressed container,
+	 * starting from its current position.
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	public static boolean isCompressed(ByteBuffer buffer) {
+		ByteBuffer b = buffer.slice();
+		int limit = b.limit();
+		return limit >= 8 && b.getInt(0) == BlockCompressedOutputStream.MAGIC
+				&& b.getInt(limit - 4) == BlockCompressedOutputStream.MAGIC;
+	}
+
+	/**
+	 * Get the total number of uncompressed bytes in this container.
+	 *
+	 * @return
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Get the number of blocks in this container.
+	 *
+	 * @return
+	 */
+	public int getBlockCount() {
+		return offsets.length;
+	}
+
+	/**
+	 * Get the number of uncompressed bytes in a given block.
+	 *
+	 * @param block
+	 * @return
+	 */
+	public int getBlockLength(int block) {
+		if (block < 0 || block >= offsets.length) {
+			throw new IndexOutOfBoundsException("invalid block (" + block + ")");
+		} else if (block == offsets.length - 1) {
+			return (int) (length - ((long) block * blockSize));
+		} else {
+			return blockSize;
+		}
+	}
+
+	/**
+	 * Decompress a given block. This is safe to call from multiple threads.
+	 *
+	 * @param block
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] readBlock(int block) throws IOException {
+		byte[] bytes = new byte[getBlockLength(block)];
+		readBlock(block, bytes, 0);
+		return bytes;
+	}
+
+	/**
+	 * Get an input stream over the uncompressed contents of this container.
+	 * Blocks are decompressed only as they are reached.
+	 *
+	 * @return
+	 */
+	public InputStream inputStream() {
+		return new InputStream() {
+			private int block = 0;
+			private byte[] bytes = new byte[0];
+			private int position = 0;
+
+			@Override
+			public int read() throws IOException {
+				return fill() ? bytes[position++] & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] output, int offset, int length) throws IOException {
+				if (length == 0) {
+					return 0;
+				} else if (!fill()) {
+					return -1;
+				}
+				length = Math.min(length, bytes.length - position);
+				System.arraycopy(bytes, position, output, offset, length);
+				position += length;
+				return length;
+			}
+
+			private boolean fill() throws IOException {
+				while (position == bytes.length) {
+					if (block == offsets.length) {
+						return false;
+					}
+					bytes = readBlock(block++);
+					position = 0;
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Decompress the entire contents of this container, decompressing blocks
+	 * in parallel on a given pool.
+	 *
+	 * @param pool
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteBuffer readAll(ForkJoinPool pool) throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("block compressed container too large");
+		}
+		byte[] bytes = new byte[(int) length];
+		try {
+			pool.invoke(new Decompression(this, bytes, 0, offsets.length));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return ByteBuffer.wrap(bytes);
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Decompress a given block into a given array at a given offset.
+	 *
+	 * @param block
+	 * @param output
+	 * @param offset
+	 * @throws IOException
+	 */
+	private void readBlock(int block, byte[] output, int offset) throws IOException {
+		int length = getBlockLength(block);
+		int start = offsets[block];
+		int end = block + 1 < offsets.length ? offsets[block + 1] : index;
+		if (start < 12 || end < start || end > index) {
+			throw new IOException("invalid block compressed container");
+		}
+		byte[] compressed = new byte[end - start];
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(start);
+		slice.get(compressed);
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			int n = 0;
+			while (n < length) {
+				int r = inflater.inflate(output, offset + n, length - n);
+				if (r == 0) {
+					if (inflater.needsDictionary() && dictionary != null) {
+						inflater.setDictionary(dictionary);
+					} else if (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) {
+						throw new IOException("truncated block in block compressed container");
+					}
+				}
+				n += r;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("invalid block in block compressed container", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Responsible for decompressing a range of blocks, splitting the range in
+	 * two where it contains more than one block.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Decompression extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final BlockCompressedFile file;
+		private final byte[] output;
+		private final int start;
+		private final int end;
+
+		public Decompression(BlockCompressedFile file, byte[] output, int start, int end) {
+			this.file = file;
+			this.output = output;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > 1) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new Decompression(file, output, start, middle), new Decompression(file, output, middle, end));
+			} else if (start < end) {
+				try {
+					file.readBlock(start, output, start * file.blockSize);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	}
+}
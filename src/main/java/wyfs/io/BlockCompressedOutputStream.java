@@ -0,0 +1,331 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyfs.io;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>
+ * Writes a block-compressed container, which can be read using
+ * <code>BlockCompressedFile</code>. The contents are split into fixed-size
+ * blocks, each of which is compressed independently using
+ * <code>Deflater</code>. Thus, any block can be decompressed without the
+ * others, allowing a container to be read lazily or in parallel. The container
+ * is laid out as follows:
+ * </p>
+ *
+ * <pre>
+ * +----------------+
+ * | Header         |  u32 magic, u32 block size, u32 dictionary checksum
+ * +----------------+
+ * | Block 0        |  zlib stream
+ * | ...            |
+ * | Block n-1      |
+ * +----------------+
+ * | Index          |  u32 offset of each block
+ * +----------------+
+ * | Trailer        |  u32 index offset, u32 block count, u32 length (hi),
+ * |                |  u32 length (lo), u32 magic
+ * +----------------+
+ * </pre>
+ * <p>
+ * Since blocks are small, compression benefits significantly from a preset
+ * dictionary holding content common to many files (e.g. identifiers and item
+ * encodings). The dictionary itself is not stored in the container, only its
+ * Adler-32 checksum. Rather, it is expected to be stored once (e.g. per
+ * package) and shared by all containers therein. A suitable dictionary can be
+ * produced from sample files using <code>train()</code>.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BlockCompressedOutputStream extends OutputStream {
+	/**
+	 * Magic number identifying a block-compressed container (i.e. "WYBC").
+	 */
+	public static final int MAGIC = 0x57594243;
+
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	private final BinaryOutputStream output;
+	private final byte[] dictionary;
+	private final Deflater deflater;
+	/**
+	 * The current block being filled.
+	 */
+	private final byte[] block;
+	/**
+	 * The number of bytes in the current block.
+	 */
+	private int count;
+	/**
+	 * The total number of (uncompressed) bytes written.
+	 */
+	private long length;
+	/**
+	 * The offset of each block written so far.
+	 */
+	private int[] offsets = new int[8];
+	private int blocks;
+	private final byte[] compressed;
+	private boolean closed;
+
+	public BlockCompressedOutputStream(OutputStream output) throws IOException {
+		this(output, null, DEFAULT_BLOCK_SIZE);
+	}
+
+	public BlockCompressedOutputStream(OutputStream output, byte[] dictionary) throws IOException {
+		this(output, dictionary, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Construct a container with a given (optional) dictionary and block size.
+	 *
+	 * @param output
+	 * @param dictionary
+	 *            Preset dictionary for compressing each block, or
+	 *            <code>null</code> for none.
+	 * @param blockSize
+	 *            The number of uncompressed bytes in each block.
+	 * @throws IOException
+	 */
+	public BlockCompressedOutputStream(OutputStream output, byte[] dictionary, int blockSize) throws IOException {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("invalid block size (" + blockSize + ")");
+		}
+		this.output = new BinaryOutputStream(output);
+		this.dictionary = dictionary;
+		this.deflater = new Deflater();
+		this.block = new byte[blockSize];
+		this.compressed = new byte[blockSize + 64];
+		this.output.write_u32(MAGIC);
+		this.output.write_u32(blockSize);
+		this.output.write_u32(checksum(dictionary));
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == block.length) {
+			writeBlock();
+		}
+		block[count++] = (byte) b;
+		length++;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (count == block.length) {
+				writeBlock();
+			}
+			int n = Math.min(length, block.length - count);
+			System.arraycopy(bytes, offset, block, count, n);
+			count += n;
+			offset += n;
+			length -= n;
+			this.length += n;
+		}
+	}
+
+	/**
+	 * Write the final block, followed by the index and trailer. No further
+	 * bytes may be written after this.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (!closed) {
+			if (count > 0) {
+				writeBlock();
+			}
+			int index = output.length();
+			for (int i = 0; i != blocks; ++i) {
+				output.write_u32(offsets[i]);
+			}
+			output.write_u32(index);
+			output.write_u32(blocks);
+			output.write_u32((int) (length >>> 32));
+			output.write_u32((int) length);
+			output.write_u32(MAGIC);
+			output.flush();
+			deflater.end();
+			closed = true;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		output.close();
+	}
+
+	/**
+	 * <p>
+	 * Train a dictionary of a given size from a number of sample files. The
+	 * dictionary consists of the byte sequences occurring most frequently
+	 * across the samples, such as common identifiers and item encodings.
+	 * Sequences are ordered from least to most frequent, since
+	 * <code>Deflater</code> encodes matches which are closer to the end of the
+	 * dictionary more cheaply.
+	 * </p>
+	 * <p>
+	 * This is a simple heuristic, based on counting the number of samples in
+	 * which each sequence of a fixed length occurs. Overlapping sequences are
+	 * merged together where possible.
+	 * </p>
+	 *
+	 * @param samples
+	 * @param size
+	 *            The maximum size of the dictionary (which cannot exceed 32KB
+	 *            for <code>Deflater</code> to make use of it all).
+	 * @return
+	 */
+	public static byte[] train(List<byte[]> samples, int size) {
+		final int k = 8;
+		// Count the number of samples containing each sequence
+		Map<Sequence, Integer> counts = new HashMap<>();
+		for (byte[] sample : samples) {
+			Map<Sequence, Boolean> seen = new HashMap<>();
+			for (int i = 0; i + k <= sample.length; ++i) {
+				Sequence s = new Sequence(Arrays.copyOfRange(sample, i, i + k));
+				if (seen.put(s, Boolean.TRUE) == null) {
+					counts.merge(s, 1, Integer::sum);
+				}
+			}
+		}
+		// Select most frequent sequences which occur more than once
+		List<Map.Entry<Sequence, Integer>> entries = new ArrayList<>(counts.entrySet());
+		entries.removeIf(e -> e.getValue() < 2);
+		Collections.sort(entries, (l, r) -> {
+			int c = Integer.compare(r.getValue(), l.getValue());
+			return c != 0 ? c : l.getKey().compareTo(r.getKey());
+		});
+		List<ByteArrayOutputStream> runs = new ArrayList<>();
+		byte[] last = null;
+		int total = 0;
+		for (int i = 0; i < entries.size() && total < size; ++i) {
+			byte[] bytes = entries.get(i).getKey().bytes;
+			if (last != null && Arrays.equals(Arrays.copyOfRange(last, 1, k), Arrays.copyOfRange(bytes, 0, k - 1))) {
+				// Sequence overlaps with previous one, hence extend it
+				runs.get(runs.size() - 1).write(bytes[k - 1]);
+				total += 1;
+			} else {
+				int n = Math.min(k, size - total);
+				ByteArrayOutputStream run = new ByteArrayOutputStream();
+				run.write(bytes, 0, n);
+				runs.add(run);
+				total += n;
+			}
+			last = bytes;
+		}
+		// Write runs in reverse, so most frequent are at the end
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+		for (int i = runs.size() - 1; i >= 0; --i) {
+			byte[] run = runs.get(i).toByteArray();
+			dictionary.write(run, 0, run.length);
+		}
+		return dictionary.toByteArray();
+	}
+
+	/**
+	 * Determine the checksum of a given dictionary, as recorded in a container.
+	 *
+	 * @param dictionary
+	 * @return
+	 */
+	public static int checksum(byte[] dictionary) {
+		if (dictionary == null) {
+			return 0;
+		} else {
+			Adler32 adler = new Adler32();
+			adler.update(dictionary);
+			return (int) adler.getValue();
+		}
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Compress the current block and write it out. The deflater is reset for
+	 * each block, thus ensuring blocks can be decompressed independently.
+	 *
+	 * @throws IOException
+	 */
+	private void writeBlock() throws IOException {
+		if (blocks == offsets.length) {
+			offsets = Arrays.copyOf(offsets, blocks * 2);
+		}
+		offsets[blocks++] = output.length();
+		deflater.reset();
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(block, 0, count);
+		deflater.finish();
+		while (!deflater.finished()) {
+			int n = deflater.deflate(compressed);
+			output.write(compressed, 0, n);
+		}
+		count = 0;
+	}
+
+	/**
+	 * A fixed-length sequence of bytes, as considered when training a
+	 * dictionary.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Sequence implements Comparable<Sequence> {
+		private final byte[] bytes;
+		private final int hash;
+
+		public Sequence(byte[] bytes) {
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode(bytes);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Sequence && Arrays.equals(bytes, ((Sequence) o).bytes);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public int compareTo(Sequence other) {
+			for (int i = 0; i != bytes.length; ++i) {
+				int c = Byte.compare(bytes[i], other.bytes[i]);
+				if (c != 0) {
+					return c;
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyfs.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An input stream which reads directly from a <code>ByteBuffer</code>, rather
+ * than from an underlying stream. Reading bytes never results in a system call
+ * and, when the buffer is memory-mapped, the contents of a file are never
+ * copied into the Java heap. The stream reads from the buffer's current
+ * position, and advances it as bytes are read.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ByteBufferInputStream extends InputStream {
+	/**
+	 * Files smaller than this are read directly into the heap by
+	 * <code>open()</code>, since mapping them costs more than copying.
+	 */
+	public static final int MAP_THRESHOLD = 64 * 1024;
+
+	private final ByteBuffer buffer;
+
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Open a stream over the contents of a given file. Larger files are
+	 * memory-mapped, whilst smaller ones are read in a single operation. Since
+	 * a mapping persists until its buffer is garbage collected, the file should
+	 * not be modified or replaced whilst the stream remains reachable (see
+	 * <code>load()</code>).
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static ByteBufferInputStream open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return new ByteBufferInputStream(read(channel));
+		}
+	}
+
+	/**
+	 * Read the remaining contents of a given channel into a buffer. Larger
+	 * channels are memory-mapped, whilst smaller ones are read in a single
+	 * operation.
+	 *
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	public static ByteBuffer read(FileChannel channel) throws IOException {
+		long position = channel.position();
+		long size = channel.size() - position;
+		if (size >= MAP_THRESHOLD) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+			channel.position(position + size);
+			return buffer;
+		} else {
+			return readFully(channel, size);
+		}
+	}
+
+	/**
+	 * Open a stream over the contents of a given file, which are read into the
+	 * heap in a single operation regardless of size. Unlike <code>open()</code>,
+	 * the file is never mapped and, hence, can subsequently be overwritten or
+	 * replaced (which some platforms prevent for mapped files).
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static ByteBufferInputStream load(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("file too large: " + file);
+			}
+			return new ByteBufferInputStream(readFully(channel, size));
+		}
+	}
+
+	/**
+	 * Get the buffer underlying this stream, whose position reflects the bytes
+	 * read so far.
+	 *
+	 * @return
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	@Override
+	public int read() {
+		return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) {
+		if (length == 0) {
+			return 0;
+		} else if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		length = Math.min(length, buffer.remaining());
+		buffer.get(bytes, offset, length);
+		return length;
+	}
+
+	@Override
+	public long skip(long n) {
+		int k = (int) Math.max(0, Math.min(n, buffer.remaining()));
+		buffer.position(buffer.position() + k);
+		return k;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private static ByteBuffer readFully(FileChannel channel, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			// keep going
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
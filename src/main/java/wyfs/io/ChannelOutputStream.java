@@ -0,0 +1,103 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wyfs.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An output stream which writes directly to a <code>WritableByteChannel</code>
+ * (e.g. a <code>FileChannel</code>). Bytes are accumulated in a buffer, and
+ * only written to the channel when this fills or the stream is flushed. Hence,
+ * writing bytes individually does not result in a system call for each. The
+ * buffer is allocated on the Java heap, since streams are typically short
+ * lived and direct buffers are expensive to allocate and only reclaimed by
+ * garbage collection.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ChannelOutputStream extends OutputStream {
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+
+	public ChannelOutputStream(WritableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	public ChannelOutputStream(WritableByteChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			drain();
+		}
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		if (length > buffer.capacity()) {
+			// Too large to be worth buffering
+			drain();
+			write(ByteBuffer.wrap(bytes, offset, length));
+		} else {
+			if (length > buffer.remaining()) {
+				drain();
+			}
+			buffer.put(bytes, offset, length);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		drain();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			drain();
+		} finally {
+			channel.close();
+		}
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Write out everything accumulated in the buffer to the channel.
+	 *
+	 * @throws IOException
+	 */
+	private void drain() throws IOException {
+		buffer.flip();
+		write(buffer);
+		buffer.clear();
+	}
+
+	private void write(ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+	}
+}
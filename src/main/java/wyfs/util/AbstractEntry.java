@@ -14,6 +14,7 @@
 package wyfs.util;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
 
 import wyfs.lang.Content;
@@ -68,7 +69,10 @@ public abstract class AbstractEntry<T> implements Path.Entry<T> {
 	@Override
 	public void flush() throws IOException {
 		if(modified && contents != null) {
-			contentType.write(outputStream(), contents);
+			// NOTE: output streams may be buffered, hence must be closed
+			try (OutputStream output = outputStream()) {
+				contentType.write(output, contents);
+			}
 			this.modified = false;
 		}
 	}
@@ -14,8 +14,12 @@
 package wyfs.util;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
+import wyfs.io.ByteBufferInputStream;
+import wyfs.io.ChannelOutputStream;
 import wyfs.lang.Content;
 import wyfs.lang.Path;
 import wyfs.lang.Content.Filter;
@@ -215,13 +219,17 @@ public class DirectoryRoot extends AbstractRoot<DirectoryRoot.Folder> {
 
 		@Override
 		public InputStream inputStream() throws IOException {
-			return new FileInputStream(file);
+			// Read the whole file in one go, so that subsequent reads never
+			// require a system call. The file is not mapped, since it may be
+			// overwritten whilst the stream is still reachable.
+			return ByteBufferInputStream.load(file.toPath());
 		}
 
 		@Override
 		public OutputStream outputStream() throws IOException {
 			file.getParentFile().mkdirs();
-			return new FileOutputStream(file);
+			return new ChannelOutputStream(FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
 		}
 
 		@Override
@@ -0,0 +1,242 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.*;
+
+import wyfs.io.BinaryInputStream;
+import wyfs.io.BinaryOutputStream;
+
+/**
+ * Tests for the bit-level binary streams. Values written must be read back
+ * unchanged, and the encoding must remain identical to that of earlier
+ * versions.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BinaryStreamTests {
+
+	@Test public void encoding_1() throws IOException {
+		// Bytes produced by earlier versions of the stream
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinaryOutputStream output = new BinaryOutputStream(bytes);
+		output.write_u8(0xAB);
+		output.write_bit(true);
+		output.write_un(5, 3);
+		output.write_uv(300);
+		output.write_u16(0x1234);
+		output.write_un(0x1FFFF, 17);
+		output.pad_u8();
+		output.write_u32(0xDEADBEEF);
+		output.write_uv(0);
+		output.write_uv(7);
+		output.write_uv(8);
+		output.write_bit(false);
+		output.write(new byte[] { 1, 2, 3 });
+		output.write_un(1, 1);
+		output.write_uv(123456789);
+		output.close();
+		assertArrayEquals(fromHex("abcb4d1234ffff01deadbeef7018020406b6b2f3bbde"), bytes.toByteArray());
+	}
+
+	@Test public void roundtrip_1() throws IOException {
+		for (int seed = 0; seed != 50; ++seed) {
+			byte[] bytes = write(seed, 1000);
+			read(seed, 1000, new BinaryInputStream(new ByteArrayInputStream(bytes)));
+		}
+	}
+
+	@Test public void roundtrip_2() throws IOException {
+		// Reading from a buffer, rather than a stream
+		for (int seed = 0; seed != 50; ++seed) {
+			byte[] bytes = write(seed, 1000);
+			read(seed, 1000, new BinaryInputStream(ByteBuffer.wrap(bytes)));
+		}
+	}
+
+	@Test public void length_1() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinaryOutputStream output = new BinaryOutputStream(bytes);
+		Random random = new Random(0);
+		long bits = 0;
+		for (int i = 0; i != 1000; ++i) {
+			int n = 1 + random.nextInt(31);
+			output.write_un(random.nextInt() & mask(n), n);
+			bits += n;
+			assertEquals(bits, output.bitLength());
+			assertEquals(bits / 8, output.length());
+		}
+		output.close();
+		assertEquals((bits + 7) / 8, bytes.size());
+	}
+
+	@Test public void skip_1() throws IOException {
+		// Skipping bytes, whether or not byte aligned, tracks the bit position
+		byte[] bytes = new byte[64];
+		new Random(1).nextBytes(bytes);
+		BinaryInputStream input = new BinaryInputStream(ByteBuffer.wrap(bytes));
+		assertEquals(0, input.getBitPosition());
+		assertEquals(5, input.skip(5));
+		assertEquals(40, input.getBitPosition());
+		input.read_un(3);
+		assertEquals(43, input.getBitPosition());
+		assertEquals(10, input.skip(10));
+		assertEquals(123, input.getBitPosition());
+		assertEquals(((bytes[15] & 0xFF) >>> 3) | ((bytes[16] & 0x7) << 5), input.read_un(8));
+		input.pad_u8();
+		assertEquals(136, input.getBitPosition());
+		// Skipping stops at the end of the stream
+		assertEquals(47, input.skip(100));
+		assertEquals(-1, input.read());
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Write a random sequence of values, as determined by a given seed.
+	 *
+	 * @param seed
+	 * @param n
+	 * @return
+	 * @throws IOException
+	 */
+	private static byte[] write(long seed, int n) throws IOException {
+		Random random = new Random(seed);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinaryOutputStream output = new BinaryOutputStream(bytes);
+		for (int i = 0; i != n; ++i) {
+			int kind = random.nextInt(9);
+			int value = value(random);
+			switch (kind) {
+			case 0:
+				output.write_u8(value & 0xFF);
+				break;
+			case 1:
+				output.write_u16(value & 0xFFFF);
+				break;
+			case 2:
+				output.write_u32(value);
+				break;
+			case 3:
+				output.write_uv(value & Integer.MAX_VALUE);
+				break;
+			case 4:
+				output.write_leb128(value & Integer.MAX_VALUE);
+				break;
+			case 5:
+				int bits = 1 + ((value >>> 27) % 31);
+				output.write_un(random.nextInt() & mask(bits), bits);
+				break;
+			case 6:
+				output.write_bit((value & 1) != 0);
+				break;
+			case 7:
+				output.pad_u8();
+				break;
+			default:
+				output.write(new byte[] { (byte) value, (byte) (value >> 8) });
+			}
+		}
+		output.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Read back a random sequence of values, as determined by a given seed, and
+	 * check they match those written.
+	 *
+	 * @param seed
+	 * @param n
+	 * @param input
+	 * @throws IOException
+	 */
+	private static void read(long seed, int n, BinaryInputStream input) throws IOException {
+		Random random = new Random(seed);
+		for (int i = 0; i != n; ++i) {
+			int kind = random.nextInt(9);
+			int value = value(random);
+			switch (kind) {
+			case 0:
+				assertEquals(value & 0xFF, input.read_u8());
+				break;
+			case 1:
+				assertEquals(value & 0xFFFF, input.read_u16());
+				break;
+			case 2:
+				assertEquals(value & 0xFFFFFFFFL, input.read_u32());
+				break;
+			case 3:
+				assertEquals(value & Integer.MAX_VALUE, input.read_uv());
+				break;
+			case 4:
+				assertEquals(value & Integer.MAX_VALUE, input.read_leb128());
+				break;
+			case 5:
+				int bits = 1 + ((value >>> 27) % 31);
+				assertEquals(random.nextInt() & mask(bits), input.read_un(bits));
+				break;
+			case 6:
+				assertEquals((value & 1) != 0, input.read_bit());
+				break;
+			case 7:
+				input.pad_u8();
+				break;
+			default:
+				byte[] bytes = new byte[2];
+				assertEquals(2, input.read(bytes));
+				assertArrayEquals(new byte[] { (byte) value, (byte) (value >> 8) }, bytes);
+			}
+		}
+	}
+
+	/**
+	 * Generate a random value, biased towards small values as these are most
+	 * common in practice.
+	 *
+	 * @param random
+	 * @return
+	 */
+	private static int value(Random random) {
+		switch (random.nextInt(3)) {
+		case 0:
+			return random.nextInt(16);
+		case 1:
+			return random.nextInt(1 << 16);
+		default:
+			return random.nextInt();
+		}
+	}
+
+	private static int mask(int bits) {
+		return (1 << bits) - 1;
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i != bytes.length; ++i) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+}
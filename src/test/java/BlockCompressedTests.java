@@ -0,0 +1,242 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.*;
+
+import wyfs.io.BlockCompressedFile;
+import wyfs.io.BlockCompressedOutputStream;
+
+/**
+ * Tests for writing and reading block-compressed containers, both with and
+ * without a preset dictionary.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BlockCompressedTests {
+
+	@Test public void plain_1() throws IOException {
+		// Empty container
+		check(new byte[0], null, 1024);
+	}
+
+	@Test public void plain_2() throws IOException {
+		// Single partial block
+		check(sample(new Random(0), 100), null, 1024);
+	}
+
+	@Test public void plain_3() throws IOException {
+		// Many blocks, with the last partial
+		check(sample(new Random(1), 100000), null, 1000 - 7);
+	}
+
+	@Test public void plain_4() throws IOException {
+		// Exact multiple of the block size
+		check(sample(new Random(2), 64 * 256), null, 256);
+	}
+
+	@Test public void plain_5() throws IOException {
+		// Incompressible data
+		byte[] data = new byte[50000];
+		new Random(3).nextBytes(data);
+		check(data, null, 4096);
+		check(data, null, 16);
+	}
+
+	@Test public void plain_6() throws IOException {
+		// Default block size
+		byte[] data = sample(new Random(4), 300000);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (BlockCompressedOutputStream output = new BlockCompressedOutputStream(bytes)) {
+			output.write(data);
+		}
+		BlockCompressedFile file = new BlockCompressedFile(ByteBuffer.wrap(bytes.toByteArray()), null);
+		assertEquals((data.length + BlockCompressedOutputStream.DEFAULT_BLOCK_SIZE - 1)
+				/ BlockCompressedOutputStream.DEFAULT_BLOCK_SIZE, file.getBlockCount());
+		assertArrayEquals(data, toArray(file.readAll(ForkJoinPool.commonPool())));
+	}
+
+	@Test public void dictionary_1() throws IOException {
+		byte[] dictionary = train(new Random(5));
+		check(sample(new Random(6), 100), dictionary, 1024);
+		check(sample(new Random(7), 100000), dictionary, 1000);
+	}
+
+	@Test public void dictionary_2() throws IOException {
+		// A dictionary helps when compressing small blocks of similar content
+		byte[] dictionary = train(new Random(8));
+		byte[] data = sample(new Random(9), 20000);
+		assertTrue(write(data, dictionary, 512).length < write(data, null, 512).length);
+	}
+
+	@Test(expected = IOException.class)
+	public void dictionary_3() throws IOException {
+		// Missing dictionary
+		byte[] bytes = write(sample(new Random(10), 1000), train(new Random(11)), 256);
+		new BlockCompressedFile(ByteBuffer.wrap(bytes), null);
+	}
+
+	@Test(expected = IOException.class)
+	public void dictionary_4() throws IOException {
+		// Incorrect dictionary
+		byte[] bytes = write(sample(new Random(12), 1000), train(new Random(13)), 256);
+		new BlockCompressedFile(ByteBuffer.wrap(bytes), train(new Random(14)));
+	}
+
+	@Test public void dictionary_5() {
+		// Training respects the maximum size
+		List<byte[]> samples = samples(new Random(15));
+		assertTrue(BlockCompressedOutputStream.train(samples, 100).length <= 100);
+		assertTrue(BlockCompressedOutputStream.train(samples, 32 * 1024).length <= 32 * 1024);
+		assertArrayEquals(BlockCompressedOutputStream.train(samples, 1000),
+				BlockCompressedOutputStream.train(samples, 1000));
+	}
+
+	@Test public void container_1() throws IOException {
+		// Container located after other bytes in the buffer
+		byte[] data = sample(new Random(16), 10000);
+		byte[] bytes = write(data, null, 1000);
+		byte[] embedded = new byte[bytes.length + 17];
+		System.arraycopy(bytes, 0, embedded, 17, bytes.length);
+		ByteBuffer buffer = ByteBuffer.wrap(embedded);
+		buffer.position(17);
+		assertTrue(BlockCompressedFile.isCompressed(buffer));
+		BlockCompressedFile file = new BlockCompressedFile(buffer, null);
+		assertArrayEquals(data, toArray(file.readAll(ForkJoinPool.commonPool())));
+	}
+
+	@Test public void container_2() {
+		assertFalse(BlockCompressedFile.isCompressed(ByteBuffer.wrap(sample(new Random(17), 100))));
+		assertFalse(BlockCompressedFile.isCompressed(ByteBuffer.wrap(new byte[0])));
+	}
+
+	@Test(expected = IOException.class)
+	public void container_3() throws IOException {
+		// Truncated container
+		byte[] bytes = write(sample(new Random(18), 10000), null, 1000);
+		bytes = Arrays.copyOf(bytes, bytes.length - 24);
+		new BlockCompressedFile(ByteBuffer.wrap(bytes), null);
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Check that some data written using a given dictionary and block size is
+	 * read back unchanged, whether blocks are read individually, in sequence or
+	 * in parallel.
+	 *
+	 * @param data
+	 * @param dictionary
+	 * @param blockSize
+	 * @throws IOException
+	 */
+	private static void check(byte[] data, byte[] dictionary, int blockSize) throws IOException {
+		BlockCompressedFile file = new BlockCompressedFile(ByteBuffer.wrap(write(data, dictionary, blockSize)),
+				dictionary);
+		assertEquals(data.length, file.length());
+		assertEquals((data.length + blockSize - 1) / blockSize, file.getBlockCount());
+		// Blocks in reverse order
+		for (int i = file.getBlockCount() - 1; i >= 0; --i) {
+			int start = i * blockSize;
+			assertEquals(Math.min(blockSize, data.length - start), file.getBlockLength(i));
+			assertArrayEquals(Arrays.copyOfRange(data, start, start + file.getBlockLength(i)), file.readBlock(i));
+		}
+		// Entire stream
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (InputStream input = file.inputStream()) {
+			byte[] buffer = new byte[777];
+			int n;
+			while ((n = input.read(buffer)) >= 0) {
+				bytes.write(buffer, 0, n);
+			}
+		}
+		assertArrayEquals(data, bytes.toByteArray());
+		// In parallel
+		assertArrayEquals(data, toArray(file.readAll(ForkJoinPool.commonPool())));
+	}
+
+	private static byte[] write(byte[] data, byte[] dictionary, int blockSize) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (BlockCompressedOutputStream output = new BlockCompressedOutputStream(bytes, dictionary, blockSize)) {
+			// Write in uneven pieces, including single bytes
+			int i = 0;
+			while (i < data.length) {
+				if (i % 5 == 0) {
+					output.write(data[i++]);
+				} else {
+					int n = Math.min(data.length - i, 1 + (i % 3001));
+					output.write(data, i, n);
+					i += n;
+				}
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static byte[] train(Random random) {
+		return BlockCompressedOutputStream.train(samples(random), 4096);
+	}
+
+	private static List<byte[]> samples(Random random) {
+		List<byte[]> samples = new ArrayList<>();
+		for (int i = 0; i != 20; ++i) {
+			samples.add(sample(random, 2000));
+		}
+		return samples;
+	}
+
+	/**
+	 * Generate some compressible data of a given length, resembling the
+	 * contents of a source file.
+	 *
+	 * @param random
+	 * @param length
+	 * @return
+	 */
+	private static byte[] sample(Random random, int length) {
+		String[] words = { "function", "method", "return", "while", "import", "requires", "ensures", "int", "bool",
+				"type", "where", "true", "false", "null", "&&", "||", "==", "(", ")", "{", "}", "x", "y", "items",
+				"length", "\n" };
+		StringBuilder r = new StringBuilder();
+		while (r.length() < length) {
+			r.append(words[random.nextInt(words.length)]).append(' ');
+			if (random.nextInt(10) == 0) {
+				r.append(random.nextInt(1000));
+			}
+		}
+		return Arrays.copyOf(r.toString().getBytes(), length);
+	}
+}
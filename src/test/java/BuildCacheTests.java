@@ -0,0 +1,285 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.*;
+
+import wybs.lang.Build;
+import wybs.util.BuildCache;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.DefaultContentRegistry;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+
+/**
+ * Tests for the build cache, which restores the targets of tasks from
+ * artifacts stored by earlier builds (e.g. in another workspace).
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildCacheTests {
+	private static final Content.Type<byte[]> Source = new BuildFixtures.Bytes("src");
+	private static final Content.Type<byte[]> Target = new BuildFixtures.Bytes("tgt");
+
+	private File dir;
+	/**
+	 * Counts the number of times a task was actually executed.
+	 */
+	private AtomicInteger executions;
+
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("cache").toFile();
+		executions = new AtomicInteger();
+	}
+
+	@After
+	public void teardown() throws IOException {
+		BuildFixtures.delete(dir);
+	}
+
+	@Test public void cache_1() throws IOException {
+		// Miss, then hit from another workspace
+		BuildCache cache = new BuildCache(new File(dir, "cache"), 1 << 20);
+		DirectoryRoot w1 = workspace("w1", "a", "b", "c");
+		DirectoryRoot w2 = workspace("w2", "a", "b", "c");
+		assertTrue(build(cache, "rule", w1));
+		assertEquals(0, cache.hits());
+		assertEquals(3, cache.misses());
+		assertEquals(3, executions.get());
+		assertTrue(build(cache, "rule", w2));
+		assertEquals(3, cache.hits());
+		assertEquals(3, cache.misses());
+		assertEquals(3, executions.get());
+		for (String name : new String[] { "a", "b", "c" }) {
+			assertArrayEquals(target(w1, name), target(w2, name));
+			assertArrayEquals(("compiled " + name).getBytes(), target(w2, name));
+		}
+	}
+
+	@Test public void cache_2() throws IOException {
+		// Changed source contents
+		BuildCache cache = new BuildCache(new File(dir, "cache"), 1 << 20);
+		assertTrue(build(cache, "rule", workspace("w1", "a", "b")));
+		DirectoryRoot w2 = workspace("w2", "a", "b");
+		write(w2.get(Trie.fromString("b"), Source), "changed");
+		assertTrue(build(cache, "rule", w2));
+		assertEquals(1, cache.hits());
+		assertEquals(3, cache.misses());
+		assertArrayEquals("compiled changed".getBytes(), target(w2, "b"));
+	}
+
+	@Test public void cache_3() throws IOException {
+		// Different rule identity
+		BuildCache cache = new BuildCache(new File(dir, "cache"), 1 << 20);
+		assertTrue(build(cache, "rule", workspace("w1", "a")));
+		assertTrue(build(cache, "other", workspace("w2", "a")));
+		assertEquals(0, cache.hits());
+		assertEquals(2, cache.misses());
+	}
+
+	@Test public void cache_4() throws IOException {
+		// Artifacts persist across instances
+		File location = new File(dir, "cache");
+		BuildCache cache = new BuildCache(location, 1 << 20);
+		assertTrue(build(cache, "rule", workspace("w1", "a", "b")));
+		long size = cache.size();
+		cache = new BuildCache(location, 1 << 20);
+		assertEquals(size, cache.size());
+		assertTrue(build(cache, "rule", workspace("w2", "a", "b")));
+		assertEquals(2, cache.hits());
+		assertEquals(0, cache.misses());
+	}
+
+	@Test public void cache_5() throws IOException {
+		// Least recently used artifacts are evicted
+		int length = ("compiled a").getBytes().length;
+		BuildCache cache = new BuildCache(new File(dir, "cache"), 2 * length);
+		assertTrue(build(cache, "rule", workspace("w1", "a")));
+		assertTrue(build(cache, "rule", workspace("w2", "b")));
+		// Use a, so that b is now least recently used
+		assertTrue(build(cache, "rule", workspace("w3", "a")));
+		assertEquals(1, cache.hits());
+		assertTrue(build(cache, "rule", workspace("w4", "c")));
+		assertEquals(2 * length, cache.size());
+		// Thus, b was evicted to make room for c
+		assertTrue(build(cache, "rule", workspace("w5", "a")));
+		assertTrue(build(cache, "rule", workspace("w6", "c")));
+		assertTrue(build(cache, "rule", workspace("w7", "b")));
+		assertEquals(3, cache.hits());
+		assertEquals(4, cache.misses());
+	}
+
+	@Test public void cache_6() throws IOException {
+		// Existing artifacts are evicted when capacity is reduced
+		File location = new File(dir, "cache");
+		BuildCache cache = new BuildCache(location, 1 << 20);
+		assertTrue(build(cache, "rule", workspace("w1", "a", "b", "c")));
+		long size = cache.size();
+		cache = new BuildCache(location, size / 2);
+		assertTrue(cache.size() <= size / 2);
+		File[] remaining = location.listFiles();
+		int files = 0;
+		for (File d : remaining) {
+			files += d.isDirectory() ? d.list().length : 1;
+		}
+		assertEquals(cache.size(), files * ("compiled a").getBytes().length);
+	}
+
+	@Test public void cache_7() throws IOException {
+		// Targets of failed tasks are not stored
+		BuildCache cache = new BuildCache(new File(dir, "cache"), 1 << 20);
+		assertFalse(build(cache, "rule", workspace("w1", "fail")));
+		assertEquals(0, cache.size());
+		assertFalse(build(cache, "rule", workspace("w2", "fail")));
+		assertEquals(0, cache.hits());
+		assertEquals(2, cache.misses());
+	}
+
+	@Test public void cache_8() throws Exception {
+		// Tasks using the cache concurrently
+		BuildCache cache = new BuildCache(new File(dir, "cache"), 1 << 20);
+		String[] names = new String[64];
+		for (int i = 0; i != names.length; ++i) {
+			names[i] = "f" + i;
+		}
+		DirectoryRoot w1 = workspace("w1", names);
+		DirectoryRoot w2 = workspace("w2", names);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			for (DirectoryRoot workspace : new DirectoryRoot[] { w1, w2 }) {
+				List<Future<Boolean>> results = new ArrayList<>();
+				for (Build.Task task : tasks(cache, "rule", workspace)) {
+					Function<Build.Meter, Boolean> instance = task.initialise();
+					results.add(executor.submit(() -> instance.apply(Build.NULL_METER)));
+				}
+				for (Future<Boolean> result : results) {
+					assertTrue(result.get());
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(names.length, cache.hits());
+		assertEquals(names.length, cache.misses());
+		for (String name : names) {
+			assertArrayEquals(target(w1, name), target(w2, name));
+		}
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Create a workspace containing a source for each of the given names, whose
+	 * contents are the name itself.
+	 *
+	 * @param name
+	 * @param sources
+	 * @return
+	 * @throws IOException
+	 */
+	private DirectoryRoot workspace(String name, String... sources) throws IOException {
+		DirectoryRoot root = new DirectoryRoot(new File(dir, name),
+				new DefaultContentRegistry().register(Source, "src").register(Target, "tgt"));
+		for (String source : sources) {
+			write(root.create(Trie.fromString(source), Source), source);
+		}
+		return root;
+	}
+
+	/**
+	 * Execute every task in a given workspace, using a rule with a given identity
+	 * wrapped by the cache.
+	 *
+	 * @param cache
+	 * @param rule
+	 * @param workspace
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean build(BuildCache cache, String rule, DirectoryRoot workspace) throws IOException {
+		boolean result = true;
+		for (Build.Task task : tasks(cache, rule, workspace)) {
+			result &= task.initialise().apply(Build.NULL_METER);
+		}
+		return result;
+	}
+
+	private List<Build.Task> tasks(BuildCache cache, String rule, DirectoryRoot workspace) throws IOException {
+		List<Build.Task> tasks = new ArrayList<>();
+		cache.wrap(ts -> {
+			for (Path.Entry<byte[]> source : workspace.get(Content.filter("**", Source))) {
+				Path.Entry<byte[]> target = workspace.get(source.id(), Target);
+				if (target == null) {
+					target = workspace.create(source.id(), Target);
+				}
+				ts.add(compile(target, source));
+			}
+		}, rule).apply(tasks);
+		return tasks;
+	}
+
+	private static byte[] target(DirectoryRoot workspace, String name) throws IOException {
+		return workspace.get(Trie.fromString(name), Target).read();
+	}
+
+	private static void write(Path.Entry<byte[]> entry, String contents) throws IOException {
+		entry.write(contents.getBytes());
+		entry.flush();
+	}
+
+	/**
+	 * A task which "compiles" a single source, failing if its contents are
+	 * "fail".
+	 *
+	 * @param target
+	 * @param source
+	 * @return
+	 */
+	private Build.Task compile(Path.Entry<byte[]> target, Path.Entry<byte[]> source) {
+		return new BuildFixtures.Task(null, target, m -> {
+			try {
+				executions.incrementAndGet();
+				String contents = new String(source.read());
+				if (contents.equals("fail")) {
+					return false;
+				}
+				target.write(("compiled " + contents).getBytes());
+				target.flush();
+				return true;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, source);
+	}
+}
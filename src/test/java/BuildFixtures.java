@@ -0,0 +1,166 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import wybs.lang.Build;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.Trie;
+
+/**
+ * Fixtures shared by the tests for building projects, such as simple tasks and
+ * content types.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildFixtures {
+
+	/**
+	 * Create a given number of binary entries in a given root, named using a
+	 * given prefix followed by their index.
+	 *
+	 * @param root
+	 * @param prefix
+	 * @param n
+	 * @return
+	 * @throws IOException
+	 */
+	public static Path.Entry<?>[] entries(Path.Root root, String prefix, int n) throws IOException {
+		Path.Entry<?>[] entries = new Path.Entry<?>[n];
+		for (int i = 0; i != n; ++i) {
+			entries[i] = root.create(Trie.fromString(prefix + i), Content.BinaryFile);
+		}
+		return entries;
+	}
+
+	/**
+	 * Read the entire contents of a given input stream.
+	 *
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int n;
+		while ((n = input.read(buffer)) >= 0) {
+			output.write(buffer, 0, n);
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * Recursively delete a given directory and everything it contains.
+	 *
+	 * @param dir
+	 * @throws IOException
+	 */
+	public static void delete(File dir) throws IOException {
+		try (Stream<java.nio.file.Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	/**
+	 * A task for a given target and sources, whose execution is described by a
+	 * given function.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Task implements Build.Task {
+		private final Build.Project project;
+		private final Path.Entry<?> target;
+		private final List<Path.Entry<?>> sources;
+		private final Function<Build.Meter, Boolean> body;
+
+		public Task(Path.Entry<?> target, Path.Entry<?>... sources) {
+			this(null, target, m -> true, sources);
+		}
+
+		public Task(Build.Project project, Path.Entry<?> target, Function<Build.Meter, Boolean> body,
+				Path.Entry<?>... sources) {
+			this.project = project;
+			this.target = target;
+			this.sources = Arrays.asList(sources);
+			this.body = body;
+		}
+
+		@Override
+		public Function<Build.Meter, Boolean> initialise() {
+			return body;
+		}
+
+		@Override
+		public Build.Project project() {
+			return project;
+		}
+
+		@Override
+		public List<Path.Entry<?>> getSources() {
+			return sources;
+		}
+
+		@Override
+		public Path.Entry<?> getTarget() {
+			return target;
+		}
+	}
+
+	/**
+	 * A content type for uninterpreted sequences of bytes with a given suffix.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Bytes implements Content.Type<byte[]> {
+		private final String suffix;
+
+		public Bytes(String suffix) {
+			this.suffix = suffix;
+		}
+
+		@Override
+		public String getSuffix() {
+			return suffix;
+		}
+
+		@Override
+		public byte[] read(Path.Entry<byte[]> e, InputStream input) throws IOException {
+			return readAll(input);
+		}
+
+		@Override
+		public void write(OutputStream output, byte[] bytes) throws IOException {
+			output.write(bytes);
+		}
+
+		@Override
+		public String toString() {
+			return suffix;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.*;
+
+import wybs.lang.Build;
+import wybs.util.BuildGraph;
+import wyfs.lang.Path;
+import wyfs.util.DefaultContentRegistry;
+import wyfs.util.VirtualRoot;
+
+/**
+ * Tests for constructing build graphs, which must place tasks in topological
+ * order whilst otherwise retaining their original order.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildGraphTests {
+	private Path.Entry<?>[] entries;
+
+	@Before
+	public void setup() throws IOException {
+		entries = BuildFixtures.entries(new VirtualRoot(new DefaultContentRegistry()), "f", 10);
+	}
+
+	@Test public void order_1() {
+		// Independent tasks retain their order
+		BuildGraph graph = graph(task(0), task(1), task(2));
+		assertArrayEquals(new int[] { 0, 1, 2 }, targets(graph));
+	}
+
+	@Test public void order_2() {
+		// Chain given in reverse
+		BuildGraph graph = graph(task(2, 1), task(1, 0), task(0));
+		assertArrayEquals(new int[] { 0, 1, 2 }, targets(graph));
+	}
+
+	@Test public void order_3() {
+		// Only dependents are moved after their dependencies
+		BuildGraph graph = graph(task(3), task(1, 0), task(4), task(0, 5), task(2));
+		assertArrayEquals(new int[] { 3, 0, 1, 4, 2 }, targets(graph));
+	}
+
+	@Test public void order_4() {
+		// Diamond
+		BuildGraph graph = graph(task(3, 1, 2), task(2, 0), task(1, 0), task(0));
+		int[] targets = targets(graph);
+		assertEquals(0, targets[0]);
+		assertEquals(3, targets[3]);
+		checkOrder(graph);
+	}
+
+	@Test public void edges_1() {
+		BuildGraph graph = graph(task(3, 1, 2), task(2, 0), task(1, 0), task(0));
+		checkOrder(graph);
+		int root = graph.getProducers(entries[0])[0];
+		int last = graph.getProducers(entries[3])[0];
+		assertEquals(0, graph.getParents(root).length);
+		assertEquals(2, graph.getChildren(root).length);
+		assertEquals(2, graph.getParents(last).length);
+		assertEquals(0, graph.getChildren(last).length);
+	}
+
+	@Test public void producers_1() {
+		// Sources which no task produces are not dependencies
+		BuildGraph graph = graph(task(1, 9), task(2, 1, 8));
+		assertEquals(0, graph.getProducers(entries[9]).length);
+		assertEquals(0, graph.getParents(graph.getProducers(entries[1])[0]).length);
+		assertEquals(1, graph.getParents(graph.getProducers(entries[2])[0]).length);
+	}
+
+	@Test public void producers_2() {
+		// Multiple tasks can produce the same target
+		BuildGraph graph = graph(task(1, 0), task(0), task(0));
+		assertEquals(2, graph.getProducers(entries[0]).length);
+		assertEquals(2, graph.getParents(graph.getProducers(entries[1])[0]).length);
+		checkOrder(graph);
+	}
+
+	@Test public void large_1() throws IOException {
+		// Long chain given in reverse is not limited by recursion depth
+		VirtualRoot root = new VirtualRoot(new DefaultContentRegistry());
+		List<Build.Task> tasks = new ArrayList<>();
+		Path.Entry<?>[] chain = BuildFixtures.entries(root, "g", 50000);
+		for (int i = chain.length - 1; i > 0; --i) {
+			tasks.add(new BuildFixtures.Task(chain[i], chain[i - 1]));
+		}
+		tasks.add(new BuildFixtures.Task(chain[0]));
+		BuildGraph graph = new BuildGraph(tasks);
+		for (int i = 0; i != chain.length; ++i) {
+			assertEquals(chain[i], graph.get(i).getTarget());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void cycle_1() {
+		graph(task(0, 0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void cycle_2() {
+		graph(task(0, 2), task(1, 0), task(2, 1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void cycle_3() {
+		// Cycle not reachable from the first task
+		graph(task(3), task(4, 3), task(0, 1), task(1, 0));
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Check every task is placed after those it depends upon, and that parents
+	 * and children agree.
+	 *
+	 * @param graph
+	 */
+	private static void checkOrder(BuildGraph graph) {
+		for (int i = 0; i != graph.size(); ++i) {
+			for (int parent : graph.getParents(i)) {
+				assertTrue(parent < i);
+				assertTrue(contains(graph.getChildren(parent), i));
+			}
+			for (int child : graph.getChildren(i)) {
+				assertTrue(child > i);
+				assertTrue(contains(graph.getParents(child), i));
+			}
+		}
+	}
+
+	private static boolean contains(int[] items, int item) {
+		return Arrays.stream(items).anyMatch(i -> i == item);
+	}
+
+	private int[] targets(BuildGraph graph) {
+		int[] targets = new int[graph.size()];
+		for (int i = 0; i != targets.length; ++i) {
+			targets[i] = Arrays.asList(entries).indexOf(graph.get(i).getTarget());
+		}
+		return targets;
+	}
+
+	private static BuildGraph graph(Build.Task... tasks) {
+		return new BuildGraph(Arrays.asList(tasks));
+	}
+
+	private Build.Task task(int target, int... sources) {
+		Path.Entry<?>[] srcs = new Path.Entry<?>[sources.length];
+		for (int i = 0; i != sources.length; ++i) {
+			srcs[i] = entries[sources[i]];
+		}
+		return new BuildFixtures.Task(entries[target], srcs);
+	}
+}
@@ -0,0 +1,320 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.*;
+
+import wybs.lang.Build;
+import wybs.util.BuildLedger;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.DefaultContentRegistry;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+
+/**
+ * Tests for the build ledger, which determines whether a task is up-to-date
+ * from the state of its sources and target when it was last recorded.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildLedgerTests {
+	private static final Content.Type<byte[]> Source = new BuildFixtures.Bytes("src");
+	private static final Content.Type<byte[]> Target = new BuildFixtures.Bytes("tgt");
+
+	private File dir;
+	private DirectoryRoot root;
+
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("ledger").toFile();
+		root = new DirectoryRoot(new File(dir, "root"),
+				new DefaultContentRegistry().register(Source, "src").register(Target, "tgt"));
+	}
+
+	@After
+	public void teardown() throws IOException {
+		BuildFixtures.delete(dir);
+	}
+
+	@Test public void ledger_1() throws IOException {
+		// Nothing recorded
+		BuildLedger ledger = new BuildLedger(new File(dir, "ledger"));
+		assertFalse(ledger.isUpToDate(task("a", "x")));
+		assertEquals(0, ledger.size());
+	}
+
+	@Test public void ledger_2() throws IOException {
+		BuildLedger ledger = new BuildLedger(new File(dir, "ledger"));
+		Build.Task task = build(task("a", "x", "y"));
+		ledger.record(task);
+		assertEquals(1, ledger.size());
+		assertTrue(ledger.isUpToDate(task));
+	}
+
+	@Test public void ledger_3() throws IOException {
+		// Source contents changed
+		BuildLedger ledger = new BuildLedger(new File(dir, "ledger"));
+		Build.Task task = build(task("a", "x", "y"));
+		ledger.record(task);
+		write(source("y"), "changed", 10000);
+		assertFalse(ledger.isUpToDate(task));
+	}
+
+	@Test public void ledger_4() throws IOException {
+		// Source touched, but contents unchanged
+		BuildLedger ledger = new BuildLedger(new File(dir, "ledger"));
+		Build.Task task = build(task("a", "x"));
+		ledger.record(task);
+		write(source("x"), "x", 10000);
+		assertTrue(ledger.isUpToDate(task));
+	}
+
+	@Test public void ledger_5() throws IOException {
+		// Target changed
+		BuildLedger ledger = new BuildLedger(new File(dir, "ledger"));
+		Build.Task task = build(task("a", "x"));
+		ledger.record(task);
+		write(target("a"), "changed", 10000);
+		assertFalse(ledger.isUpToDate(task));
+	}
+
+	@Test public void ledger_6() throws IOException {
+		// Source modified in memory, but not yet written
+		BuildLedger ledger = new BuildLedger(new File(dir, "ledger"));
+		Build.Task task = build(task("a", "x"));
+		ledger.record(task);
+		source("x").write("changed".getBytes());
+		assertFalse(ledger.isUpToDate(task));
+	}
+
+	@Test public void ledger_7() throws IOException {
+		// Sources differ from those recorded
+		BuildLedger ledger = new BuildLedger(new File(dir, "ledger"));
+		ledger.record(build(task("a", "x", "y")));
+		assertFalse(ledger.isUpToDate(build(task("a", "y", "x"))));
+		assertFalse(ledger.isUpToDate(build(task("a", "x"))));
+	}
+
+	@Test public void ledger_8() throws IOException {
+		BuildLedger ledger = new BuildLedger(new File(dir, "ledger"));
+		Build.Task task = build(task("a", "x"));
+		ledger.record(task);
+		ledger.invalidate(task);
+		assertFalse(ledger.isUpToDate(task));
+		assertEquals(0, ledger.size());
+	}
+
+	@Test public void ledger_9() throws IOException {
+		// Records persist across ledgers
+		File file = new File(dir, "build/ledger");
+		BuildLedger ledger = new BuildLedger(file);
+		Build.Task t1 = build(task("a", "x"));
+		Build.Task t2 = build(task("b", "x", "y"));
+		ledger.record(t1);
+		ledger.record(t2);
+		ledger.save();
+		ledger = new BuildLedger(file);
+		assertEquals(2, ledger.size());
+		assertTrue(ledger.isUpToDate(t1));
+		assertTrue(ledger.isUpToDate(t2));
+		write(source("y"), "changed", 10000);
+		assertTrue(ledger.isUpToDate(t1));
+		assertFalse(ledger.isUpToDate(t2));
+	}
+
+	@Test public void ledger_10() throws IOException {
+		// Deleted target
+		BuildLedger ledger = new BuildLedger(new File(dir, "ledger"));
+		Build.Task task = build(task("a", "x"));
+		ledger.record(task);
+		assertTrue(((DirectoryRoot.Entry<?>) target("a")).file().delete());
+		assertFalse(ledger.isUpToDate(task));
+	}
+
+	@Test public void ledger_11() throws IOException {
+		// Source modified whilst task executing
+		BuildLedger ledger = new BuildLedger(new File(dir, "ledger"));
+		Build.Task task = task("a", "x");
+		ledger.begin(task);
+		build(task);
+		write(source("x"), "changed", 10000);
+		ledger.record(task);
+		assertFalse(ledger.isUpToDate(task));
+	}
+
+	@Test public void ledger_12() throws IOException {
+		// Source produced by another task in the same build
+		BuildLedger ledger = new BuildLedger(new File(dir, "ledger"));
+		Build.Task t1 = task("a", "x");
+		Build.Task t2 = concat(root.create(Trie.fromString("b"), Target), t1.getTarget());
+		ledger.begin(t1);
+		t1.initialise().apply(Build.NULL_METER);
+		assertTrue(t1.getTarget().isModified());
+		ledger.begin(t2);
+		t2.initialise().apply(Build.NULL_METER);
+		t1.getTarget().flush();
+		t2.getTarget().flush();
+		ledger.record(t1);
+		ledger.record(t2);
+		assertTrue(ledger.isUpToDate(t1));
+		assertTrue(ledger.isUpToDate(t2));
+	}
+
+	@Test public void ledger_13() throws IOException {
+		// Touched source is only digested once
+		BuildLedger ledger = new BuildLedger(new File(dir, "ledger"));
+		Build.Task task = build(task("a", "x"));
+		ledger.record(task);
+		write(source("x"), "x", 10000);
+		assertTrue(ledger.isUpToDate(task));
+		// Change contents without changing the modification time. This is not
+		// detected, since the digest is not recomputed.
+		File file = ((DirectoryRoot.Entry<?>) source("x")).file();
+		long modified = file.lastModified();
+		write(source("x"), "y", 0);
+		assertTrue(file.setLastModified(modified));
+		assertTrue(ledger.isUpToDate(task));
+	}
+
+	@Test public void ledger_14() throws IOException {
+		// Truncated or corrupt ledger files are treated as empty
+		File file = new File(dir, "ledger");
+		BuildLedger ledger = new BuildLedger(file);
+		Build.Task task = build(task("a", "x", "y"));
+		ledger.record(task);
+		ledger.save();
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		for (int n = 0; n < bytes.length; ++n) {
+			Files.write(file.toPath(), Arrays.copyOf(bytes, n));
+			assertFalse(new BuildLedger(file).isUpToDate(task));
+		}
+		byte[] corrupt = bytes.clone();
+		corrupt[8] = (byte) 0xFF;
+		Files.write(file.toPath(), corrupt);
+		assertEquals(0, new BuildLedger(file).size());
+	}
+
+	@Test public void ledger_15() throws IOException {
+		// Saving replaces the previous ledger, without leaving temporary files
+		File file = new File(dir, "build/ledger");
+		BuildLedger ledger = new BuildLedger(file);
+		ledger.record(build(task("a", "x")));
+		ledger.save();
+		ledger.record(build(task("b", "x")));
+		ledger.save();
+		assertArrayEquals(new String[] { "ledger" }, file.getParentFile().list());
+		assertEquals(2, new BuildLedger(file).size());
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Construct a task for a given target from one or more sources, creating
+	 * each source with its name as contents.
+	 *
+	 * @param target
+	 * @param sources
+	 * @return
+	 * @throws IOException
+	 */
+	private Build.Task task(String target, String... sources) throws IOException {
+		Path.Entry<?>[] srcs = new Path.Entry<?>[sources.length];
+		for (int i = 0; i != sources.length; ++i) {
+			Path.Entry<byte[]> source = source(sources[i]);
+			if (source == null) {
+				source = root.create(Trie.fromString(sources[i]), Source);
+				write(source, sources[i], 0);
+			}
+			srcs[i] = source;
+		}
+		Path.Entry<byte[]> tgt = target(target);
+		if (tgt == null) {
+			tgt = root.create(Trie.fromString(target), Target);
+		}
+		return concat(tgt, srcs);
+	}
+
+	/**
+	 * Execute a given task, and write its target to disk.
+	 *
+	 * @param task
+	 * @return
+	 * @throws IOException
+	 */
+	private static Build.Task build(Build.Task task) throws IOException {
+		assertTrue(task.initialise().apply(Build.NULL_METER));
+		task.getTarget().flush();
+		return task;
+	}
+
+	private Path.Entry<byte[]> source(String name) throws IOException {
+		return root.get(Trie.fromString(name), Source);
+	}
+
+	private Path.Entry<byte[]> target(String name) throws IOException {
+		return root.get(Trie.fromString(name), Target);
+	}
+
+	/**
+	 * Write some contents to a given entry on disk, and then adjust its
+	 * modification time by a given amount. This ensures a change in the
+	 * modification time is observed regardless of its resolution.
+	 *
+	 * @param entry
+	 * @param contents
+	 * @param delta
+	 * @throws IOException
+	 */
+	private static void write(Path.Entry<byte[]> entry, String contents, long delta) throws IOException {
+		entry.write(contents.getBytes());
+		entry.flush();
+		File file = ((DirectoryRoot.Entry<?>) entry).file();
+		assertTrue(file.setLastModified(file.lastModified() + delta));
+	}
+
+	/**
+	 * A task whose target is the concatenation of its sources.
+	 *
+	 * @param target
+	 * @param sources
+	 * @return
+	 */
+	private static Build.Task concat(Path.Entry<byte[]> target, Path.Entry<?>... sources) {
+		return new BuildFixtures.Task(null, target, m -> {
+			try {
+				StringBuilder contents = new StringBuilder();
+				for (Path.Entry<?> source : sources) {
+					contents.append(new String((byte[]) source.read()));
+				}
+				target.write(contents.toString().getBytes());
+				return true;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, sources);
+	}
+}
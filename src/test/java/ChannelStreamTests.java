@@ -0,0 +1,168 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.*;
+
+import wyfs.io.ByteBufferInputStream;
+import wyfs.io.ChannelOutputStream;
+import wyfs.lang.Path;
+import wyfs.util.DefaultContentRegistry;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+
+/**
+ * Tests for the streams which read from buffers and write to channels, and
+ * for their use by the entries of a directory root.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ChannelStreamTests {
+	private static final BuildFixtures.Bytes Binary = new BuildFixtures.Bytes("bin");
+
+	private File dir;
+
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("streams").toFile();
+	}
+
+	@After
+	public void teardown() throws IOException {
+		BuildFixtures.delete(dir);
+	}
+
+	@Test public void buffer_1() {
+		// Reads start from the buffer's position and advance it
+		ByteBuffer buffer = ByteBuffer.wrap(bytes(new Random(0), 100));
+		buffer.position(10);
+		ByteBufferInputStream input = new ByteBufferInputStream(buffer);
+		assertEquals(90, input.available());
+		assertEquals(buffer.get(10) & 0xFF, input.read());
+		byte[] bytes = new byte[20];
+		assertEquals(0, input.read(bytes, 0, 0));
+		assertEquals(20, input.read(bytes, 0, 20));
+		assertArrayEquals(Arrays.copyOfRange(buffer.array(), 11, 31), bytes);
+		assertEquals(31, buffer.position());
+		assertEquals(0, input.skip(-5));
+		assertEquals(50, input.skip(50));
+		// Reading stops at the end of the buffer
+		assertEquals(19, input.read(new byte[100], 0, 100));
+		assertEquals(0, input.skip(1));
+		assertEquals(-1, input.read());
+		assertEquals(-1, input.read(bytes, 0, 1));
+	}
+
+	@Test public void buffer_2() throws IOException {
+		// Files are read the same whether or not they are mapped
+		for (int size : new int[] { 0, 100, ByteBufferInputStream.MAP_THRESHOLD, 300000 }) {
+			byte[] bytes = bytes(new Random(size), size);
+			File file = new File(dir, "file" + size);
+			Files.write(file.toPath(), bytes);
+			assertArrayEquals(bytes, BuildFixtures.readAll(ByteBufferInputStream.open(file.toPath())));
+			assertArrayEquals(bytes, BuildFixtures.readAll(ByteBufferInputStream.load(file.toPath())));
+		}
+	}
+
+	@Test public void channel_1() throws IOException {
+		// Writes of every size pass through the buffer in order
+		byte[] bytes = bytes(new Random(1), 10000);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (ChannelOutputStream channel = new ChannelOutputStream(Channels.newChannel(output), 16)) {
+			int i = 0;
+			while (i < bytes.length) {
+				if (i % 3 == 0) {
+					channel.write(bytes[i++]);
+				} else {
+					int n = Math.min(bytes.length - i, i % 41);
+					channel.write(bytes, i, n);
+					i += n;
+				}
+			}
+		}
+		assertArrayEquals(bytes, output.toByteArray());
+	}
+
+	@Test public void channel_2() throws IOException {
+		// Bytes are only written when the buffer fills or is flushed
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ChannelOutputStream channel = new ChannelOutputStream(Channels.newChannel(output), 16);
+		channel.write(new byte[10]);
+		assertEquals(0, output.size());
+		channel.write(new byte[10]);
+		assertEquals(10, output.size());
+		channel.flush();
+		assertEquals(20, output.size());
+		channel.close();
+		channel.close();
+		assertEquals(20, output.size());
+	}
+
+	@Test public void entry_1() throws IOException {
+		// Flushed bytes are visible without closing the stream
+		Path.Entry<byte[]> entry = root().create(Trie.fromString("a"), Binary);
+		byte[] bytes = bytes(new Random(2), 1000);
+		OutputStream output = entry.outputStream();
+		output.write(bytes);
+		output.flush();
+		assertArrayEquals(bytes, BuildFixtures.readAll(entry.inputStream()));
+		output.close();
+		assertEquals(Arrays.asList("a.bin"), Arrays.asList(dir.list()));
+	}
+
+	@Test public void entry_2() throws IOException {
+		// Overwriting a large entry whilst a stream over it remains open
+		Path.Entry<byte[]> entry = root().create(Trie.fromString("a"), Binary);
+		byte[] before = bytes(new Random(3), 2 * ByteBufferInputStream.MAP_THRESHOLD);
+		byte[] after = bytes(new Random(4), 100);
+		try (OutputStream output = entry.outputStream()) {
+			output.write(before);
+		}
+		try (InputStream input = entry.inputStream()) {
+			try (OutputStream output = entry.outputStream()) {
+				output.write(after);
+			}
+			assertArrayEquals(before, BuildFixtures.readAll(input));
+		}
+		assertArrayEquals(after, BuildFixtures.readAll(entry.inputStream()));
+		assertEquals(Arrays.asList("a.bin"), Arrays.asList(dir.list()));
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private DirectoryRoot root() throws IOException {
+		return new DirectoryRoot(dir, new DefaultContentRegistry().register(Binary, "bin"));
+	}
+
+	private static byte[] bytes(Random random, int n) {
+		byte[] bytes = new byte[n];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+}
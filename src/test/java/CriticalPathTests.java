@@ -0,0 +1,177 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.*;
+
+import wybs.lang.Build;
+import wybs.util.BuildGraph;
+import wybs.util.CriticalPath;
+import wybs.util.ParallelBuildProject;
+import wyfs.lang.Path;
+import wyfs.util.DefaultContentRegistry;
+import wyfs.util.VirtualRoot;
+
+/**
+ * Tests for the critical path analysis of profiled builds.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CriticalPathTests {
+	private VirtualRoot root;
+	private Path.Entry<?>[] entries;
+
+	@Before
+	public void setup() throws IOException {
+		root = new VirtualRoot(new DefaultContentRegistry());
+		entries = BuildFixtures.entries(root, "f", 8);
+	}
+
+	@Test public void diamond_1() {
+		// Longer side of the diamond is critical
+		BuildGraph graph = diamond();
+		CriticalPath cp = new CriticalPath(graph, durations(graph, 10, 30, 5, 10));
+		assertEquals(50, cp.getLength());
+		assertArrayEquals(indices(graph, 0, 1, 3), cp.getPath());
+		assertEquals(0, cp.getSlack(index(graph, 0)));
+		assertEquals(0, cp.getSlack(index(graph, 1)));
+		assertEquals(25, cp.getSlack(index(graph, 2)));
+		assertEquals(0, cp.getSlack(index(graph, 3)));
+		assertEquals(10, cp.getEarliestStart(index(graph, 2)));
+		assertEquals(40, cp.getEarliestStart(index(graph, 3)));
+	}
+
+	@Test public void diamond_2() {
+		// Lengthening the other side moves the critical path
+		BuildGraph graph = diamond();
+		CriticalPath cp = new CriticalPath(graph, durations(graph, 10, 30, 40, 10));
+		assertEquals(60, cp.getLength());
+		assertArrayEquals(indices(graph, 0, 2, 3), cp.getPath());
+		assertEquals(10, cp.getSlack(index(graph, 1)));
+		assertEquals(0, cp.getSlack(index(graph, 2)));
+	}
+
+	@Test public void independent_1() {
+		// Independent tasks have slack relative to the longest
+		BuildGraph graph = new BuildGraph(Arrays.asList(task(0), task(1), task(2)));
+		CriticalPath cp = new CriticalPath(graph, durations(graph, 5, 20, 15));
+		assertEquals(20, cp.getLength());
+		assertArrayEquals(indices(graph, 1), cp.getPath());
+		assertEquals(15, cp.getSlack(index(graph, 0)));
+		assertEquals(5, cp.getSlack(index(graph, 2)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalid_1() {
+		new CriticalPath(diamond(), new long[3]);
+	}
+
+	@Test public void profile_1() throws Exception {
+		// Durations of a failed build are not published
+		ParallelBuildProject project = new ParallelBuildProject(root);
+		AtomicBoolean fail = new AtomicBoolean(true);
+		Build.Task first = new BuildFixtures.Task(project, entries[0], m -> !fail.get());
+		Build.Task slow = new BuildFixtures.Task(project, entries[1], m -> {
+			try {
+				Thread.sleep(50);
+				return true;
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}, entries[0]);
+		project.add(ts -> ts.addAll(Arrays.asList(task(3, 1, 2), slow, task(2, 0), first)));
+		project.setProfiling(true);
+		project.refresh();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			assertFalse(project.build(executor, Build.NULL_METER).get(30, TimeUnit.SECONDS));
+			try {
+				project.getCriticalPath();
+				Assert.fail("expected no profile after failed build");
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+			fail.set(false);
+			assertTrue(project.build(executor, Build.NULL_METER).get(30, TimeUnit.SECONDS));
+			CriticalPath cp = project.getCriticalPath();
+			Build.Graph graph = project.getGraph();
+			assertArrayEquals(indices(graph, 0, 1, 3), cp.getPath());
+			assertTrue(cp.getLength() >= TimeUnit.MILLISECONDS.toNanos(50));
+			assertTrue(cp.getSlack(index(graph, 2)) > 0);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Construct a diamond where task 0 is depended upon by tasks 1 and 2, which
+	 * are both depended upon by task 3.
+	 *
+	 * @return
+	 */
+	private BuildGraph diamond() {
+		return new BuildGraph(Arrays.asList(task(3, 1, 2), task(2, 0), task(1, 0), task(0)));
+	}
+
+	/**
+	 * Determine the durations of tasks in a graph, where the given durations are
+	 * indexed by the target of each task.
+	 *
+	 * @param graph
+	 * @param durations
+	 * @return
+	 */
+	private long[] durations(BuildGraph graph, long... durations) {
+		long[] r = new long[graph.size()];
+		for (int i = 0; i != r.length; ++i) {
+			r[i] = durations[Arrays.asList(entries).indexOf(graph.get(i).getTarget())];
+		}
+		return r;
+	}
+
+	private int[] indices(Build.Graph graph, int... targets) {
+		int[] r = new int[targets.length];
+		for (int i = 0; i != r.length; ++i) {
+			r[i] = index(graph, targets[i]);
+		}
+		return r;
+	}
+
+	private int index(Build.Graph graph, int target) {
+		return graph.getProducers(entries[target])[0];
+	}
+
+	private Build.Task task(int target, int... sources) {
+		Path.Entry<?>[] srcs = new Path.Entry<?>[sources.length];
+		for (int i = 0; i != sources.length; ++i) {
+			srcs[i] = entries[sources[i]];
+		}
+		return new BuildFixtures.Task(entries[target], srcs);
+	}
+}
@@ -0,0 +1,193 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.*;
+
+import wybs.lang.Build;
+import wybs.util.ParallelBuildProject;
+import wyfs.lang.Path;
+import wyfs.util.DefaultContentRegistry;
+import wyfs.util.VirtualRoot;
+
+/**
+ * Tests for building projects in parallel, which must respect the dependencies
+ * between tasks and stop once a task has failed.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ParallelBuildProjectTests {
+	private ExecutorService executor;
+	private VirtualRoot root;
+	private ParallelBuildProject project;
+	private Path.Entry<?>[] entries;
+	/**
+	 * Records the target of each task which has completed.
+	 */
+	private Set<Path.Entry<?>> completed;
+	/**
+	 * Records the target of each task which started before one of its sources
+	 * was produced.
+	 */
+	private List<Path.Entry<?>> violations;
+
+	@Before
+	public void setup() throws IOException {
+		executor = Executors.newFixedThreadPool(4);
+		root = new VirtualRoot(new DefaultContentRegistry());
+		project = new ParallelBuildProject(root);
+		entries = BuildFixtures.entries(root, "f", 16);
+		completed = ConcurrentHashMap.newKeySet();
+		violations = Collections.synchronizedList(new ArrayList<>());
+	}
+
+	@After
+	public void teardown() {
+		executor.shutdownNow();
+	}
+
+	@Test public void build_1() throws Exception {
+		// No tasks
+		assertTrue(build());
+	}
+
+	@Test public void build_2() throws Exception {
+		// Chain given in reverse
+		add(task(3, 2), task(2, 1), task(1, 0), task(0));
+		assertTrue(build());
+		assertEquals(4, completed.size());
+		assertEquals(Collections.emptyList(), violations);
+	}
+
+	@Test public void build_3() throws Exception {
+		// Wide and deep graph
+		List<Build.Task> tasks = new ArrayList<>();
+		tasks.add(task(0));
+		for (int i = 1; i != 8; ++i) {
+			tasks.add(task(i, 0));
+		}
+		for (int i = 8; i != 15; ++i) {
+			tasks.add(task(i, i - 7, i - 6));
+		}
+		tasks.add(task(15, 8, 9, 10, 11, 12, 13, 14));
+		Collections.reverse(tasks);
+		add(tasks.toArray(new Build.Task[tasks.size()]));
+		assertTrue(build());
+		assertEquals(16, completed.size());
+		assertEquals(Collections.emptyList(), violations);
+	}
+
+	@Test public void build_4() throws Exception {
+		// Independent tasks execute concurrently
+		CountDownLatch latch = new CountDownLatch(4);
+		Build.Task[] tasks = new Build.Task[4];
+		for (int i = 0; i != tasks.length; ++i) {
+			tasks[i] = task(entries[i], m -> {
+				latch.countDown();
+				try {
+					return latch.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					return false;
+				}
+			});
+		}
+		add(tasks);
+		assertTrue(build());
+	}
+
+	@Test public void fail_1() throws Exception {
+		// Dependents of a failed task are not started
+		add(task(0), task(entries[1], m -> false, entries[0]), task(2, 1), task(3, 2));
+		assertFalse(build());
+		assertTrue(completed.contains(entries[0]));
+		assertFalse(completed.contains(entries[2]));
+		assertFalse(completed.contains(entries[3]));
+	}
+
+	@Test public void fail_2() throws Exception {
+		// Exceptions thrown by a task fail the build
+		add(task(0), task(entries[1], m -> {
+			throw new IllegalArgumentException();
+		}, entries[0]), task(2, 1));
+		try {
+			build();
+			Assert.fail("expected build to fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		assertFalse(completed.contains(entries[2]));
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private boolean build() throws Exception {
+		project.refresh();
+		return project.build(executor, Build.NULL_METER).get(30, TimeUnit.SECONDS);
+	}
+
+	private void add(Build.Task... tasks) {
+		project.add(ts -> ts.addAll(Arrays.asList(tasks)));
+	}
+
+	private Build.Task task(int target, int... sources) {
+		Path.Entry<?>[] srcs = new Path.Entry<?>[sources.length];
+		for (int i = 0; i != sources.length; ++i) {
+			srcs[i] = entries[sources[i]];
+		}
+		return task(entries[target], m -> true, srcs);
+	}
+
+	/**
+	 * Construct a task which checks that each of its sources has already been
+	 * produced, and then records its target as produced if the given body
+	 * succeeds.
+	 *
+	 * @param target
+	 * @param body
+	 * @param sources
+	 * @return
+	 */
+	private Build.Task task(Path.Entry<?> target, Function<Build.Meter, Boolean> body, Path.Entry<?>... sources) {
+		List<Path.Entry<?>> srcs = Arrays.asList(sources);
+		return new BuildFixtures.Task(project, target, m -> {
+			if (!completed.containsAll(srcs)) {
+				violations.add(target);
+			}
+			boolean r = body.apply(m);
+			if (r) {
+				completed.add(target);
+			}
+			return r;
+		}, sources);
+	}
+}
@@ -0,0 +1,244 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.*;
+
+import wybs.util.ProfilingMeter;
+
+/**
+ * Tests for the profiling meter, which records time and allocation for nested
+ * (sub)tasks and steps.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ProfilingMeterTests {
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	@Test public void fork_1() {
+		// Forked meters are nested in order of creation
+		ProfilingMeter meter = new ProfilingMeter("build");
+		ProfilingMeter t1 = meter.fork("t1");
+		ProfilingMeter t2 = meter.fork("t2");
+		ProfilingMeter t3 = t1.fork("t3");
+		t3.done();
+		t1.done();
+		t2.done();
+		meter.done();
+		assertEquals(Arrays.asList("t1", "t2"), names(meter.getChildren()));
+		assertEquals(Arrays.asList("t3"), names(t1.getChildren()));
+		assertEquals(Arrays.asList(), names(t2.getChildren()));
+		assertTrue(meter.isDone() && t1.isDone() && t2.isDone() && t3.isDone());
+		assertTrue(t3.getWallTime() <= t1.getWallTime());
+		assertTrue(t1.getWallTime() <= meter.getWallTime());
+	}
+
+	@Test public void step_1() {
+		// Steps are recorded in order, each timed from the previous
+		ProfilingMeter meter = new ProfilingMeter("build");
+		meter.step("parse");
+		spin(1000000);
+		meter.step("check");
+		meter.step("parse");
+		meter.done();
+		List<ProfilingMeter.Step> steps = meter.getSteps();
+		assertEquals(3, steps.size());
+		assertEquals("parse", steps.get(0).getTag());
+		assertEquals("check", steps.get(1).getTag());
+		assertEquals("parse", steps.get(2).getTag());
+		long total = 0;
+		for (ProfilingMeter.Step step : steps) {
+			assertTrue(step.getWallTime() >= 0);
+			total += step.getWallTime();
+		}
+		assertTrue(steps.get(1).getWallTime() >= 1000000);
+		assertTrue(total <= meter.getWallTime());
+	}
+
+	@Test public void step_2() {
+		// Steps with the same tag are aggregated when printed
+		ProfilingMeter meter = new ProfilingMeter("build");
+		ProfilingMeter task = meter.fork("task");
+		for (int i = 0; i != 3; ++i) {
+			task.step("parse");
+			task.step("check");
+		}
+		task.step("emit");
+		task.done();
+		meter.done();
+		String[] lines = print(meter);
+		assertEquals(5, lines.length);
+		assertTrue(lines[0].startsWith("build ["));
+		assertTrue(lines[1].startsWith("  task ["));
+		assertTrue(lines[2].startsWith("    #parse x3 ["));
+		assertTrue(lines[3].startsWith("    #check x3 ["));
+		assertTrue(lines[4].startsWith("    #emit x1 ["));
+	}
+
+	@Test public void done_1() {
+		// Completing a meter more than once has no effect
+		ProfilingMeter meter = new ProfilingMeter("build");
+		assertFalse(meter.isDone());
+		assertEquals(-1, meter.getCpuTime());
+		assertEquals(-1, meter.getAllocatedBytes());
+		meter.done();
+		long wall = meter.getWallTime();
+		spin(1000000);
+		meter.done();
+		assertEquals(wall, meter.getWallTime());
+	}
+
+	@Test public void thread_1() throws InterruptedException {
+		// CPU time is unknown for meters completed on another thread
+		ProfilingMeter meter = new ProfilingMeter("build");
+		ProfilingMeter local = meter.fork("local");
+		ProfilingMeter remote = meter.fork("remote");
+		Thread thread = new Thread(() -> {
+			remote.step("remote");
+			remote.done();
+		});
+		thread.start();
+		thread.join();
+		local.done();
+		meter.done();
+		assertEquals(-1, remote.getCpuTime());
+		assertEquals(-1, remote.getAllocatedBytes());
+		assertEquals(-1, remote.getSteps().get(0).getCpuTime());
+		if (THREADS.isCurrentThreadCpuTimeSupported()) {
+			assertTrue(local.getCpuTime() >= 0);
+		}
+	}
+
+	@Test public void restore_1() {
+		// Settings restored once the last top-level meter has completed
+		if (!THREADS.isThreadCpuTimeSupported()) {
+			return;
+		}
+		boolean original = THREADS.isThreadCpuTimeEnabled();
+		try {
+			THREADS.setThreadCpuTimeEnabled(false);
+			ProfilingMeter m1 = new ProfilingMeter("m1");
+			assertTrue(THREADS.isThreadCpuTimeEnabled());
+			ProfilingMeter m2 = new ProfilingMeter("m2");
+			// Forked meters do not affect the settings
+			m1.fork("child").done();
+			m1.done();
+			assertTrue(THREADS.isThreadCpuTimeEnabled());
+			m2.done();
+			assertFalse(THREADS.isThreadCpuTimeEnabled());
+			// Enabled again for subsequent meters
+			ProfilingMeter m3 = new ProfilingMeter("m3");
+			assertTrue(THREADS.isThreadCpuTimeEnabled());
+			m3.done();
+			m3.done();
+			assertFalse(THREADS.isThreadCpuTimeEnabled());
+		} finally {
+			THREADS.setThreadCpuTimeEnabled(original);
+		}
+	}
+
+	@Test public void restore_2() {
+		// Allocation settings restored once the last top-level meter has completed
+		if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREADS;
+		if (!bean.isThreadAllocatedMemorySupported()) {
+			return;
+		}
+		boolean original = bean.isThreadAllocatedMemoryEnabled();
+		try {
+			bean.setThreadAllocatedMemoryEnabled(false);
+			ProfilingMeter meter = new ProfilingMeter("build");
+			assertTrue(bean.isThreadAllocatedMemoryEnabled());
+			List<int[]> garbage = new ArrayList<>();
+			for (int i = 0; i != 100; ++i) {
+				garbage.add(new int[1024]);
+			}
+			meter.done();
+			assertFalse(bean.isThreadAllocatedMemoryEnabled());
+			assertTrue(meter.getAllocatedBytes() >= 100 * 1024 * 4);
+			assertEquals(100, garbage.size());
+		} finally {
+			bean.setThreadAllocatedMemoryEnabled(original);
+		}
+	}
+
+	@Test public void trace_1() throws IOException {
+		// One event for every meter and step
+		ProfilingMeter meter = new ProfilingMeter("build");
+		ProfilingMeter task = meter.fork("task \"1\"");
+		task.step("parse");
+		task.step("check");
+		task.done();
+		meter.done();
+		StringWriter out = new StringWriter();
+		meter.writeTrace(out);
+		String trace = out.toString();
+		assertTrue(trace.startsWith("{\"traceEvents\":["));
+		assertEquals(4, count(trace, "\"ph\":\"X\""));
+		assertTrue(trace.contains("\"name\":\"task \\\"1\\\"\""));
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private static List<String> names(List<ProfilingMeter> meters) {
+		List<String> names = new ArrayList<>();
+		for (ProfilingMeter meter : meters) {
+			names.add(meter.getName());
+		}
+		return names;
+	}
+
+	private static String[] print(ProfilingMeter meter) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		meter.print(new PrintStream(bytes, true));
+		return bytes.toString().split("\\R");
+	}
+
+	private static int count(String str, String pattern) {
+		int count = 0;
+		for (int i = str.indexOf(pattern); i >= 0; i = str.indexOf(pattern, i + 1)) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Busy wait for (at least) a given number of nanoseconds.
+	 *
+	 * @param nanos
+	 */
+	private static void spin(long nanos) {
+		long end = System.nanoTime() + nanos;
+		while (System.nanoTime() < end) {
+			// Wait
+		}
+	}
+}
@@ -0,0 +1,332 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import wybs.io.SyntacticHeapReader;
+import wybs.io.SyntacticHeapWriter;
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit;
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Pair;
+import wybs.util.AbstractCompilationUnit.Ref;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.AbstractCompilationUnit.Value;
+import wybs.util.CompactSyntacticHeap;
+import wybs.util.SectionedSchema;
+
+/**
+ * Simple microbenchmarks for operations on syntactic heaps. This is not run as
+ * part of the test suite, and should be run directly (e.g. from the test
+ * classpath) as required.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SyntacticHeapBenchmark {
+	private static final int LOOKUPS = 1000000;
+	private static final int SCANS = 1000;
+	private static final int REPEATS = 5;
+
+	public static void main(String[] args) throws IOException {
+		for (int n = 1000; n <= 1000000; n *= 10) {
+			Heap heap = generate(n);
+			// Warm up
+			benchmarkGetIndexOf(heap);
+			benchmarkScan(heap);
+			long time = benchmarkGetIndexOf(heap);
+			long scan = benchmarkScan(heap);
+			System.out.println("getIndexOf (" + n + " items): " + (time / LOOKUPS) + "ns/lookup (linear scan "
+					+ (scan / SCANS) + "ns/lookup)");
+		}
+		for (int n = 1000; n <= 1000000; n *= 10) {
+			long[] footprint = measureFootprint(n);
+			System.out.println("footprint (" + n + " items): " + footprint[0] + " bytes (object), " + footprint[1]
+					+ " bytes (compact)");
+		}
+		SectionedSchema packed = createSchema();
+		SectionedSchema.Builder builder = packed.extend();
+		builder.enable(SectionedSchema.LEB128);
+		SectionedSchema aligned = builder.done();
+		for (int n = 1000; n <= 1000000; n *= 10) {
+			Heap heap = generateModule(n);
+			long[] p = benchmarkEncoding(heap, packed);
+			long[] a = benchmarkEncoding(heap, aligned);
+			System.out.println("encoding (" + heap.size() + " items): " + p[0] + " bytes, " + (p[1] / 1000) + "us write, "
+					+ (p[2] / 1000) + "us read, " + (p[3] / 1000) + "us open (bit-packed); " + a[0] + " bytes, "
+					+ (a[1] / 1000) + "us write, " + (a[2] / 1000) + "us read, " + (a[3] / 1000)
+					+ "us open (byte-aligned)");
+		}
+	}
+
+	/**
+	 * Time a sequence of random lookups against a given heap.
+	 *
+	 * @param heap
+	 * @return
+	 */
+	private static long benchmarkGetIndexOf(Heap heap) {
+		Random random = new Random(0);
+		long checksum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i != LOOKUPS; ++i) {
+			SyntacticItem item = heap.getSyntacticItem(random.nextInt(heap.size()));
+			checksum += heap.getIndexOf(item);
+		}
+		long time = System.nanoTime() - start;
+		if (checksum < 0) {
+			throw new IllegalArgumentException("invalid checksum");
+		}
+		return time;
+	}
+
+	/**
+	 * Time a sequence of random lookups against a given heap using a linear scan,
+	 * as <code>getIndexOf()</code> did originally (and still does for items not
+	 * owned by the heap). Since each lookup takes time proportional to the size
+	 * of the heap, fewer lookups are performed.
+	 *
+	 * @param heap
+	 * @return
+	 */
+	private static long benchmarkScan(Heap heap) {
+		Random random = new Random(0);
+		long checksum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i != SCANS; ++i) {
+			SyntacticItem item = heap.getSyntacticItem(random.nextInt(heap.size()));
+			checksum += scan(heap, item);
+		}
+		long time = System.nanoTime() - start;
+		if (checksum < 0) {
+			throw new IllegalArgumentException("invalid checksum");
+		}
+		return time;
+	}
+
+	private static int scan(Heap heap, SyntacticItem item) {
+		for (int i = 0; i != heap.size(); ++i) {
+			if (heap.getSyntacticItem(i) == item) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("invalid syntactic item");
+	}
+
+	/**
+	 * Measure the approximate memory footprint of a heap of a given size, both as
+	 * individual objects and in compact form.
+	 *
+	 * @param n
+	 * @return
+	 */
+	private static long[] measureFootprint(int n) {
+		long before = usedMemory();
+		Heap heap = generate(n);
+		long objects = usedMemory() - before;
+		before = usedMemory();
+		CompactSyntacticHeap compact = new CompactSyntacticHeap(createSchema(), heap);
+		compact.trimToSize();
+		long packed = usedMemory() - before;
+		// Ensure neither heap is collected before being measured
+		if (heap.size() != compact.size()) {
+			throw new IllegalArgumentException("invalid copy");
+		}
+		return new long[] { objects, packed };
+	}
+
+	/**
+	 * Measure the size of a given heap in binary form using a given schema,
+	 * along with the best time taken to write it, read it and open it in place.
+	 *
+	 * @param heap
+	 * @param schema
+	 * @return
+	 * @throws IOException
+	 */
+	private static long[] benchmarkEncoding(Heap heap, SyntacticHeap.Schema schema) throws IOException {
+		long write = Long.MAX_VALUE, read = Long.MAX_VALUE, open = Long.MAX_VALUE;
+		byte[] bytes = null;
+		for (int i = 0; i != REPEATS; ++i) {
+			long start = System.nanoTime();
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			Writer writer = new Writer(output, schema);
+			writer.write(heap);
+			writer.close();
+			bytes = output.toByteArray();
+			write = Math.min(write, System.nanoTime() - start);
+			start = System.nanoTime();
+			int size = new Reader(new ByteArrayInputStream(bytes), schema).read().size();
+			read = Math.min(read, System.nanoTime() - start);
+			start = System.nanoTime();
+			size += new Reader(ByteBuffer.wrap(bytes), schema).openAll();
+			open = Math.min(open, System.nanoTime() - start);
+			if (size != heap.size() * 2) {
+				throw new IllegalArgumentException("invalid read");
+			}
+		}
+		return new long[] { bytes.length, write, read, open };
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i != 3; ++i) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Generate a heap of a given size, consisting of a chain of tuples.
+	 *
+	 * @param n
+	 * @return
+	 */
+	private static Heap generate(int n) {
+		Heap heap = new Heap();
+		SyntacticItem item = heap.allocate(new AbstractCompilationUnit.Value.Int(0));
+		while (heap.size() < n) {
+			item = heap.allocate(new AbstractCompilationUnit.Tuple<>(item));
+		}
+		heap.setRootItem(item);
+		return heap;
+	}
+
+	/**
+	 * Generate a heap of roughly a given size, resembling a compilation unit.
+	 * That is, a sequence of declarations, each with a qualified name and a
+	 * body of assignments to local variables (some of which refer to earlier
+	 * ones).
+	 *
+	 * @param n
+	 * @return
+	 */
+	private static Heap generateModule(int n) {
+		Random random = new Random(0);
+		Heap heap = new Heap();
+		List<SyntacticItem> declarations = new ArrayList<>();
+		Identifier module = heap.allocate(new Identifier("module"));
+		while (heap.size() < n) {
+			Identifier id = heap.allocate(new Identifier("f" + declarations.size()));
+			Name name = heap.allocate(new Name(module, id));
+			List<SyntacticItem> body = new ArrayList<>();
+			int statements = 1 + random.nextInt(20);
+			for (int i = 0; i != statements; ++i) {
+				Identifier var = heap.allocate(new Identifier("x" + random.nextInt(10)));
+				SyntacticItem rhs;
+				if (i > 0 && random.nextBoolean()) {
+					rhs = heap.allocate(new Ref<>(body.get(random.nextInt(i))));
+				} else if (random.nextInt(4) == 0) {
+					rhs = heap.allocate(new Value.UTF8(("s" + random.nextInt()).getBytes()));
+				} else {
+					rhs = heap.allocate(new Value.Int(random.nextInt(1000)));
+				}
+				body.add(heap.allocate(new Pair<>(var, rhs)));
+			}
+			declarations.add(heap.allocate(new Pair<>(name, heap.allocate(new Tuple<>(body)))));
+		}
+		heap.setRootItem(heap.allocate(new Tuple<>(declarations)));
+		return heap;
+	}
+
+	/**
+	 * Create a schema covering the items of <code>AbstractCompilationUnit</code>.
+	 *
+	 * @return
+	 */
+	private static SectionedSchema createSchema() {
+		SyntacticItem.Descriptor[] descriptors = new SyntacticItem.Descriptor[16];
+		descriptors[AbstractCompilationUnit.ITEM_null] = Value.Null.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_bool] = Value.Bool.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_int] = Value.Int.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_utf8] = Value.UTF8.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_pair] = Pair.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_tuple] = Tuple.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_array] = Value.Array.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_ident] = Identifier.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_name] = Name.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_decimal] = Value.Decimal.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_ref] = Ref.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_dictionary] = Value.Dictionary.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_byte] = Value.Byte.DESCRIPTOR_0;
+		SectionedSchema.Builder builder = SectionedSchema.ROOT.extend();
+		builder.register("core", descriptors.length);
+		for (int i = 0; i != descriptors.length; ++i) {
+			String name = descriptors[i] == null ? null : "ITEM_" + i;
+			builder.add("core", name, descriptors[i]);
+		}
+		return builder.done();
+	}
+
+	private static class Writer extends SyntacticHeapWriter {
+		public Writer(OutputStream output, SyntacticHeap.Schema schema) {
+			super(output, schema);
+		}
+
+		@Override
+		public void writeHeader() throws IOException {
+			out.write_u8(0xB5);
+		}
+	}
+
+	private static class Reader extends SyntacticHeapReader {
+		private final SyntacticHeap.Schema schema;
+
+		public Reader(InputStream input, SyntacticHeap.Schema schema) {
+			super(input);
+			this.schema = schema;
+		}
+
+		public Reader(ByteBuffer buffer, SyntacticHeap.Schema schema) {
+			super(buffer);
+			this.schema = schema;
+		}
+
+		@Override
+		public SyntacticHeap read() throws IOException {
+			wyfs.util.Pair<Integer, SyntacticItem[]> p = readItems();
+			// Allocate everything reachable from the root
+			Heap heap = new Heap();
+			heap.setRootItem(heap.allocate(p.second()[p.first()]));
+			return heap;
+		}
+
+		public int openAll() throws IOException {
+			return readMappedHeap().size();
+		}
+
+		@Override
+		protected SyntacticHeap.Schema checkHeader() throws IOException {
+			if (in.read_u8() != 0xB5) {
+				throw new IllegalArgumentException("invalid magic number");
+			}
+			return schema;
+		}
+	}
+
+	private static class Heap extends AbstractCompilationUnit<Heap> {
+		public Heap() {
+			super(null);
+		}
+	}
+}
@@ -0,0 +1,816 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.*;
+
+import wybs.io.SyntacticHeapReader;
+import wybs.io.SyntacticHeapWriter;
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit;
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Pair;
+import wybs.util.AbstractCompilationUnit.Ref;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.AbstractCompilationUnit.Value;
+import wybs.util.AbstractPackedSyntacticHeap;
+import wybs.util.CompactSyntacticHeap;
+import wybs.util.MappedSyntacticHeap;
+import wybs.util.SectionedSchema;
+
+/**
+ * Tests for reading and writing syntactic heaps in the binary format, covering
+ * each of the optional features of the format.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SyntacticHeapIOTests {
+	private static final SectionedSchema SCHEMA = createSchema();
+
+	@Test public void plain_1() throws IOException {
+		// Bytes produced by earlier versions of the writer
+		Heap heap = new Heap();
+		Identifier m = heap.allocate(new Identifier("m"));
+		Identifier f = heap.allocate(new Identifier("f"));
+		Name name = heap.allocate(new Name(m, f));
+		Identifier x = heap.allocate(new Identifier("x"));
+		Pair<Identifier, Value.Int> p1 = heap.allocate(new Pair<>(x, new Value.Int(1)));
+		Pair<Identifier, Value.Int> p2 = heap.allocate(new Pair<>(x, new Value.Int(-300)));
+		Ref<?> r = heap.allocate(new Ref<>(p1));
+		Value.UTF8 s = heap.allocate(new Value.UTF8("hello".getBytes()));
+		Value.Bool b = heap.allocate(new Value.Bool(true));
+		Value.Null n = heap.allocate(new Value.Null());
+		Tuple<?> t = heap.allocate(new Tuple<>(p1, p2, r, s, b, n));
+		heap.setRootItem(heap.allocate(new Pair<>(name, t)));
+		byte[] expected = fromHex("b51e1d07d1060761060802010781070453021100047302e24f0d0a04038556c6c6f6060101000546"
+				+ "8691a1b10104c201");
+		assertArrayEquals(expected, write(heap, SCHEMA, 1));
+		wyfs.util.Pair<Integer, SyntacticItem[]> p = new Reader(new ByteArrayInputStream(expected), SCHEMA).items();
+		checkItems(heap, p.first(), p.second());
+	}
+
+	@Test public void plain_2() throws IOException {
+		Heap heap = generate(5000);
+		wyfs.util.Pair<Integer, SyntacticItem[]> p = new Reader(new ByteArrayInputStream(write(heap, SCHEMA, 1)), SCHEMA)
+				.items();
+		checkItems(heap, p.first(), p.second());
+	}
+
+	@Test public void plain_3() throws IOException {
+		// Without an offset table, items are located by scanning
+		Heap heap = generate(20000);
+		byte[] bytes = embed(write(heap, SCHEMA, 1), 3, 0);
+		checkMapped(heap, new Reader(ByteBuffer.wrap(bytes, 3, bytes.length - 3), SCHEMA).mapped());
+	}
+
+	@Test public void offsetTable_1() throws IOException {
+		// Heap located after other bytes in the buffer
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.OFFSET_TABLE);
+		Heap heap = generate(20000);
+		byte[] bytes = embed(write(heap, schema, 16), 13, 0);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 13, bytes.length - 13);
+		checkMapped(heap, new Reader(buffer, schema).mapped());
+	}
+
+	@Test public void offsetTable_2() throws IOException {
+		// Heap located after other bytes in the buffer, read in parallel
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.OFFSET_TABLE);
+		Heap heap = generate(20000);
+		byte[] bytes = embed(write(heap, schema, 16), 7, 0);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 7, bytes.length - 7);
+		wyfs.util.Pair<Integer, SyntacticItem[]> p = new Reader(buffer, schema).items(ForkJoinPool.commonPool());
+		checkItems(heap, p.first(), p.second());
+	}
+
+	@Test public void offsetTable_3() throws IOException {
+		// Heap located within a slice of a larger buffer
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.OFFSET_TABLE);
+		Heap heap = generate(10000);
+		byte[] bytes = embed(write(heap, schema, 1), 5, 0);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		buffer.position(5);
+		checkMapped(heap, new Reader(buffer.slice(), schema).mapped());
+	}
+
+	@Test public void offsetTable_6() throws IOException {
+		// Parallel decoding produces the same items as sequential decoding
+		for (SectionedSchema schema : new SectionedSchema[] { extend(SCHEMA, SectionedSchema.OFFSET_TABLE),
+				extend(SCHEMA, SectionedSchema.LEB128, SectionedSchema.OFFSET_TABLE) }) {
+			byte[] bytes = write(generate(20000), schema, 32);
+			wyfs.util.Pair<Integer, SyntacticItem[]> expected = new Reader(ByteBuffer.wrap(bytes), schema).items();
+			wyfs.util.Pair<Integer, SyntacticItem[]> actual = new Reader(ByteBuffer.wrap(bytes), schema)
+					.items(ForkJoinPool.commonPool());
+			assertEquals(expected.first(), actual.first());
+			checkItems(expected.second(), actual.second());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void offsetTable_4() throws IOException {
+		// Trailing bytes after the heap are detected
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.OFFSET_TABLE);
+		byte[] bytes = embed(write(generate(500), schema, 8), 0, 11);
+		new Reader(ByteBuffer.wrap(bytes), schema).mapped();
+	}
+
+	@Test public void offsetTable_5() {
+		// Older readers can ignore the offset table
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.OFFSET_TABLE);
+		assertEquals(SCHEMA.getMajorVersion(), schema.getMajorVersion());
+		assertEquals(SCHEMA.getMinorVersion() + 1, schema.getMinorVersion());
+	}
+
+	@Test public void leb128_1() throws IOException {
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.LEB128);
+		Heap heap = generate(5000);
+		wyfs.util.Pair<Integer, SyntacticItem[]> p = new Reader(new ByteArrayInputStream(write(heap, schema, 1)), schema)
+				.items();
+		checkItems(heap, p.first(), p.second());
+	}
+
+	@Test public void leb128_2() throws IOException {
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.LEB128, SectionedSchema.OFFSET_TABLE);
+		Heap heap = generate(20000);
+		checkMapped(heap, new Reader(ByteBuffer.wrap(write(heap, schema, 8)), schema).mapped());
+	}
+
+	@Test public void leb128_3() {
+		// Older readers cannot decode this encoding
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.LEB128);
+		assertEquals(SCHEMA.getMajorVersion() + 1, schema.getMajorVersion());
+		assertEquals(0, schema.getMinorVersion());
+	}
+
+	@Test public void trailer_1() throws IOException {
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.TRAILER);
+		Heap heap = generate(5000);
+		wyfs.util.Pair<Integer, SyntacticItem[]> p = new Reader(ByteBuffer.wrap(write(heap, schema, 1)), schema)
+				.items();
+		checkItems(heap, p.first(), p.second());
+	}
+
+	@Test public void trailer_2() throws IOException {
+		// Heap located after other bytes in the buffer
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.TRAILER, SectionedSchema.OFFSET_TABLE);
+		Heap heap = generate(20000);
+		byte[] bytes = embed(write(heap, schema, 16), 9, 0);
+		checkMapped(heap, new Reader(ByteBuffer.wrap(bytes, 9, bytes.length - 9), schema).mapped());
+	}
+
+	@Test public void trailer_3() {
+		// Older readers cannot locate the number of items
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.TRAILER);
+		assertEquals(SCHEMA.getMajorVersion() + 1, schema.getMajorVersion());
+		assertEquals(0, schema.getMinorVersion());
+	}
+
+	@Test public void streamed_1() throws IOException {
+		// Streaming a heap gives the same bytes as writing it in one go
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.TRAILER, SectionedSchema.OFFSET_TABLE);
+		Heap heap = generate(20000);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Writer writer = new Writer(output, schema);
+		writer.setOffsetTableStride(16);
+		writer.begin();
+		for (int i = 0; i != heap.size(); ++i) {
+			SyntacticItem item = heap.getSyntacticItem(i);
+			int[] operands = new int[item.size()];
+			for (int j = 0; j != operands.length; ++j) {
+				operands[j] = item.get(j).getIndex();
+			}
+			assertEquals(i, writer.append(item.getOpcode(), operands, item.getData()));
+		}
+		writer.end(heap.getRootItem().getIndex());
+		writer.close();
+		byte[] bytes = output.toByteArray();
+		assertArrayEquals(write(heap, schema, 16), bytes);
+		checkMapped(heap, new Reader(ByteBuffer.wrap(bytes), schema).mapped());
+	}
+
+	@Test public void streamed_2() throws IOException {
+		// Operands may refer to items not yet appended
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.TRAILER);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Writer writer = new Writer(output, schema);
+		writer.begin();
+		writer.append(AbstractCompilationUnit.ITEM_pair, new int[] { 1, 2 }, null);
+		writer.append(AbstractCompilationUnit.ITEM_ident, new int[0], "x".getBytes());
+		writer.append(AbstractCompilationUnit.ITEM_int, new int[0], new byte[] { 1 });
+		writer.end(0);
+		writer.close();
+		wyfs.util.Pair<Integer, SyntacticItem[]> p = new Reader(ByteBuffer.wrap(output.toByteArray()), schema).items();
+		SyntacticItem[] items = p.second();
+		assertEquals(0, (int) p.first());
+		assertEquals(3, items.length);
+		assertEquals(items[1], items[0].get(0));
+		assertEquals(items[2], items[0].get(1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void streamed_3() throws IOException {
+		// Streaming requires the trailer
+		new Writer(new ByteArrayOutputStream(), SCHEMA).begin();
+	}
+
+	@Test public void deep_1() throws IOException {
+		// Deeply nested items are read without overflowing the stack, where
+		// each item refers to the next such that none are constructed first
+		CompactSyntacticHeap heap = new CompactSyntacticHeap(SCHEMA);
+		int n = 200000;
+		for (int i = 0; i != n - 1; ++i) {
+			heap.add(AbstractCompilationUnit.ITEM_ref, new int[] { i + 1 }, null);
+		}
+		heap.add(AbstractCompilationUnit.ITEM_ident, new int[0], "x".getBytes());
+		heap.setRootItem(heap.getSyntacticItem(0));
+		byte[] bytes = write(heap, SCHEMA, 16);
+		wyfs.util.Pair<Integer, SyntacticItem[]> p = new Reader(new ByteArrayInputStream(bytes), SCHEMA).items();
+		checkItems(heap, p.first(), p.second());
+	}
+
+	@Test public void writeSyntacticItem_1() throws IOException {
+		// Items can be written individually, without beginning a heap
+		Heap heap = generate(1000);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Writer writer = new Writer(output, SCHEMA);
+		writer.writeHeader();
+		writer.writeCounts(heap.size(), heap.getRootItem().getIndex());
+		for (int i = 0; i != heap.size(); ++i) {
+			writer.writeSyntacticItem(heap.getSyntacticItem(i));
+		}
+		writer.close();
+		assertArrayEquals(write(heap, SCHEMA, 1), output.toByteArray());
+	}
+
+	@Test public void metrics_1() throws IOException {
+		Heap heap = generate(1000);
+		SyntacticHeapWriter.Metrics metrics = new SyntacticHeapWriter.Metrics();
+		Writer writer = new Writer(new ByteArrayOutputStream(), SCHEMA);
+		writer.setMetrics(metrics);
+		writer.write(heap);
+		writer.close();
+		long bytes = 0;
+		for (int opcode : metrics.getOpcodes()) {
+			long count = 0;
+			for (int i = 0; i != heap.size(); ++i) {
+				count += heap.getSyntacticItem(i).getOpcode() == opcode ? 1 : 0;
+			}
+			assertEquals(count, metrics.getCount(opcode));
+			bytes += metrics.getBytes(opcode);
+		}
+		assertEquals(heap.size(), metrics.getCount());
+		assertEquals(bytes, metrics.getBytes());
+	}
+
+	@Test public void packed_1() throws IOException {
+		// Queries for any kind match those of the original heap, in the same order
+		Heap heap = generate(5000);
+		SyntacticHeap mapped = new Reader(ByteBuffer.wrap(write(heap, SCHEMA, 1)), SCHEMA).mapped();
+		assertEquals(indices(heap.findAll(SyntacticItem.class)), indices(mapped.findAll(SyntacticItem.class)));
+		checkConcrete(heap.findAll(Pair.class), mapped.findAll(Pair.class));
+		checkConcrete(heap.findAll(Ref.class), mapped.findAll(Ref.class));
+		checkConcrete(heap.findAll(Value.class), mapped.findAll(Value.class));
+		assertTrue(mapped.findAll(Value.Decimal.class).isEmpty());
+		// The same concrete items are returned each time
+		assertSame(mapped.findAll(Pair.class).get(0), mapped.findAll(Pair.class).get(0));
+	}
+
+	@Test public void packed_2() throws IOException {
+		// Parents and ancestors can be found for any kind
+		Heap heap = generate(5000);
+		SyntacticHeap mapped = new Reader(ByteBuffer.wrap(write(heap, SCHEMA, 1)), SCHEMA).mapped();
+		for (int i = 0; i < heap.size(); i += 7) {
+			SyntacticItem e = heap.getSyntacticItem(i);
+			SyntacticItem a = mapped.getSyntacticItem(i);
+			checkConcrete(heap.getParents(e, Pair.class), mapped.getParents(a, Pair.class));
+			checkConcrete(single(heap.getAncestor(e, Tuple.class)), single(mapped.getAncestor(a, Tuple.class)));
+			assertNull(mapped.getParent(a, Value.class));
+		}
+	}
+
+	@Test public void packed_3() throws IOException {
+		// Flyweights are only created once for each item
+		Heap heap = generate(1000);
+		SyntacticHeap mapped = new Reader(ByteBuffer.wrap(write(heap, SCHEMA, 1)), SCHEMA).mapped();
+		CompactSyntacticHeap compact = new CompactSyntacticHeap(SCHEMA, heap);
+		for (SyntacticHeap packed : Arrays.asList(mapped, compact)) {
+			for (int i = 0; i != packed.size(); ++i) {
+				SyntacticItem item = packed.getSyntacticItem(i);
+				assertSame(item, packed.getSyntacticItem(i));
+				for (int j = 0; j != item.size(); ++j) {
+					assertSame(item.get(j), packed.getSyntacticItem(item.get(j).getIndex()));
+				}
+			}
+		}
+		// Hence, replacing an item replaces every occurrence
+		SyntacticItem x = compact.allocate(new Identifier("x"));
+		SyntacticItem from = compact.findAll(SyntacticItem.class).get(3);
+		List<Integer> parents = indices(compact.getParents(from, SyntacticItem.class));
+		compact.replace(from, x);
+		assertEquals(parents, indices(compact.getParents(x, SyntacticItem.class)));
+	}
+
+	@Test public void roundtrip_1() throws IOException {
+		// Compact heaps hold the same items, and are written the same
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.LEB128, SectionedSchema.OFFSET_TABLE);
+		Heap heap = generate(5000);
+		CompactSyntacticHeap compact = new CompactSyntacticHeap(schema, heap);
+		checkMapped(heap, compact);
+		assertArrayEquals(write(heap, schema, 8), write(compact, schema, 8));
+		checkMapped(heap, new Reader(ByteBuffer.wrap(write(compact, schema, 8)), schema).compact());
+	}
+
+	@Test public void roundtrip_2() throws IOException {
+		// Modifying a mapped heap matches modifying the original
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.OFFSET_TABLE);
+		Heap heap = generate(5000);
+		byte[] bytes = write(heap, schema, 16);
+		byte[] original = bytes.clone();
+		MappedSyntacticHeap mapped = new Reader(ByteBuffer.wrap(bytes), schema).mapped();
+		CompactSyntacticHeap compact = new CompactSyntacticHeap(schema, heap);
+		for (SyntacticHeap h : Arrays.asList(heap, mapped, compact)) {
+			SyntacticItem root = h.getRootItem();
+			SyntacticItem item = h.getSyntacticItem(1000);
+			h.setRootItem(h.allocate(new Pair<>(root, new Tuple<>(item, new Identifier("y")))));
+		}
+		assertTrue(mapped.isModified());
+		checkMapped(heap, mapped);
+		checkMapped(heap, compact);
+		// Underlying buffer never modified
+		assertArrayEquals(original, bytes);
+	}
+
+	@Test public void roundtrip_3() throws IOException {
+		// Replacing and collecting items in a mapped heap matches the original
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.LEB128);
+		Heap heap = generate(5000);
+		MappedSyntacticHeap mapped = new Reader(ByteBuffer.wrap(write(heap, schema, 1)), schema).mapped();
+		CompactSyntacticHeap compact = new CompactSyntacticHeap(schema, heap);
+		for (SyntacticHeap h : Arrays.asList(heap, mapped, compact)) {
+			SyntacticItem declarations = h.getRootItem();
+			h.replace(declarations.get(1), declarations.get(2));
+			h.setRootItem(h.allocate(new Tuple<>(declarations.get(0), declarations.get(1))));
+		}
+		checkMapped(heap, mapped);
+		checkMapped(heap, compact);
+		// Collect unreachable items
+		assertTrue(heap.gc());
+		assertTrue(mapped.gc());
+		assertTrue(compact.gc());
+		checkMapped(heap, mapped);
+		checkMapped(heap, compact);
+		assertFalse(mapped.gc());
+	}
+
+	@Test public void roundtrip_4() throws IOException {
+		// Unmodified heaps are never copied
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.OFFSET_TABLE);
+		Heap heap = generate(5000);
+		MappedSyntacticHeap mapped = new Reader(ByteBuffer.wrap(write(heap, schema, 16)), schema).mapped();
+		mapped.findAll(Pair.class);
+		mapped.getParents(mapped.getSyntacticItem(10), SyntacticItem.class);
+		// Replacing an item not in the heap has no effect
+		mapped.replace(new Identifier("x"), new Identifier("y"));
+		assertFalse(mapped.isModified());
+		checkMapped(heap, mapped);
+	}
+
+	@Test public void data_1() throws IOException {
+		// Views of item data match copies of it, whether or not packed heaps
+		// are byte aligned or have been modified
+		Heap heap = generate(2000);
+		List<AbstractPackedSyntacticHeap> heaps = new ArrayList<>();
+		heaps.add(new CompactSyntacticHeap(SCHEMA, heap));
+		for (SectionedSchema schema : new SectionedSchema[] { SCHEMA, extend(SCHEMA, SectionedSchema.LEB128) }) {
+			heaps.add(new Reader(ByteBuffer.wrap(write(heap, schema, 16)), schema).mapped());
+			MappedSyntacticHeap modified = new Reader(ByteBuffer.wrap(write(heap, schema, 16)), schema).mapped();
+			modified.setRootItem(modified.allocate(new Tuple<>(modified.getRootItem(), new Identifier("y"))));
+			heaps.add(modified);
+		}
+		for (AbstractPackedSyntacticHeap packed : heaps) {
+			for (int i = 0; i != heap.size(); ++i) {
+				ByteBuffer buffer = packed.getDataBuffer(i);
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.get(bytes);
+				assertTrue(buffer.isReadOnly());
+				assertArrayEquals(data(heap.getSyntacticItem(i)), bytes);
+				assertArrayEquals(packed.getData(i), bytes);
+			}
+		}
+	}
+
+	@Test public void lazy_1() throws IOException {
+		// Items are only constructed when reached
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.OFFSET_TABLE);
+		Heap heap = generate(20000);
+		SyntacticHeapReader.LazyItems lazy = new Reader(ByteBuffer.wrap(write(heap, schema, 16)), schema).lazy();
+		assertEquals(heap.size(), lazy.size());
+		assertEquals(heap.getRootItem().getIndex(), lazy.getRootIndex());
+		for (int i = 0; i != lazy.size(); ++i) {
+			assertFalse(lazy.isConstructed(i));
+		}
+		// Constructing a declaration constructs only what it reaches
+		SyntacticItem declaration = heap.getRootItem().get(3);
+		SyntacticItem item = lazy.get(declaration.getIndex());
+		assertSame(item, lazy.get(declaration.getIndex()));
+		boolean[] reached = reachable(heap, declaration);
+		for (int i = 0; i != lazy.size(); ++i) {
+			assertEquals(reached[i], lazy.isConstructed(i));
+		}
+		assertEquals(describe(declaration), describe(item));
+	}
+
+	@Test public void lazy_2() throws IOException {
+		// Lazily read heaps are the same as those read eagerly
+		SectionedSchema schema = extend(SCHEMA, SectionedSchema.LEB128, SectionedSchema.OFFSET_TABLE);
+		Heap heap = generate(10000);
+		byte[] bytes = write(heap, schema, 8);
+		SyntacticHeapReader.LazyItems lazy = new Reader(ByteBuffer.wrap(bytes), schema).lazy();
+		// Construct items in reverse order, so later items are constructed first
+		SyntacticItem[] items = new SyntacticItem[lazy.size()];
+		for (int i = items.length - 1; i >= 0; --i) {
+			items[i] = lazy.get(i);
+		}
+		checkItems(heap, lazy.getRootIndex(), items);
+		SyntacticHeap eager = new Reader(ByteBuffer.wrap(bytes), schema).read();
+		assertEquals(describe(eager.getRootItem()), describe(lazy.getRoot()));
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Check that a heap read back in place has the same items as the original.
+	 * Items are checked in reverse order, so later items are located without
+	 * first scanning those before them.
+	 *
+	 * @param expected
+	 * @param actual
+	 */
+	private static void checkMapped(SyntacticHeap expected, SyntacticHeap actual) {
+		assertEquals(expected.size(), actual.size());
+		assertEquals(expected.getRootItem().getIndex(), actual.getRootItem().getIndex());
+		for (int i = expected.size() - 1; i >= 0; --i) {
+			SyntacticItem e = expected.getSyntacticItem(i);
+			SyntacticItem a = actual.getSyntacticItem(i);
+			assertEquals(e.getOpcode(), a.getOpcode());
+			assertArrayEquals(data(e), data(a));
+			assertEquals(e.size(), a.size());
+			for (int j = 0; j != e.size(); ++j) {
+				assertEquals(e.get(j).getIndex(), a.get(j).getIndex());
+			}
+		}
+	}
+
+	/**
+	 * Check that the items read from a heap are the same as those of the
+	 * original, where the items read are not allocated to any heap.
+	 *
+	 * @param expected
+	 * @param root
+	 * @param items
+	 */
+	private static void checkItems(SyntacticHeap expected, int root, SyntacticItem[] items) {
+		IdentityHashMap<SyntacticItem, Integer> indices = new IdentityHashMap<>();
+		for (int i = 0; i != items.length; ++i) {
+			indices.put(items[i], i);
+		}
+		assertEquals(expected.size(), items.length);
+		assertEquals(expected.getRootItem().getIndex(), root);
+		for (int i = 0; i != items.length; ++i) {
+			SyntacticItem e = expected.getSyntacticItem(i);
+			assertEquals(e.getOpcode(), items[i].getOpcode());
+			assertArrayEquals(data(e), data(items[i]));
+			assertEquals(e.size(), items[i].size());
+			for (int j = 0; j != e.size(); ++j) {
+				assertEquals(e.get(j).getIndex(), (int) indices.get(items[i].get(j)));
+			}
+		}
+	}
+
+	/**
+	 * Check that two sets of items read from the same heap are identical in
+	 * structure, though not necessarily the same objects.
+	 *
+	 * @param expected
+	 * @param actual
+	 */
+	private static void checkItems(SyntacticItem[] expected, SyntacticItem[] actual) {
+		IdentityHashMap<SyntacticItem, Integer> indices = new IdentityHashMap<>();
+		for (int i = 0; i != expected.length; ++i) {
+			indices.put(expected[i], i);
+			indices.put(actual[i], i);
+		}
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i != expected.length; ++i) {
+			assertNotSame(expected[i], actual[i]);
+			assertEquals(expected[i].getClass(), actual[i].getClass());
+			assertEquals(expected[i].getOpcode(), actual[i].getOpcode());
+			assertArrayEquals(data(expected[i]), data(actual[i]));
+			assertEquals(expected[i].size(), actual[i].size());
+			for (int j = 0; j != expected[i].size(); ++j) {
+				assertEquals(indices.get(expected[i].get(j)), indices.get(actual[i].get(j)));
+			}
+		}
+	}
+
+	/**
+	 * Check that the concrete items matched by a query on a packed heap
+	 * correspond to those matched by the same query on the original heap.
+	 *
+	 * @param expected
+	 * @param actual
+	 */
+	private static void checkConcrete(List<? extends SyntacticItem> expected, List<? extends SyntacticItem> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i != expected.size(); ++i) {
+			SyntacticItem e = expected.get(i);
+			SyntacticItem a = actual.get(i);
+			assertEquals(e.getClass(), a.getClass());
+			assertEquals(e.getOpcode(), a.getOpcode());
+			assertArrayEquals(data(e), data(a));
+			assertEquals(e.size(), a.size());
+		}
+	}
+
+	private static List<Integer> indices(List<? extends SyntacticItem> items) {
+		List<Integer> indices = new ArrayList<>();
+		for (SyntacticItem item : items) {
+			indices.add(item.getIndex());
+		}
+		return indices;
+	}
+
+	private static List<SyntacticItem> single(SyntacticItem item) {
+		return item == null ? Collections.emptyList() : Collections.singletonList(item);
+	}
+
+	/**
+	 * Determine which items of a heap are reachable from a given item,
+	 * including through references.
+	 *
+	 * @param heap
+	 * @param item
+	 * @return
+	 */
+	private static boolean[] reachable(SyntacticHeap heap, SyntacticItem item) {
+		boolean[] reached = new boolean[heap.size()];
+		ArrayList<SyntacticItem> worklist = new ArrayList<>();
+		worklist.add(item);
+		while (!worklist.isEmpty()) {
+			item = worklist.remove(worklist.size() - 1);
+			if (!reached[item.getIndex()]) {
+				reached[item.getIndex()] = true;
+				worklist.addAll(Arrays.asList(item.getAll()));
+			}
+		}
+		return reached;
+	}
+
+	/**
+	 * Describe the structure of an item and its children, such that items read
+	 * independently can be compared. References are described by their target's
+	 * opcode, to avoid following cycles.
+	 *
+	 * @param item
+	 * @return
+	 */
+	private static String describe(SyntacticItem item) {
+		StringBuilder r = new StringBuilder();
+		describe(item, r);
+		return r.toString();
+	}
+
+	private static void describe(SyntacticItem item, StringBuilder r) {
+		r.append(item.getOpcode()).append(Arrays.toString(data(item)));
+		if (item instanceof Ref) {
+			r.append("->").append(item.get(0).getOpcode());
+		} else if (item.size() > 0) {
+			r.append('(');
+			for (int i = 0; i != item.size(); ++i) {
+				if (i != 0) {
+					r.append(',');
+				}
+				describe(item.get(i), r);
+			}
+			r.append(')');
+		}
+	}
+
+	private static byte[] data(SyntacticItem item) {
+		byte[] data = item.getData();
+		return data == null ? new byte[0] : data;
+	}
+
+	/**
+	 * Embed some bytes within a larger array, preceded and followed by a given
+	 * number of arbitrary bytes.
+	 *
+	 * @param bytes
+	 * @param before
+	 * @param after
+	 * @return
+	 */
+	private static byte[] embed(byte[] bytes, int before, int after) {
+		byte[] result = new byte[before + bytes.length + after];
+		new Random(before).nextBytes(result);
+		System.arraycopy(bytes, 0, result, before, bytes.length);
+		return result;
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i != bytes.length; ++i) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static byte[] write(SyntacticHeap heap, SyntacticHeap.Schema schema, int stride) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Writer writer = new Writer(output, schema);
+		writer.setOffsetTableStride(stride);
+		writer.write(heap);
+		writer.close();
+		return output.toByteArray();
+	}
+
+	/**
+	 * Generate a heap of roughly a given size, resembling a compilation unit.
+	 *
+	 * @param n
+	 * @return
+	 */
+	private static Heap generate(int n) {
+		Random random = new Random(n);
+		Heap heap = new Heap();
+		List<SyntacticItem> declarations = new ArrayList<>();
+		Identifier module = heap.allocate(new Identifier("module"));
+		while (heap.size() < n) {
+			Identifier id = heap.allocate(new Identifier("f" + declarations.size()));
+			Name name = heap.allocate(new Name(module, id));
+			List<SyntacticItem> body = new ArrayList<>();
+			int statements = 1 + random.nextInt(20);
+			for (int i = 0; i != statements; ++i) {
+				Identifier var = heap.allocate(new Identifier("x" + random.nextInt(10)));
+				SyntacticItem rhs;
+				if (i > 0 && random.nextBoolean()) {
+					rhs = heap.allocate(new Ref<>(body.get(random.nextInt(i))));
+				} else if (random.nextInt(4) == 0) {
+					rhs = heap.allocate(new Value.UTF8(("s" + random.nextInt()).getBytes()));
+				} else {
+					rhs = heap.allocate(new Value.Int(random.nextInt(100000) - 50000));
+				}
+				body.add(heap.allocate(new Pair<>(var, rhs)));
+			}
+			declarations.add(heap.allocate(new Pair<>(name, heap.allocate(new Tuple<>(body)))));
+		}
+		heap.setRootItem(heap.allocate(new Tuple<>(declarations)));
+		return heap;
+	}
+
+	private static SectionedSchema extend(SectionedSchema schema, SectionedSchema.Feature... features) {
+		SectionedSchema.Builder builder = schema.extend();
+		for (SectionedSchema.Feature feature : features) {
+			builder.enable(feature);
+		}
+		return builder.done();
+	}
+
+	/**
+	 * Create a schema covering the items of <code>AbstractCompilationUnit</code>.
+	 *
+	 * @return
+	 */
+	private static SectionedSchema createSchema() {
+		SyntacticItem.Descriptor[] descriptors = new SyntacticItem.Descriptor[16];
+		descriptors[AbstractCompilationUnit.ITEM_null] = Value.Null.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_bool] = Value.Bool.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_int] = Value.Int.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_utf8] = Value.UTF8.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_pair] = Pair.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_tuple] = Tuple.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_array] = Value.Array.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_ident] = Identifier.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_name] = Name.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_decimal] = Value.Decimal.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_ref] = Ref.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_dictionary] = Value.Dictionary.DESCRIPTOR_0;
+		descriptors[AbstractCompilationUnit.ITEM_byte] = Value.Byte.DESCRIPTOR_0;
+		SectionedSchema.Builder builder = SectionedSchema.ROOT.extend();
+		builder.register("core", descriptors.length);
+		for (int i = 0; i != descriptors.length; ++i) {
+			String name = descriptors[i] == null ? null : "ITEM_" + i;
+			builder.add("core", name, descriptors[i]);
+		}
+		return builder.done();
+	}
+
+	private static class Writer extends SyntacticHeapWriter {
+		public Writer(OutputStream output, SyntacticHeap.Schema schema) {
+			super(output, schema);
+		}
+
+		@Override
+		public void writeHeader() throws IOException {
+			out.write_u8(0xB5);
+		}
+
+		public void writeCounts(int size, int root) throws IOException {
+			out.write_uv(size);
+			out.write_uv(root);
+		}
+	}
+
+	private static class Reader extends SyntacticHeapReader {
+		private final SyntacticHeap.Schema schema;
+
+		public Reader(InputStream input, SyntacticHeap.Schema schema) {
+			super(input);
+			this.schema = schema;
+		}
+
+		public Reader(ByteBuffer buffer, SyntacticHeap.Schema schema) {
+			super(buffer);
+			this.schema = schema;
+		}
+
+		@Override
+		public SyntacticHeap read() throws IOException {
+			wyfs.util.Pair<Integer, SyntacticItem[]> p = readItems();
+			Heap heap = new Heap();
+			if (p.second().length > 0) {
+				heap.setRootItem(heap.allocate(p.second()[p.first()]));
+			}
+			return heap;
+		}
+
+		public LazyItems lazy() throws IOException {
+			return readLazyItems();
+		}
+
+		public wyfs.util.Pair<Integer, SyntacticItem[]> items() throws IOException {
+			return readItems();
+		}
+
+		public wyfs.util.Pair<Integer, SyntacticItem[]> items(ForkJoinPool pool) throws IOException {
+			return readItems(pool);
+		}
+
+		public MappedSyntacticHeap mapped() throws IOException {
+			return readMappedHeap();
+		}
+
+		public CompactSyntacticHeap compact() throws IOException {
+			return readCompactHeap();
+		}
+
+		@Override
+		protected SyntacticHeap.Schema checkHeader() throws IOException {
+			if (in.read_u8() != 0xB5) {
+				throw new IllegalArgumentException("invalid magic number");
+			}
+			return schema;
+		}
+	}
+
+	private static class Heap extends AbstractCompilationUnit<Heap> {
+		public Heap() {
+			super(null);
+		}
+	}
+}
@@ -0,0 +1,793 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.*;
+
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit;
+import wybs.util.AbstractCompilationUnit.Attribute;
+import wybs.util.AbstractSyntacticHeap;
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Pair;
+import wybs.util.AbstractCompilationUnit.Ref;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.AbstractCompilationUnit.Value;
+
+/**
+ * Tests for the queries and maintenance operations of syntactic heaps, which
+ * are checked against straightforward scans of the heap.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SyntacticHeapTests {
+	@SuppressWarnings("rawtypes")
+	private static final Class[] KINDS = { SyntacticItem.class, Tuple.class, Pair.class, Ref.class, Identifier.class };
+
+	@Test public void parents_1() {
+		for (int seed = 0; seed != 20; ++seed) {
+			checkParents(generate(seed, 300));
+		}
+	}
+
+	@Test public void parents_2() {
+		// Queries remain correct as the heap is modified
+		for (int seed = 0; seed != 20; ++seed) {
+			Random random = new Random(seed);
+			Heap heap = generate(seed, 200);
+			checkParents(heap);
+			for (int i = 0; i != 10; ++i) {
+				mutate(random, heap);
+				checkParents(heap);
+			}
+		}
+	}
+
+	@Test public void parents_3() {
+		// Items with the same child more than once
+		Heap heap = new Heap();
+		Identifier x = heap.allocate(new Identifier("x"));
+		Tuple<Identifier> t = heap.allocate(new Tuple<>(x, x, x));
+		heap.setRootItem(t);
+		assertEquals(3, heap.getParents(x, Tuple.class).size());
+		assertSame(t, heap.getParent(x, Tuple.class));
+		assertEquals(0, heap.getParents(x, Pair.class).size());
+	}
+
+	@Test public void ancestor_1() {
+		for (int seed = 0; seed != 20; ++seed) {
+			checkAncestors(generate(seed, 300));
+		}
+	}
+
+	@Test public void ancestor_2() {
+		// Queries remain correct as the heap is modified
+		for (int seed = 0; seed != 20; ++seed) {
+			Random random = new Random(seed);
+			Heap heap = generate(seed, 200);
+			for (int i = 0; i != 10; ++i) {
+				mutate(random, heap);
+				checkAncestors(heap);
+			}
+		}
+	}
+
+	@Test public void ancestor_3() {
+		// Cross-references are not followed
+		Heap heap = new Heap();
+		Identifier x = heap.allocate(new Identifier("x"));
+		Ref<Identifier> r = heap.allocate(new Ref<>(x));
+		Pair<Ref<Identifier>, Identifier> p = heap.allocate(new Pair<>(r, heap.allocate(new Identifier("y"))));
+		heap.setRootItem(p);
+		assertSame(null, heap.getAncestor(x, Pair.class));
+		assertSame(p, heap.getAncestor(r, Pair.class));
+		assertSame(x, heap.getAncestor(x, Identifier.class));
+	}
+
+	@Test public void findAll_1() {
+		// Matches are found in the order of a recursive traversal
+		for (int seed = 0; seed != 20; ++seed) {
+			Random random = new Random(seed);
+			Heap heap = generate(seed, 200);
+			checkFindAll(heap);
+			for (int i = 0; i != 10; ++i) {
+				mutate(random, heap);
+				checkFindAll(heap);
+			}
+		}
+	}
+
+	@Test public void findAll_2() {
+		// Order differs from the order of items in the heap
+		Heap heap = new Heap();
+		Identifier x = heap.allocate(new Identifier("x"));
+		Identifier y = heap.allocate(new Identifier("y"));
+		Identifier z = heap.allocate(new Identifier("z"));
+		heap.setRootItem(heap.allocate(new Tuple<>(new Pair<>(z, x), y, x)));
+		assertEquals(Arrays.asList(z, x, y), heap.findAll(Identifier.class));
+		heap.getRootItem().setOperand(1, z);
+		assertEquals(Arrays.asList(z, x), heap.findAll(Identifier.class));
+	}
+
+	@Test public void gc_1() {
+		// Unreachable items are removed, with survivors remapped in order
+		for (int seed = 0; seed != 20; ++seed) {
+			Heap heap = generate(seed, 300);
+			orphan(new Random(seed), heap, 50);
+			SyntacticItem[] items = items(heap);
+			BitSet reachable = AbstractSyntacticHeap.findReachable(heap.getRootItem(), new BitSet());
+			SyntacticItem root = heap.getRootItem();
+			int[] remap = heap.compact(true);
+			assertEquals(items.length, remap.length);
+			assertEquals(reachable.cardinality(), heap.size());
+			int last = -1;
+			for (int i = 0; i != items.length; ++i) {
+				if (reachable.get(i)) {
+					assertTrue(remap[i] > last);
+					assertSame(items[i], heap.getSyntacticItem(remap[i]));
+					assertEquals(remap[i], items[i].getIndex());
+					last = remap[i];
+				} else {
+					assertEquals(-1, remap[i]);
+				}
+			}
+			assertSame(root, heap.getRootItem());
+			checkParents(heap);
+		}
+	}
+
+	@Test public void gc_2() {
+		Heap heap = generate(0, 300);
+		assertFalse(heap.gc());
+		orphan(new Random(0), heap, 10);
+		int size = heap.size();
+		assertTrue(heap.gc());
+		assertTrue(heap.size() < size);
+		assertFalse(heap.gc());
+	}
+
+	@Test public void gc_3() {
+		// Generational collection only removes young items
+		Heap heap = generate(0, 300);
+		orphan(new Random(0), heap, 10);
+		heap.setGenerational(true);
+		heap.gc();
+		int size = heap.size();
+		Pair<?, ?> p = heap.getSyntacticItems(Pair.class).get(0);
+		SyntacticItem old = p.get(1);
+		int o = old.getIndex();
+		// Orphan an old item, and allocate young items of which only one is kept
+		Identifier x = heap.allocate(new Identifier("young"));
+		Identifier y = heap.allocate(new Identifier("garbage"));
+		int yi = y.getIndex();
+		p.setOperand(1, x);
+		int[] remap = heap.compact(false);
+		assertEquals(-1, remap[yi]);
+		assertEquals(size + 1, heap.size());
+		assertSame(x, heap.getSyntacticItem(size));
+		assertEquals(o, remap[o]);
+		assertSame(old, heap.getSyntacticItem(o));
+	}
+
+	@Test public void gc_4() {
+		// Generational collections never remove reachable items and, once
+		// followed by a full collection, match full collections alone
+		for (int seed = 0; seed != 20; ++seed) {
+			Random r1 = new Random(seed);
+			Random r2 = new Random(seed);
+			Heap h1 = generate(seed, 200);
+			Heap h2 = generate(seed, 200);
+			h2.setGenerational(true);
+			for (int i = 0; i != 10; ++i) {
+				mutate(r1, h1);
+				mutate(r2, h2);
+				orphan(r1, h1, 5);
+				orphan(r2, h2, 5);
+				BitSet reachable = AbstractSyntacticHeap.findReachable(h2.getRootItem(), new BitSet());
+				int[] remap = h2.compact(false);
+				for (int j = reachable.nextSetBit(0); j >= 0; j = reachable.nextSetBit(j + 1)) {
+					assertTrue(remap[j] >= 0);
+				}
+				h1.compact(true);
+				h2.compact(true);
+				assertEquals(toString(h1), toString(h2));
+			}
+		}
+	}
+
+	@Test public void intern_1() {
+		// Equal constants are shared
+		Heap heap = new Heap();
+		heap.setInterning(true);
+		Value.Int x1 = heap.allocate(new Value.Int(1));
+		Value.Int x2 = heap.allocate(new Value.Int(1));
+		Value.Int y = heap.allocate(new Value.Int(2));
+		assertSame(x1, x2);
+		assertNotSame(x1, y);
+		assertTrue(heap.isInterned(x1));
+		assertEquals(2, heap.size());
+		assertEquals(1, heap.getInternedCount());
+		assertEquals(1, heap.getInternedCount(AbstractCompilationUnit.ITEM_int));
+	}
+
+	@Test public void intern_2() {
+		// Equal compound constants are shared, but other items are not
+		Heap heap = new Heap();
+		heap.setInterning(true);
+		Value.Array a1 = heap.allocate(new Value.Array(new Value.Int(1), new Value.UTF8("x")));
+		Value.Array a2 = heap.allocate(new Value.Array(new Value.Int(1), new Value.UTF8("x")));
+		Value.Array a3 = heap.allocate(new Value.Array(new Value.Int(1), new Value.Int(2)));
+		assertSame(a1, a2);
+		assertNotSame(a1, a3);
+		assertSame(a1.get(0), a3.get(0));
+		Pair<Identifier, Value.Int> p1 = heap.allocate(new Pair<>(new Identifier("x"), new Value.Int(1)));
+		Pair<Identifier, Value.Int> p2 = heap.allocate(new Pair<>(new Identifier("x"), new Value.Int(1)));
+		assertNotSame(p1, p2);
+		assertNotSame(p1.getFirst(), p2.getFirst());
+		assertSame(a1.get(0), p1.getSecond());
+		assertSame(p1.getSecond(), p2.getSecond());
+		assertFalse(heap.isInterned(p1));
+		assertEquals(9, heap.size());
+	}
+
+	@Test public void intern_3() {
+		// Without interning, nothing is shared
+		Heap heap = new Heap();
+		Value.Int x1 = heap.allocate(new Value.Int(1));
+		Value.Int x2 = heap.allocate(new Value.Int(1));
+		assertNotSame(x1, x2);
+		assertFalse(heap.isInterned(x1));
+		assertEquals(0, heap.getInternedCount());
+	}
+
+	@Test public void intern_4() {
+		// Interning does not change the structure of what is allocated
+		for (int seed = 0; seed != 20; ++seed) {
+			Heap h1 = generate(seed, 300);
+			Heap h2 = new Heap();
+			h2.setInterning(true);
+			h2.setRootItem(h2.allocate(h1.getRootItem()));
+			assertEquals(describe(h1.getRootItem()), describe(h2.getRootItem()));
+			assertTrue(h2.size() <= h1.size());
+			assertEquals(h1.size() - h2.size(), h2.getInternedCount());
+		}
+	}
+
+	@Test public void intern_5() {
+		// Constants referred to by a reference allocated with them are not shared
+		Heap heap = new Heap();
+		heap.setInterning(true);
+		Value.Int x = new Value.Int(1);
+		Tuple<SyntacticItem> t = heap.allocate(new Tuple<>(x, new Ref<>(x)));
+		Value.Int x2 = heap.allocate(new Value.Int(1));
+		assertSame(t.get(0), ((Ref<?>) t.get(1)).get());
+		assertNotSame(t.get(0), x2);
+		assertFalse(heap.isInterned(t.get(0)));
+		// Though references to interned constants are permitted
+		Ref<Value.Int> r = heap.allocate(new Ref<>(x2));
+		assertSame(x2, r.get());
+	}
+
+	@Test public void intern_6() {
+		// Constants which are the target of an attribute are not shared
+		Heap heap = new Heap();
+		heap.setInterning(true);
+		Attribute.Span s1 = heap.allocate(new Attribute.Span(new Value.Int(1), 1, 2));
+		Attribute.Span s2 = heap.allocate(new Attribute.Span(new Value.Int(1), 5, 6));
+		assertNotSame(s1.getItem(), s2.getItem());
+		assertSame(s1, heap.getParent(s1.getItem(), Attribute.Span.class));
+		assertSame(s2, heap.getParent(s2.getItem(), Attribute.Span.class));
+		// Nor can attributes be allocated later for interned constants
+		Value.Int y = heap.allocate(new Value.Int(2));
+		try {
+			heap.allocate(new Attribute.Span(y, 1, 2));
+			Assert.fail("expected attribute for interned item to be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		heap.setInterning(false);
+		try {
+			heap.allocate(new Attribute.Span(y, 1, 2));
+			Assert.fail("expected attribute for interned item to be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test public void intern_7() {
+		// Interned constants are immutable
+		Heap heap = new Heap();
+		heap.setInterning(true);
+		Value.Array a = heap.allocate(new Value.Array(new Value.Int(1)));
+		try {
+			a.setOperand(0, heap.allocate(new Value.Int(2)));
+			Assert.fail("expected interned item to be immutable");
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+		assertEquals(new Value.Int(1), a.get(0));
+		// Items which contain them are not
+		Tuple<Value> t = heap.allocate(new Tuple<>(new Value.Int(1)));
+		t.setOperand(0, heap.allocate(new Value.Int(2)));
+		assertEquals(new Value.Int(2), t.get(0));
+	}
+
+	@Test public void intern_8() {
+		// Collected constants are no longer shared
+		Heap heap = new Heap();
+		heap.setInterning(true);
+		Value.Int x = heap.allocate(new Value.Int(1));
+		heap.setRootItem(heap.allocate(new Value.Int(2)));
+		heap.gc();
+		assertFalse(heap.isInterned(x));
+		Value.Int x2 = heap.allocate(new Value.Int(1));
+		assertNotSame(x, x2);
+		assertTrue(heap.isInterned(x2));
+		assertSame(x2, heap.getSyntacticItem(x2.getIndex()));
+	}
+
+	@Test public void snapshot_1() {
+		// Snapshots are unaffected by subsequent modifications
+		for (int seed = 0; seed != 20; ++seed) {
+			Random random = new Random(seed);
+			Heap heap = generate(seed, 200);
+			String before = toIndices(heap);
+			SyntacticHeap snapshot = heap.snapshot();
+			for (int i = 0; i != 20; ++i) {
+				mutate(random, heap);
+			}
+			assertEquals(before, toIndices(snapshot));
+			checkSnapshot(snapshot);
+		}
+	}
+
+	@Test public void snapshot_2() {
+		// Snapshots taken at different points
+		for (int seed = 0; seed != 20; ++seed) {
+			Random random = new Random(seed);
+			Heap heap = generate(seed, 200);
+			List<SyntacticHeap> snapshots = new ArrayList<>();
+			List<String> expected = new ArrayList<>();
+			for (int i = 0; i != 5; ++i) {
+				expected.add(toIndices(heap));
+				snapshots.add(heap.snapshot());
+				for (int j = 0; j != 5; ++j) {
+					mutate(random, heap);
+				}
+			}
+			for (int i = 0; i != snapshots.size(); ++i) {
+				assertEquals(expected.get(i), toIndices(snapshots.get(i)));
+				checkSnapshot(snapshots.get(i));
+			}
+		}
+	}
+
+	@Test public void snapshot_3() {
+		// Snapshots survive collection of the heap
+		for (int seed = 0; seed != 20; ++seed) {
+			Random random = new Random(seed);
+			Heap heap = generate(seed, 200);
+			mutate(random, heap);
+			String before = toIndices(heap);
+			SyntacticHeap snapshot = heap.snapshot();
+			mutate(random, heap);
+			orphan(random, heap, 10);
+			heap.gc();
+			mutate(random, heap);
+			assertEquals(before, toIndices(snapshot));
+			checkSnapshot(snapshot);
+		}
+	}
+
+	@Test public void snapshot_4() {
+		// Items allocated after the snapshot are not visible
+		Heap heap = generate(0, 100);
+		SyntacticHeap snapshot = heap.snapshot();
+		int size = heap.size();
+		Identifier x = heap.allocate(new Identifier("x"));
+		assertEquals(size, snapshot.size());
+		assertEquals(size + 1, heap.size());
+		assertEquals(0, snapshot.getParents(x, SyntacticItem.class).size());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void snapshot_5() {
+		generate(0, 100).snapshot().allocate(new Identifier("x"));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void snapshot_6() {
+		generate(0, 100).snapshot().gc();
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Check that parent queries for every item in a heap agree with a scan of
+	 * the heap.
+	 *
+	 * @param heap
+	 */
+	@SuppressWarnings("unchecked")
+	private static void checkParents(SyntacticHeap heap) {
+		for (int i = 0; i != heap.size(); ++i) {
+			SyntacticItem child = heap.getSyntacticItem(i);
+			for (Class<? extends SyntacticItem> kind : KINDS) {
+				List<SyntacticItem> expected = scanParents(heap, child, kind);
+				assertEquals(expected, heap.getParents(child, kind));
+				assertSame(expected.isEmpty() ? null : expected.get(0), heap.getParent(child, kind));
+			}
+		}
+	}
+
+	/**
+	 * Check that ancestor queries for every item in a heap agree with a scan of
+	 * the heap.
+	 *
+	 * @param heap
+	 */
+	@SuppressWarnings("unchecked")
+	private static void checkAncestors(SyntacticHeap heap) {
+		for (int i = 0; i != heap.size(); ++i) {
+			SyntacticItem child = heap.getSyntacticItem(i);
+			for (Class<? extends SyntacticItem> kind : KINDS) {
+				assertSame(scanAncestor(heap, child, kind), heap.getAncestor(child, kind));
+			}
+		}
+	}
+
+	/**
+	 * Check that parent, ancestor and reachability queries on a snapshot agree
+	 * with a scan of the snapshot. Since items shared with the heap may not be
+	 * navigated directly, operands are resolved by index.
+	 *
+	 * @param snapshot
+	 */
+	@SuppressWarnings("unchecked")
+	private static void checkSnapshot(SyntacticHeap snapshot) {
+		int[][] operands = operands(snapshot);
+		for (int c = 0; c != operands.length; ++c) {
+			SyntacticItem child = snapshot.getSyntacticItem(c);
+			for (Class<? extends SyntacticItem> kind : KINDS) {
+				List<Integer> expected = new ArrayList<>();
+				for (int p = 0; p != operands.length; ++p) {
+					if (kind.isInstance(snapshot.getSyntacticItem(p))) {
+						for (int operand : operands[p]) {
+							if (operand == c) {
+								expected.add(p);
+							}
+						}
+					}
+				}
+				assertEquals(expected, indices(snapshot, snapshot.getParents(child, kind)));
+				SyntacticItem ancestor = snapshot.getAncestor(child, kind);
+				assertEquals(scanAncestor(snapshot, operands, c, kind),
+						ancestor == null ? -1 : snapshot.getIndexOf(ancestor));
+			}
+		}
+		assertEquals(scanAll(snapshot, Identifier.class), indices(snapshot, snapshot.findAll(Identifier.class)));
+	}
+
+	/**
+	 * Check that every kind of item is found in the same order as by a recursive
+	 * traversal from the root.
+	 *
+	 * @param heap
+	 */
+	@SuppressWarnings("unchecked")
+	private static void checkFindAll(SyntacticHeap heap) {
+		for (Class<? extends SyntacticItem> kind : KINDS) {
+			assertEquals(scanAll(heap, kind), indices(heap, heap.findAll(kind)));
+		}
+	}
+
+	/**
+	 * Find the indices of all items of a given kind reachable from the root, in
+	 * the order they are encountered by a recursive depth-first traversal.
+	 *
+	 * @param heap
+	 * @param kind
+	 * @return
+	 */
+	private static List<Integer> scanAll(SyntacticHeap heap, Class<? extends SyntacticItem> kind) {
+		List<Integer> matches = new ArrayList<>();
+		scanAll(heap, operands(heap), heap.getIndexOf(heap.getRootItem()), kind, new BitSet(), matches);
+		return matches;
+	}
+
+	private static void scanAll(SyntacticHeap heap, int[][] operands, int index,
+			Class<? extends SyntacticItem> kind, BitSet visited, List<Integer> matches) {
+		if (!visited.get(index)) {
+			visited.set(index);
+			if (kind.isInstance(heap.getSyntacticItem(index))) {
+				matches.add(index);
+			}
+			for (int operand : operands[index]) {
+				scanAll(heap, operands, operand, kind, visited, matches);
+			}
+		}
+	}
+
+	private static int scanAncestor(SyntacticHeap snapshot, int[][] operands, int child,
+			Class<? extends SyntacticItem> kind) {
+		if (kind.isInstance(snapshot.getSyntacticItem(child))) {
+			return child;
+		}
+		for (int p = 0; p != operands.length; ++p) {
+			if (!(snapshot.getSyntacticItem(p) instanceof Ref)) {
+				for (int operand : operands[p]) {
+					if (operand == child) {
+						int r = scanAncestor(snapshot, operands, p, kind);
+						if (r >= 0) {
+							return r;
+						}
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Determine the operands of every item in a heap by index.
+	 *
+	 * @param heap
+	 * @return
+	 */
+	private static int[][] operands(SyntacticHeap heap) {
+		int[][] operands = new int[heap.size()][];
+		for (int i = 0; i != operands.length; ++i) {
+			SyntacticItem item = heap.getSyntacticItem(i);
+			operands[i] = new int[item.size()];
+			for (int j = 0; j != item.size(); ++j) {
+				operands[i][j] = heap.getIndexOf(item.get(j));
+			}
+		}
+		return operands;
+	}
+
+	private static List<Integer> indices(SyntacticHeap heap, List<? extends SyntacticItem> items) {
+		List<Integer> indices = new ArrayList<>();
+		for (SyntacticItem item : items) {
+			indices.add(heap.getIndexOf(item));
+		}
+		return indices;
+	}
+
+	/**
+	 * Describe the structure of a heap by index, resolving operands through the
+	 * heap itself (as required for snapshots).
+	 *
+	 * @param heap
+	 * @return
+	 */
+	private static String toIndices(SyntacticHeap heap) {
+		int[][] operands = operands(heap);
+		StringBuilder r = new StringBuilder();
+		r.append(heap.getIndexOf(heap.getRootItem())).append("\n");
+		for (int i = 0; i != operands.length; ++i) {
+			r.append(i).append(":").append(heap.getSyntacticItem(i).getOpcode());
+			r.append(Arrays.toString(operands[i])).append("\n");
+		}
+		return r.toString();
+	}
+
+	/**
+	 * Determine the parents of an item by scanning the entire heap. A parent is
+	 * included once for each occurrence of the child amongst its operands.
+	 *
+	 * @param heap
+	 * @param child
+	 * @param kind
+	 * @return
+	 */
+	private static List<SyntacticItem> scanParents(SyntacticHeap heap, SyntacticItem child,
+			Class<? extends SyntacticItem> kind) {
+		List<SyntacticItem> parents = new ArrayList<>();
+		for (int i = 0; i != heap.size(); ++i) {
+			SyntacticItem parent = heap.getSyntacticItem(i);
+			if (kind.isInstance(parent)) {
+				for (int j = 0; j != parent.size(); ++j) {
+					if (parent.get(j) == child) {
+						parents.add(parent);
+					}
+				}
+			}
+		}
+		return parents;
+	}
+
+	/**
+	 * Determine the first ancestor of an item by scanning the entire heap,
+	 * searching parents in heap order and without following cross-references.
+	 *
+	 * @param heap
+	 * @param child
+	 * @param kind
+	 * @return
+	 */
+	private static SyntacticItem scanAncestor(SyntacticHeap heap, SyntacticItem child,
+			Class<? extends SyntacticItem> kind) {
+		if (kind.isInstance(child)) {
+			return child;
+		}
+		for (int i = 0; i != heap.size(); ++i) {
+			SyntacticItem parent = heap.getSyntacticItem(i);
+			for (int j = 0; j != parent.size(); ++j) {
+				if (parent.get(j) == child && !(parent instanceof Ref)) {
+					SyntacticItem r = scanAncestor(heap, parent, kind);
+					if (r != null) {
+						return r;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Apply a random modification to a heap, either replacing an operand of some
+	 * item or allocating a new item. Operands are only replaced by earlier items
+	 * so the heap remains acyclic (ignoring cross-references).
+	 *
+	 * @param random
+	 * @param heap
+	 */
+	private static void mutate(Random random, Heap heap) {
+		int index = random.nextInt(heap.size());
+		SyntacticItem item = heap.getSyntacticItem(index);
+		if (random.nextBoolean() && item.size() > 0 && !(item instanceof Ref)) {
+			int operand = random.nextInt(item.size());
+			item.setOperand(operand, heap.getSyntacticItem(random.nextInt(index)));
+		} else {
+			SyntacticItem child = heap.getSyntacticItem(random.nextInt(heap.size()));
+			heap.allocate(new Pair<>(child, new Value.Int(random.nextInt(10))));
+		}
+	}
+
+	/**
+	 * Make some items of a heap unreachable, by allocating items which are not
+	 * reachable from the root and by removing some operands of the root.
+	 *
+	 * @param random
+	 * @param heap
+	 * @param n
+	 */
+	private static void orphan(Random random, Heap heap, int n) {
+		SyntacticItem root = heap.getRootItem();
+		for (int i = 0; i != n; ++i) {
+			SyntacticItem child = heap.getSyntacticItem(random.nextInt(heap.size()));
+			heap.allocate(new Pair<>(child, new Value.Int(random.nextInt(10))));
+			root.setOperand(random.nextInt(root.size()), root.get(0));
+		}
+	}
+
+	private static SyntacticItem[] items(SyntacticHeap heap) {
+		SyntacticItem[] items = new SyntacticItem[heap.size()];
+		for (int i = 0; i != items.length; ++i) {
+			items[i] = heap.getSyntacticItem(i);
+		}
+		return items;
+	}
+
+	/**
+	 * Describe the structure of a heap, such that two heaps with the same
+	 * structure have the same description.
+	 *
+	 * @param heap
+	 * @return
+	 */
+	private static String toString(SyntacticHeap heap) {
+		StringBuilder r = new StringBuilder();
+		r.append(heap.getRootItem().getIndex()).append("\n");
+		for (int i = 0; i != heap.size(); ++i) {
+			SyntacticItem item = heap.getSyntacticItem(i);
+			r.append(i).append(":").append(item.getOpcode()).append("(");
+			for (int j = 0; j != item.size(); ++j) {
+				r.append(item.get(j).getIndex()).append(",");
+			}
+			r.append(")\n");
+		}
+		return r.toString();
+	}
+
+	/**
+	 * Describe the structure of the tree rooted at a given item, where
+	 * cross-references are described by their target alone.
+	 *
+	 * @param item
+	 * @return
+	 */
+	private static String describe(SyntacticItem item) {
+		StringBuilder r = new StringBuilder();
+		describe(item, true, r);
+		return r.toString();
+	}
+
+	private static void describe(SyntacticItem item, boolean follow, StringBuilder r) {
+		r.append(item.getOpcode());
+		if (item.getData() != null) {
+			r.append(Arrays.toString(item.getData()));
+		}
+		if (item instanceof Ref) {
+			r.append("&");
+			if (follow) {
+				describe(item.get(0), false, r);
+			}
+		} else {
+			r.append("(");
+			for (int i = 0; i != item.size(); ++i) {
+				describe(item.get(i), follow, r);
+				r.append(",");
+			}
+			r.append(")");
+		}
+	}
+
+	/**
+	 * Generate a random heap of a given size, where items are frequently shared
+	 * and cross-references may refer to any item.
+	 *
+	 * @param seed
+	 * @param n
+	 * @return
+	 */
+	private static Heap generate(long seed, int n) {
+		Random random = new Random(seed);
+		Heap heap = new Heap();
+		List<SyntacticItem> items = new ArrayList<>();
+		while (heap.size() < n) {
+			SyntacticItem item;
+			int kind = items.isEmpty() ? 0 : random.nextInt(6);
+			if (kind == 0) {
+				item = new Identifier("x" + random.nextInt(10));
+			} else if (kind == 1) {
+				item = new Value.Int(random.nextInt(10));
+			} else if (kind == 2) {
+				item = new Ref<>(items.get(random.nextInt(items.size())));
+			} else if (kind == 3) {
+				item = new Pair<>(items.get(random.nextInt(items.size())), items.get(random.nextInt(items.size())));
+			} else {
+				SyntacticItem[] operands = new SyntacticItem[random.nextInt(4)];
+				for (int i = 0; i != operands.length; ++i) {
+					operands[i] = items.get(random.nextInt(items.size()));
+				}
+				item = new Tuple<>(operands);
+			}
+			items.add(heap.allocate(item));
+		}
+		heap.setRootItem(heap.allocate(new Tuple<>(items)));
+		return heap;
+	}
+
+	private static class Heap extends AbstractCompilationUnit<Heap> {
+		public Heap() {
+			super(null);
+		}
+	}
+}